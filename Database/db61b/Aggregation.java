@@ -0,0 +1,472 @@
+package db61b;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static db61b.Utils.*;
+
+/** Evaluates the aggregate functions count, sum, min, and max over groups
+ *  of rows by hashing.  Rows are passed to add one at a time; result
+ *  returns a Table with one row per group.  While the running groups fit
+ *  in the memory budget they are kept in a hash table.  Once they no
+ *  longer fit, rows for groups not already in the table are instead
+ *  partitioned by hash into temporary files, each of which is aggregated
+ *  separately (and recursively) afterwards.
+ *  @author Brandon Griffin
+ */
+class Aggregation {
+
+    /** Number of partitions into which overflowing rows are divided. */
+    private static final int PARTITIONS = 16;
+    /** Deepest level of repartitioning before the budget is ignored. */
+    private static final int MAX_DEPTH = 4;
+    /** Approximate overhead in bytes of a group and of each of its
+     *  values and accumulators. */
+    private static final int GROUP_OVERHEAD = 96, VALUE_OVERHEAD = 48;
+
+    /** An aggregation whose Kth output column is the value of
+     *  FUNCTIONS[K] ("count", "sum", "min", or "max") applied to column
+     *  ARGUMENTS[K], or, if FUNCTIONS[K] is null, the value of the
+     *  grouping column ARGUMENTS[K].  A null argument to count counts
+     *  rows.  Rows are grouped by the values of GROUPBY, and every
+     *  non-aggregated output column must appear there.  TITLES are the
+     *  names of the output columns. */
+    Aggregation(List<String> functions, List<Column> arguments,
+                List<Column> groupBy, List<String> titles) {
+        this(functions.toArray(new String[0]),
+             arguments.toArray(new Column[0]),
+             groupBy.toArray(new Column[0]),
+             titles.toArray(new String[0]), 0);
+        for (int k = 0; k < _functions.length; k += 1) {
+            if (_functions[k] == null && _keyIndex[k] < 0) {
+                throw error("%s must appear in the group by clause",
+                            _arguments[k].getName());
+            }
+        }
+    }
+
+    /** An aggregation of FUNCTIONS over ARGUMENTS grouped by GROUPBY,
+     *  producing columns TITLES, at repartitioning level DEPTH. */
+    private Aggregation(String[] functions, Column[] arguments,
+                        Column[] groupBy, String[] titles, int depth) {
+        _functions = functions;
+        _arguments = arguments;
+        _groupBy = groupBy;
+        _titles = titles;
+        _depth = depth;
+        _keyIndex = new int[functions.length];
+        for (int k = 0; k < functions.length; k += 1) {
+            _keyIndex[k] = -1;
+            for (int g = 0; g < groupBy.length && functions[k] == null;
+                 g += 1) {
+                if (groupBy[g].getName().equals(arguments[k].getName())) {
+                    _keyIndex[k] = g;
+                }
+            }
+        }
+        _groups = new HashMap<>();
+        _bytes = 0;
+    }
+
+    /** Return the default title for the result of applying FUNCTION to
+     *  the column named ARGUMENT (null for count(*)). */
+    static String title(String function, String argument) {
+        if (argument == null) {
+            return function;
+        }
+        return function + "_" + argument;
+    }
+
+    /** Include the row ROWS (as for Column.getFrom) in its group. */
+    void add(int... rows) {
+        String[] key = new String[_groupBy.length];
+        for (int g = 0; g < key.length; g += 1) {
+            key[g] = groupValue(_groupBy[g], rows);
+        }
+        String[] inputs = new String[_functions.length];
+        for (int k = 0; k < inputs.length; k += 1) {
+            if (_functions[k] != null && _arguments[k] != null) {
+                inputs[k] = _arguments[k].getFrom(rows);
+            }
+        }
+        add(key, inputs);
+    }
+
+    /** Return the value of COL from ROWS as a grouping value: as written
+     *  in its table, except that a DOUBLE is written from its value with
+     *  -0.0 made 0.0, so that values that compare equal are in one
+     *  group. */
+    private static String groupValue(Column col, int... rows) {
+        if (col.getType() == ColumnType.DOUBLE) {
+            return ColumnType.formatDouble(col.getDoubleFrom(rows) + 0.0);
+        }
+        return col.getFrom(rows);
+    }
+
+    /** Return a new Table containing one row for each group, in which
+     *  each aggregate column holds the result for that group. */
+    Table result() {
+        ColumnType[] types = types();
+        Table table = new Table(_titles, types, ColumnStorage.Kind.HEAP,
+                                RowOrder.LEXICOGRAPHIC);
+        ExternalSort rows =
+            new ExternalSort(RowOrder.LEXICOGRAPHIC.typed(types),
+                             memoryBudget());
+        if (_groups.isEmpty() && _groupBy.length == 0 && _partitions == null
+            && reportsEmpty()) {
+            Accumulator[] empty = new Accumulator[_functions.length];
+            for (int k = 0; k < empty.length; k += 1) {
+                if (_functions[k] != null) {
+                    empty[k] = newAccumulator(k);
+                }
+            }
+            _groups.put(Arrays.asList(), empty);
+        }
+        emit(rows);
+        table.fill(rows);
+        return table;
+    }
+
+    /** Return the types of my output columns. */
+    ColumnType[] types() {
+        ColumnType[] types = new ColumnType[_functions.length];
+        for (int k = 0; k < types.length; k += 1) {
+            types[k] = resultType(k);
+        }
+        return types;
+    }
+
+    /** Return true iff all my aggregates have a value over no rows, so
+     *  that an aggregation without grouping over no rows yields one row.
+     *  Counts and sums are 0 and the min and max of strings are empty,
+     *  but the min and max of numbers have no value, and then there is
+     *  no row. */
+    private boolean reportsEmpty() {
+        for (int k = 0; k < _functions.length; k += 1) {
+            if (_functions[k] != null && !_functions[k].equals("count")
+                && !_functions[k].equals("sum")
+                && _arguments[k].getType().numeric()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Add the row whose grouping values are KEY and whose aggregate
+     *  inputs are INPUTS to its group, or to a partition file if the
+     *  group is new and memory is exhausted. */
+    private void add(String[] key, String[] inputs) {
+        List<String> group = Arrays.asList(key);
+        Accumulator[] accums = _groups.get(group);
+        if (accums == null) {
+            if (_partitions != null) {
+                spill(group, key, inputs);
+                return;
+            }
+            accums = new Accumulator[_functions.length];
+            _bytes += GROUP_OVERHEAD;
+            for (String value : key) {
+                _bytes += VALUE_OVERHEAD + 2 * value.length();
+            }
+            for (int k = 0; k < accums.length; k += 1) {
+                if (_functions[k] != null) {
+                    accums[k] = newAccumulator(k);
+                    _bytes += VALUE_OVERHEAD;
+                }
+            }
+            _groups.put(group, accums);
+            if (_bytes > memoryBudget() && _depth < MAX_DEPTH) {
+                startSpilling();
+            }
+        }
+        for (int k = 0; k < accums.length; k += 1) {
+            if (accums[k] != null) {
+                accums[k].add(inputs[k]);
+            }
+        }
+    }
+
+    /** Add the output rows for all my groups, including those in
+     *  partition files, to ROWS. */
+    private void emit(ExternalSort rows) {
+        for (Map.Entry<List<String>, Accumulator[]> e : _groups.entrySet()) {
+            List<String> key = e.getKey();
+            Accumulator[] accums = e.getValue();
+            String[] row = new String[_functions.length];
+            for (int k = 0; k < row.length; k += 1) {
+                if (accums[k] != null) {
+                    row[k] = accums[k].result();
+                } else {
+                    row[k] = key.get(_keyIndex[k]);
+                }
+            }
+            rows.add(row);
+        }
+        _groups.clear();
+        if (_partitions == null) {
+            return;
+        }
+        try {
+            for (DataOutputStream out : _spillStreams) {
+                out.close();
+            }
+            for (File file : _partitions) {
+                Aggregation part =
+                    new Aggregation(_functions, _arguments, _groupBy,
+                                    _titles, _depth + 1);
+                try (DataInputStream in =
+                     new DataInputStream(new BufferedInputStream
+                                         (new FileInputStream(file)))) {
+                    while (true) {
+                        String[] key = readValues(in, _groupBy.length);
+                        if (key == null) {
+                            break;
+                        }
+                        part.add(key, readValues(in, _functions.length));
+                    }
+                }
+                file.delete();
+                part.emit(rows);
+            }
+        } catch (IOException excp) {
+            throw error("could not read aggregation partition: %s",
+                        excp.getMessage());
+        } finally {
+            for (File file : _partitions) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Create the partition files to which new groups are sent from
+     *  now on. */
+    private void startSpilling() {
+        _partitions = new File[PARTITIONS];
+        _spillStreams = new DataOutputStream[PARTITIONS];
+        try {
+            for (int p = 0; p < PARTITIONS; p += 1) {
+                _partitions[p] = File.createTempFile("db61b", ".part");
+                _partitions[p].deleteOnExit();
+                _spillStreams[p] =
+                    new DataOutputStream(new BufferedOutputStream
+                                         (new FileOutputStream
+                                          (_partitions[p])));
+            }
+        } catch (IOException excp) {
+            throw error("could not create aggregation partition: %s",
+                        excp.getMessage());
+        }
+    }
+
+    /** Write the row with grouping values KEY (also available as
+     *  GROUP) and aggregate inputs INPUTS to its partition. */
+    private void spill(List<String> group, String[] key, String[] inputs) {
+        int h = group.hashCode() * (2 * _depth + 1);
+        h ^= h >>> 16;
+        DataOutputStream out = _spillStreams[Math.floorMod(h, PARTITIONS)];
+        try {
+            writeValues(out, key);
+            writeValues(out, inputs);
+        } catch (IOException excp) {
+            throw error("could not write aggregation partition: %s",
+                        excp.getMessage());
+        }
+    }
+
+    /** Write VALUES, some of which may be null, to OUT. */
+    private static void writeValues(DataOutputStream out, String[] values)
+        throws IOException {
+        for (String value : values) {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    /** Read N values written by writeValues from IN, returning null at
+     *  the end of IN. */
+    private static String[] readValues(DataInputStream in, int n)
+        throws IOException {
+        String[] values = new String[n];
+        try {
+            for (int i = 0; i < n; i += 1) {
+                values[i] = in.readBoolean() ? readString(in) : null;
+            }
+        } catch (EOFException excp) {
+            return null;
+        }
+        return values;
+    }
+
+    /** Return the type of output column K: long for counts, and for sums
+     *  of integers, double for other sums of numbers, and otherwise the
+     *  type of the column aggregated or grouped by. */
+    private ColumnType resultType(int k) {
+        if (_functions[k] == null) {
+            return _arguments[k].getType();
+        }
+        switch (_functions[k]) {
+        case "count":
+            return ColumnType.LONG;
+        case "sum":
+            ColumnType type = _arguments[k].getType();
+            if (type.integral()) {
+                return ColumnType.LONG;
+            }
+            return type;
+        default:
+            return _arguments[k].getType();
+        }
+    }
+
+    /** Return a new Accumulator for output column K. */
+    private Accumulator newAccumulator(int k) {
+        switch (_functions[k]) {
+        case "count":
+            return new Count();
+        case "sum":
+            return new Sum(resultType(k));
+        case "min":
+            return new Extremum(-1, resultType(k));
+        case "max":
+            return new Extremum(1, resultType(k));
+        default:
+            throw error("unknown aggregate function: %s", _functions[k]);
+        }
+    }
+
+    /** The running value of one aggregate function over one group. */
+    private abstract static class Accumulator {
+        /** Include VALUE (null for count(*)) in my result. */
+        abstract void add(String value);
+
+        /** Return my result. */
+        abstract String result();
+    }
+
+    /** Counts rows. */
+    private static class Count extends Accumulator {
+        @Override
+        void add(String value) {
+            _count += 1;
+        }
+
+        @Override
+        String result() {
+            return Long.toString(_count);
+        }
+
+        /** Rows counted. */
+        private long _count;
+    }
+
+    /** Sums numeric values, as integers while they all are integers. */
+    private static class Sum extends Accumulator {
+        /** A sum whose result is of type TYPE. */
+        Sum(ColumnType type) {
+            _type = type;
+        }
+
+        @Override
+        void add(String value) {
+            if (_integral) {
+                try {
+                    _sum = Math.addExact(_sum, Long.parseLong(value));
+                    return;
+                } catch (NumberFormatException | ArithmeticException e) {
+                    if (_type == ColumnType.LONG) {
+                        throw error("sum too large: exceeds long range");
+                    }
+                    _integral = false;
+                    _real = _sum;
+                }
+            }
+            try {
+                _real += Double.parseDouble(value);
+            } catch (NumberFormatException excp) {
+                throw error("cannot sum non-numeric value: %s", value);
+            }
+        }
+
+        @Override
+        String result() {
+            return _integral ? Long.toString(_sum)
+                : ColumnType.formatDouble(_real);
+        }
+
+        /** Type of my result. */
+        private final ColumnType _type;
+        /** True iff all values so far were integers. */
+        private boolean _integral = true;
+        /** Sum while _integral. */
+        private long _sum;
+        /** Sum once not _integral. */
+        private double _real;
+    }
+
+    /** Keeps the least or greatest value. */
+    private static class Extremum extends Accumulator {
+        /** Keeps the greatest value of type TYPE if SIGN > 0, else the
+         *  least. */
+        Extremum(int sign, ColumnType type) {
+            _sign = sign;
+            _type = type;
+        }
+
+        @Override
+        void add(String value) {
+            if (_value == null || _type.compare(value, _value) * _sign > 0) {
+                _value = value;
+            }
+        }
+
+        @Override
+        String result() {
+            return _value == null ? "" : _value;
+        }
+
+        /** 1 for max, -1 for min. */
+        private final int _sign;
+        /** Type of the values compared. */
+        private final ColumnType _type;
+        /** Extreme value so far, or null if none. */
+        private String _value;
+    }
+
+    /** Aggregate function for each output column, or null for grouping
+     *  columns. */
+    private final String[] _functions;
+    /** Column argument for each output column (null for count(*)). */
+    private final Column[] _arguments;
+    /** Grouping columns. */
+    private final Column[] _groupBy;
+    /** Output column titles. */
+    private final String[] _titles;
+    /** For each grouping output column, the index of its value in the
+     *  group key; otherwise -1. */
+    private final int[] _keyIndex;
+    /** Repartitioning level: 0 for the original rows. */
+    private final int _depth;
+    /** Accumulators of each group held in memory, by grouping values. */
+    private HashMap<List<String>, Accumulator[]> _groups;
+    /** Estimated size of _groups in bytes. */
+    private long _bytes;
+    /** Partition files for overflowing groups, or null if all groups
+     *  have fit so far. */
+    private File[] _partitions;
+    /** Output streams of _partitions. */
+    private DataOutputStream[] _spillStreams;
+}
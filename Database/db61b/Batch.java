@@ -0,0 +1,84 @@
+package db61b;
+
+/** A batch of up to CAPACITY rows passed from one Operator to the next.
+ *  The rows of a batch are either tuples of physical row indices (see
+ *  Table.value), one from each of the tables being scanned or joined,
+ *  kept column-wise in one int array per table, or, once they have been
+ *  projected, rows of values.  A batch is reused from one group of rows
+ *  to the next, so that passing rows along allocates nothing.
+ *  @author Brandon Griffin
+ */
+class Batch {
+
+    /** Maximum number of rows in a batch. */
+    static final int CAPACITY = 1024;
+
+    /** An empty batch of tuples of WIDTH row indices or, if WIDTH is 0,
+     *  of rows of values. */
+    Batch(int width) {
+        _ids = new int[width][CAPACITY];
+        _values = width == 0 ? new String[CAPACITY][] : null;
+        _size = 0;
+    }
+
+    /** Return the number of row indices in each of my rows (0 if my rows
+     *  are rows of values). */
+    int width() {
+        return _ids.length;
+    }
+
+    /** Return the number of rows I hold. */
+    int size() {
+        return _size;
+    }
+
+    /** Return true iff I can hold no more rows. */
+    boolean full() {
+        return _size == CAPACITY;
+    }
+
+    /** Remove all my rows. */
+    void clear() {
+        _size = 0;
+    }
+
+    /** Add the tuple of row indices ROWS, which has width() elements. */
+    void add(int[] rows) {
+        for (int t = 0; t < _ids.length; t += 1) {
+            _ids[t][_size] = rows[t];
+        }
+        _size += 1;
+    }
+
+    /** Add the row of values VALUES. */
+    void add(String[] values) {
+        _values[_size] = values;
+        _size += 1;
+    }
+
+    /** Set the first width() elements of ROWS to my Rth tuple of row
+     *  indices. */
+    void get(int r, int[] rows) {
+        for (int t = 0; t < _ids.length; t += 1) {
+            rows[t] = _ids[t][r];
+        }
+    }
+
+    /** Return my Rth row of values. */
+    String[] values(int r) {
+        return _values[r];
+    }
+
+    /** Return the row indices into my Tth table: element R is that of my
+     *  Rth row, for R < size(). */
+    int[] ids(int t) {
+        return _ids[t];
+    }
+
+    /** My tuples of row indices, by table. */
+    private final int[][] _ids;
+    /** My rows of values, if my width is 0 (otherwise null). */
+    private final String[][] _values;
+    /** Number of rows I hold. */
+    private int _size;
+}
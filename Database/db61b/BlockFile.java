@@ -0,0 +1,553 @@
+package db61b;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static db61b.Utils.*;
+
+/** The block-compressed format of table files.  A file starts with MAGIC,
+ *  the number of columns, the title and type name of each column, and a
+ *  byte of flags (SORTED, if the rows are distinct and in lexicographic
+ *  order, as a table loaded from the file would keep them).  Then come
+ *  blocks of up to BLOCK_ROWS rows, each holding the number of rows in
+ *  the block followed by each of its columns: its encoding, its least
+ *  and greatest values (which let a scan skip the block before the
+ *  column is decoded), its encoded length, and its values.  These are
+ *  encoded by run-length encoding when the column has long runs of equal
+ *  values (as the leading columns of a sorted table do), by a dictionary
+ *  of its distinct values when it has few of them, and otherwise by
+ *  compressing its values with a Deflater.  Values, which may be of any
+ *  length, are written as by Utils.writeString.  A block of 0 rows ends
+ *  the file.  Since the blocks are independent, they are decoded in
+ *  parallel when read.
+ *  @author Brandon Griffin
+ */
+class BlockFile {
+
+    /** The first bytes of a block-compressed file.  A text table file
+     *  cannot start this way, since '#' cannot begin a column name.  The
+     *  byte at VERSION is the version of the format. */
+    static final byte[] MAGIC = { '#', 'd', 'b', 'b', 'l', 'k', '3', '\n' };
+
+    /** Position of the version in MAGIC. */
+    static final int VERSION = 6;
+
+    /** Maximum number of rows in a block. */
+    static final int BLOCK_ROWS = 4096;
+
+    /** Flag indicating that a file's rows are distinct and in
+     *  lexicographic order. */
+    static final byte SORTED = 1;
+
+    /** Encodings of a column of a block. */
+    static final byte RUN_LENGTH = 1, DICTIONARY = 2, DEFLATED = 3;
+
+    /** Return true iff the start of a file, read from IN, is MAGIC.
+     *  Reads at most MAGIC.length bytes.  Throws an IOException if the
+     *  file is block-compressed in another version of the format. */
+    static boolean isBlockFile(InputStream in) throws IOException {
+        byte[] start = new byte[MAGIC.length];
+        int n = in.readNBytes(start, 0, start.length);
+        if (n < MAGIC.length
+            || !Arrays.equals(start, 0, VERSION, MAGIC, 0, VERSION)) {
+            return false;
+        }
+        if (!Arrays.equals(start, MAGIC)) {
+            throw new IOException("unsupported block file version");
+        }
+        return true;
+    }
+
+    /** Writes a block-compressed file. */
+    static class Writer {
+        /** A writer to OUT of rows with column titles TITLES and types
+         *  TYPES, which first writes the header.  The rows must be
+         *  distinct and in lexicographic order if SORTED. */
+        Writer(OutputStream out, String[] titles, ColumnType[] types,
+               boolean sorted) throws IOException {
+            _out = new DataOutputStream(out);
+            _out.write(MAGIC);
+            _out.writeInt(titles.length);
+            for (int k = 0; k < titles.length; k += 1) {
+                _out.writeUTF(titles[k]);
+                _out.writeUTF(types[k].typeName());
+            }
+            _out.writeByte(sorted ? SORTED : 0);
+            _types = types;
+            _block = new String[titles.length][BLOCK_ROWS];
+            _rows = 0;
+        }
+
+        /** Add ROW (whose values are copied) as the next row. */
+        void add(String[] row) throws IOException {
+            for (int k = 0; k < row.length; k += 1) {
+                _block[k][_rows] = row[k];
+            }
+            _rows += 1;
+            if (_rows == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        /** Write any remaining rows and the end of the file, and flush
+         *  the output (without closing it). */
+        void finish() throws IOException {
+            if (_rows > 0) {
+                writeBlock();
+            }
+            _out.writeInt(0);
+            _out.flush();
+        }
+
+        /** Write the rows in _block as a block. */
+        private void writeBlock() throws IOException {
+            _out.writeInt(_rows);
+            for (int k = 0; k < _block.length; k += 1) {
+                String[] column = _block[k];
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte kind = encode(column, _rows, bytes);
+                String min, max;
+                min = max = column[0];
+                for (int i = 1; i < _rows; i += 1) {
+                    if (_types[k].compare(column[i], min) < 0) {
+                        min = column[i];
+                    } else if (_types[k].compare(column[i], max) > 0) {
+                        max = column[i];
+                    }
+                }
+                _out.writeByte(kind);
+                writeString(_out, min);
+                writeString(_out, max);
+                _out.writeInt(bytes.size());
+                bytes.writeTo(_out);
+            }
+            _rows = 0;
+        }
+
+        /** Where the file goes. */
+        private final DataOutputStream _out;
+        /** Column types. */
+        private final ColumnType[] _types;
+        /** The values of the rows of the current block, by column. */
+        private final String[][] _block;
+        /** Number of rows in the current block. */
+        private int _rows;
+    }
+
+    /** Encode the first N of VALUES onto OUT, returning the encoding
+     *  used. */
+    static byte encode(String[] values, int n, OutputStream out)
+        throws IOException {
+        int runs;
+        runs = 1;
+        for (int i = 1; i < n; i += 1) {
+            if (!values[i].equals(values[i - 1])) {
+                runs += 1;
+            }
+        }
+        if (runs <= n / 4) {
+            DataOutputStream data = new DataOutputStream(out);
+            int start = 0;
+            for (int i = 1; i <= n; i += 1) {
+                if (i == n || !values[i].equals(values[start])) {
+                    data.writeInt(i - start);
+                    writeString(data, values[start]);
+                    start = i;
+                }
+            }
+            data.flush();
+            return RUN_LENGTH;
+        }
+        HashMap<String, Integer> codes = new HashMap<>();
+        for (int i = 0; i < n && codes.size() <= n / 4; i += 1) {
+            codes.putIfAbsent(values[i], codes.size());
+        }
+        if (codes.size() <= n / 4 && codes.size() <= 1 << 16) {
+            DataOutputStream data = new DataOutputStream(out);
+            String[] entries = new String[codes.size()];
+            codes.forEach((value, code) -> entries[code] = value);
+            data.writeInt(entries.length);
+            for (String entry : entries) {
+                writeString(data, entry);
+            }
+            for (int i = 0; i < n; i += 1) {
+                int code = codes.get(values[i]);
+                if (entries.length > 1 << 8) {
+                    data.writeShort(code);
+                } else {
+                    data.writeByte(code);
+                }
+            }
+            data.flush();
+            return DICTIONARY;
+        }
+        DataOutputStream data =
+            new DataOutputStream(new DeflaterOutputStream(out));
+        for (int i = 0; i < n; i += 1) {
+            writeString(data, values[i]);
+        }
+        data.close();
+        return DEFLATED;
+    }
+
+    /** Return the N values encoded in BYTES with encoding KIND. */
+    static String[] decode(byte kind, byte[] bytes, int n)
+        throws IOException {
+        String[] values = new String[n];
+        DataInputStream data =
+            new DataInputStream(new ByteArrayInputStream(bytes));
+        switch (kind) {
+        case RUN_LENGTH:
+            for (int i = 0; i < n;) {
+                int run = data.readInt();
+                String value = readString(data);
+                if (run <= 0 || i + run > n) {
+                    throw new IOException("bad run length");
+                }
+                Arrays.fill(values, i, i + run, value);
+                i += run;
+            }
+            break;
+        case DICTIONARY:
+            String[] entries = new String[data.readInt()];
+            for (int k = 0; k < entries.length; k += 1) {
+                entries[k] = readString(data);
+            }
+            for (int i = 0; i < n; i += 1) {
+                values[i] = entries[entries.length > 1 << 8
+                                    ? data.readUnsignedShort()
+                                    : data.readUnsignedByte()];
+            }
+            break;
+        case DEFLATED:
+            data = new DataInputStream(new InflaterInputStream(data));
+            for (int i = 0; i < n; i += 1) {
+                values[i] = readString(data);
+            }
+            break;
+        default:
+            throw new IOException("unknown column encoding");
+        }
+        return values;
+    }
+
+    /** Reads a block-compressed file. */
+    static class Reader {
+        /** A reader from IN, positioned just after MAGIC, which reads the
+         *  rest of the header. */
+        Reader(InputStream in) throws IOException {
+            _in = new DataInputStream(in);
+            int n = _in.readInt();
+            if (n <= 0) {
+                throw new IOException("bad header");
+            }
+            _titles = new String[n];
+            _types = new ColumnType[n];
+            for (int k = 0; k < n; k += 1) {
+                _titles[k] = _in.readUTF();
+                _types[k] = ColumnType.named(_in.readUTF());
+            }
+            _flags = _in.readByte();
+        }
+
+        /** Return true iff the rows are distinct and in lexicographic
+         *  order. */
+        boolean sorted() {
+            return (_flags & SORTED) != 0;
+        }
+
+        /** Return the column titles. */
+        String[] titles() {
+            return _titles;
+        }
+
+        /** Return the column types. */
+        ColumnType[] types() {
+            return _types;
+        }
+
+        /** Call VISITOR with each row of the file, in order.  The blocks
+         *  are read in order but decoded in parallel, with a bounded
+         *  number of decoded blocks waiting to be visited. */
+        void rows(Consumer<String[]> visitor) throws IOException {
+            ArrayDeque<Future<String[][]>> pending = new ArrayDeque<>();
+            try {
+                while (true) {
+                    int n = _in.readInt();
+                    if (n == 0) {
+                        break;
+                    }
+                    if (n < 0 || n > BLOCK_ROWS) {
+                        throw new IOException("bad block");
+                    }
+                    byte[] kinds = new byte[_titles.length];
+                    byte[][] columns = new byte[_titles.length][];
+                    for (int k = 0; k < columns.length; k += 1) {
+                        kinds[k] = _in.readByte();
+                        readString(_in);
+                        readString(_in);
+                        columns[k] = new byte[_in.readInt()];
+                        _in.readFully(columns[k]);
+                    }
+                    pending.add(DECODERS.submit(() -> {
+                        String[][] block = new String[columns.length][];
+                        for (int k = 0; k < columns.length; k += 1) {
+                            block[k] = decode(kinds[k], columns[k], n);
+                        }
+                        return block;
+                    }));
+                    if (pending.size() >= 2 * THREADS) {
+                        visit(pending.remove(), visitor);
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    visit(pending.remove(), visitor);
+                }
+            } catch (EOFException excp) {
+                throw new IOException("truncated file");
+            } finally {
+                for (Future<String[][]> block : pending) {
+                    block.cancel(true);
+                }
+            }
+        }
+
+        /** Call VISITOR with each row of the decoded BLOCK. */
+        private void visit(Future<String[][]> block,
+                           Consumer<String[]> visitor) throws IOException {
+            String[][] columns;
+            try {
+                columns = block.get();
+            } catch (ExecutionException excp) {
+                throw new IOException("bad block");
+            } catch (InterruptedException excp) {
+                throw new IOException("interrupted");
+            }
+            for (int i = 0; i < columns[0].length; i += 1) {
+                String[] row = new String[columns.length];
+                for (int k = 0; k < row.length; k += 1) {
+                    row[k] = columns[k][i];
+                }
+                visitor.accept(row);
+            }
+        }
+
+        /** Where the file comes from. */
+        private final DataInputStream _in;
+        /** Column titles. */
+        private final String[] _titles;
+        /** Column types. */
+        private final ColumnType[] _types;
+        /** Flags from the header. */
+        private final byte _flags;
+    }
+
+    /** The columns of a file, each of which can be decoded on its own.
+     *  Reading the file's directory of blocks skips over their contents,
+     *  and decoding a column reads only its part of each block.  The file
+     *  stays open until closed, so that its contents remain available
+     *  even if it is replaced. */
+    static class Columns {
+        /** The columns of FILE, which must be block-compressed. */
+        Columns(Path file) throws IOException {
+            _channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                DataInputStream in =
+                    new DataInputStream(Channels.newInputStream(_channel));
+                if (!isBlockFile(in)) {
+                    throw new IOException("not a block file");
+                }
+                Reader header = new Reader(in);
+                _titles = header.titles();
+                _types = header.types();
+                _sorted = header.sorted();
+                ArrayList<Integer> sizes = new ArrayList<>();
+                ArrayList<long[]> offsets = new ArrayList<>();
+                ArrayList<int[]> lengths = new ArrayList<>();
+                ArrayList<byte[]> kinds = new ArrayList<>();
+                ArrayList<String[]> mins = new ArrayList<>();
+                ArrayList<String[]> maxes = new ArrayList<>();
+                _rows = 0;
+                for (int n = in.readInt(); n != 0; n = in.readInt()) {
+                    if (n < 0 || n > BLOCK_ROWS) {
+                        throw new IOException("bad block");
+                    }
+                    long[] offset = new long[_titles.length];
+                    int[] length = new int[_titles.length];
+                    byte[] kind = new byte[_titles.length];
+                    String[] min = new String[_titles.length];
+                    String[] max = new String[_titles.length];
+                    for (int k = 0; k < _titles.length; k += 1) {
+                        kind[k] = in.readByte();
+                        min[k] = readString(in);
+                        max[k] = readString(in);
+                        length[k] = in.readInt();
+                        offset[k] = _channel.position();
+                        _channel.position(offset[k] + length[k]);
+                    }
+                    sizes.add(n);
+                    offsets.add(offset);
+                    lengths.add(length);
+                    kinds.add(kind);
+                    mins.add(min);
+                    maxes.add(max);
+                    _rows += n;
+                }
+                _sizes = sizes;
+                _offsets = offsets;
+                _lengths = lengths;
+                _kinds = kinds;
+                _mins = mins;
+                _maxes = maxes;
+            } catch (IOException | RuntimeException excp) {
+                _channel.close();
+                throw excp;
+            }
+        }
+
+        /** Return the column titles. */
+        String[] titles() {
+            return _titles;
+        }
+
+        /** Return the column types. */
+        ColumnType[] types() {
+            return _types;
+        }
+
+        /** Return true iff the rows are distinct and in lexicographic
+         *  order. */
+        boolean sorted() {
+            return _sorted;
+        }
+
+        /** Return the number of rows. */
+        int rows() {
+            return _rows;
+        }
+
+        /** Return the least value of column K in the block holding row
+         *  number ROW. */
+        String min(int row, int k) {
+            return _mins.get(row / BLOCK_ROWS)[k];
+        }
+
+        /** Return the greatest value of column K in the block holding row
+         *  number ROW. */
+        String max(int row, int k) {
+            return _maxes.get(row / BLOCK_ROWS)[k];
+        }
+
+        /** Decode column K into COLUMN, which must be empty, decoding
+         *  blocks in parallel. */
+        void read(int k, ColumnStorage column) throws IOException {
+            ArrayDeque<Future<String[]>> pending = new ArrayDeque<>();
+            try {
+                for (int b = 0; b < _sizes.size(); b += 1) {
+                    ByteBuffer bytes =
+                        ByteBuffer.allocate(_lengths.get(b)[k]);
+                    long position = _offsets.get(b)[k];
+                    while (bytes.hasRemaining()) {
+                        int n = _channel.read(bytes,
+                                              position + bytes.position());
+                        if (n < 0) {
+                            throw new IOException("truncated file");
+                        }
+                    }
+                    byte kind = _kinds.get(b)[k];
+                    int n = _sizes.get(b);
+                    pending.add(DECODERS.submit(
+                        () -> decode(kind, bytes.array(), n)));
+                    if (pending.size() >= 2 * THREADS) {
+                        append(pending.remove(), column);
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    append(pending.remove(), column);
+                }
+            } finally {
+                for (Future<String[]> values : pending) {
+                    values.cancel(true);
+                }
+            }
+        }
+
+        /** Append the decoded VALUES to COLUMN. */
+        private void append(Future<String[]> values, ColumnStorage column)
+            throws IOException {
+            try {
+                for (String value : values.get()) {
+                    column.append(value);
+                }
+            } catch (ExecutionException excp) {
+                throw new IOException("bad block");
+            } catch (InterruptedException excp) {
+                throw new IOException("interrupted");
+            }
+        }
+
+        /** Close the file. */
+        void close() {
+            try {
+                _channel.close();
+            } catch (IOException excp) {
+                /* Ignore IOException */
+            }
+        }
+
+        /** The open file. */
+        private final FileChannel _channel;
+        /** Column titles. */
+        private final String[] _titles;
+        /** Column types. */
+        private final ColumnType[] _types;
+        /** True iff the rows are distinct and in lexicographic order. */
+        private final boolean _sorted;
+        /** Total number of rows. */
+        private int _rows;
+        /** Number of rows in each block. */
+        private final ArrayList<Integer> _sizes;
+        /** For each block, the position in the file of each column. */
+        private final ArrayList<long[]> _offsets;
+        /** For each block, the encoded length of each column. */
+        private final ArrayList<int[]> _lengths;
+        /** For each block, the encoding of each column. */
+        private final ArrayList<byte[]> _kinds;
+        /** For each block, the least and greatest values of each
+         *  column. */
+        private final ArrayList<String[]> _mins, _maxes;
+    }
+
+    /** Number of threads decoding blocks. */
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Decodes blocks of files being read. */
+    private static final ExecutorService DECODERS =
+        Executors.newFixedThreadPool(THREADS, r -> {
+            Thread thread = new Thread(r, "block decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+}
@@ -0,0 +1,73 @@
+package db61b;
+
+/** A Bloom filter over 64-bit hash values: a set that may report false
+ *  positives but never false negatives.  Each value sets HASHES bits,
+ *  chosen by double hashing from the two halves of its hash.
+ *  @author Brandon Griffin
+ */
+class BloomFilter {
+
+    /** Number of bits set per value. */
+    static final int HASHES = 7;
+    /** Bits per expected value, giving a false-positive rate near 1%. */
+    static final int BITS_PER_VALUE = 10;
+
+    /** An empty filter sized for about EXPECTED values. */
+    BloomFilter(int expected) {
+        _capacity = Math.max(64, expected);
+        long bits = (long) _capacity * BITS_PER_VALUE;
+        _bits = new long[(int) Math.min((bits + 63) / 64, 1 << 28)];
+        _numBits = (long) _bits.length * 64;
+        _count = 0;
+    }
+
+    /** Add a value whose hash is HASH. */
+    void add(long hash) {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i += 1) {
+            long bit = Math.floorMod(h1 + (long) i * h2, _numBits);
+            _bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        _count += 1;
+    }
+
+    /** Return false if no value whose hash is HASH has been added. */
+    boolean mightContain(long hash) {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i += 1) {
+            long bit = Math.floorMod(h1 + (long) i * h2, _numBits);
+            if ((_bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return true iff more values have been added than I was sized for,
+     *  so that my false-positive rate is climbing. */
+    boolean full() {
+        return _count > _capacity;
+    }
+
+    /** Return the number of values I was sized for. */
+    int capacity() {
+        return _capacity;
+    }
+
+    /** Return a well-mixed 64-bit hash of the 32-bit hash codes
+     *  accumulated in H (by the finalizer of SplitMix64). */
+    static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    /** The bit array. */
+    private final long[] _bits;
+    /** Number of bits in _bits. */
+    private final long _numBits;
+    /** Number of values I was sized for. */
+    private final int _capacity;
+    /** Number of values added. */
+    private int _count;
+}
@@ -0,0 +1,225 @@
+package db61b;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static db61b.Utils.*;
+
+/** A fixed number of in-memory frames caching fixed-size pages of a
+ *  scratch file.  Pages are pinned while in use and are evicted, least
+ *  recently used first as approximated by the clock algorithm, only when
+ *  unpinned.  Dirty pages are written back on eviction.
+ *  @author Brandon Griffin
+ */
+class BufferPool {
+
+    /** Size of a page in bytes.  Even, so that no UTF-16 character
+     *  straddles two pages. */
+    static final int PAGE_SIZE = 8192;
+    /** Default memory budget in bytes. */
+    static final long DEFAULT_BUDGET = 64L << 20;
+    /** The smallest number of frames a pool may have. */
+    static final int MIN_FRAMES = 8;
+
+    /** A pool whose frames occupy no more than BUDGET bytes (but at least
+     *  MIN_FRAMES pages). */
+    BufferPool(long budget) {
+        _pageTable = new HashMap<>();
+        _freePages = new ArrayList<>();
+        _pages = 0;
+        setBudget(budget);
+    }
+
+    /** Return the pool shared by all paged tables. */
+    static synchronized BufferPool shared() {
+        if (_shared == null) {
+            _shared = new BufferPool(DEFAULT_BUDGET);
+        }
+        return _shared;
+    }
+
+    /** Resize me to use no more than BUDGET bytes.  Requires that no
+     *  pages be pinned. */
+    synchronized void setBudget(long budget) {
+        int n = (int) Math.max(MIN_FRAMES,
+                               Math.min(budget / PAGE_SIZE,
+                                        Integer.MAX_VALUE));
+        if (_frames != null) {
+            for (int f = 0; f < _frames.length; f += 1) {
+                if (_pins[f] > 0) {
+                    throw error("cannot resize buffer pool while in use");
+                }
+                evict(f);
+            }
+        }
+        _frames = new ByteBuffer[n];
+        _framePage = new int[n];
+        _pins = new int[n];
+        _referenced = new boolean[n];
+        _dirty = new boolean[n];
+        Arrays.fill(_framePage, -1);
+        _hand = 0;
+    }
+
+    /** Return the number of frames I hold. */
+    synchronized int frames() {
+        return _frames.length;
+    }
+
+    /** Return the number of a newly allocated page. */
+    synchronized int allocate() {
+        if (!_freePages.isEmpty()) {
+            return _freePages.remove(_freePages.size() - 1);
+        }
+        _pages += 1;
+        return _pages - 1;
+    }
+
+    /** Return PAGE, which must be unpinned, to the free list. */
+    synchronized void free(int page) {
+        Integer f = _pageTable.remove(page);
+        if (f != null) {
+            _framePage[f] = -1;
+            _dirty[f] = false;
+            _referenced[f] = false;
+        }
+        _freePages.add(page);
+    }
+
+    /** Return a buffer holding the contents of PAGE, reading it in if
+     *  necessary.  The page stays in memory until a matching call to
+     *  unpin.  Accesses to the buffer must use absolute positions. */
+    synchronized ByteBuffer pin(int page) {
+        Integer f = _pageTable.get(page);
+        if (f == null) {
+            f = victim();
+            evict(f);
+            if (_frames[f] == null) {
+                _frames[f] = ByteBuffer.allocateDirect(PAGE_SIZE);
+            }
+            read(page, _frames[f]);
+            _framePage[f] = page;
+            _pageTable.put(page, f);
+        }
+        _pins[f] += 1;
+        _referenced[f] = true;
+        return _frames[f];
+    }
+
+    /** Release one pin on PAGE, noting that its contents have changed
+     *  if DIRTY. */
+    synchronized void unpin(int page, boolean dirty) {
+        int f = _pageTable.get(page);
+        _pins[f] -= 1;
+        _dirty[f] |= dirty;
+    }
+
+    /** Return the number of an unpinned frame to reuse, advancing the
+     *  clock hand past it. */
+    private int victim() {
+        for (int sweep = 0; sweep < 2 * _frames.length; sweep += 1) {
+            int f = _hand;
+            _hand = (_hand + 1) % _frames.length;
+            if (_pins[f] == 0) {
+                if (!_referenced[f]) {
+                    return f;
+                }
+                _referenced[f] = false;
+            }
+        }
+        throw error("buffer pool exhausted: all pages pinned");
+    }
+
+    /** Write back the page in frame F, if dirty, and empty F. */
+    private void evict(int f) {
+        int page = _framePage[f];
+        if (page < 0) {
+            return;
+        }
+        if (_dirty[f]) {
+            write(page, _frames[f]);
+            _dirty[f] = false;
+        }
+        _pageTable.remove(page);
+        _framePage[f] = -1;
+    }
+
+    /** Read PAGE into BUF, zero-filling any part beyond the end of the
+     *  file. */
+    private void read(int page, ByteBuffer buf) {
+        try {
+            buf.clear();
+            FileChannel channel = channel();
+            long pos = (long) page * PAGE_SIZE;
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, pos + buf.position()) < 0) {
+                    while (buf.hasRemaining()) {
+                        buf.put((byte) 0);
+                    }
+                }
+            }
+            buf.clear();
+        } catch (IOException excp) {
+            throw error("could not read page %d: %s", page,
+                        excp.getMessage());
+        }
+    }
+
+    /** Write BUF as the contents of PAGE. */
+    private void write(int page, ByteBuffer buf) {
+        try {
+            buf.clear();
+            FileChannel channel = channel();
+            long pos = (long) page * PAGE_SIZE;
+            while (buf.hasRemaining()) {
+                channel.write(buf, pos + buf.position());
+            }
+            buf.clear();
+        } catch (IOException excp) {
+            throw error("could not write page %d: %s", page,
+                        excp.getMessage());
+        }
+    }
+
+    /** Return the channel of my scratch file, creating it if needed. */
+    private FileChannel channel() throws IOException {
+        if (_channel == null) {
+            File file = File.createTempFile("db61b", ".pages");
+            file.deleteOnExit();
+            _channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        return _channel;
+    }
+
+    /** The pool shared by all paged tables. */
+    private static BufferPool _shared;
+
+    /** My frames.  _frames[f] caches page _framePage[f] (-1 if none),
+     *  has _pins[f] pins, and has been used since the clock hand last
+     *  passed it if _referenced[f]. */
+    private ByteBuffer[] _frames;
+    /** Page in each frame, or -1. */
+    private int[] _framePage;
+    /** Pin count of each frame. */
+    private int[] _pins;
+    /** Reference bit of each frame. */
+    private boolean[] _referenced;
+    /** True for frames that must be written back before reuse. */
+    private boolean[] _dirty;
+    /** Position of the clock hand. */
+    private int _hand;
+    /** Maps resident page numbers to frames. */
+    private HashMap<Integer, Integer> _pageTable;
+    /** Pages previously allocated and since freed. */
+    private ArrayList<Integer> _freePages;
+    /** Number of pages allocated so far in the scratch file. */
+    private int _pages;
+    /** The scratch file, or null if not yet created. */
+    private FileChannel _channel;
+}
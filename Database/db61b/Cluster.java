@@ -0,0 +1,916 @@
+package db61b;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+
+import static db61b.Utils.*;
+
+/** A coordinator's connection to a number of worker processes, each a
+ *  db61b interpreter in its own JVM on this machine (see serve), among
+ *  which the rows of sharded tables are divided by a hash of the value of
+ *  one column.  The coordinator keeps an empty table with the columns of
+ *  each sharded table, so that statements about it are parsed and
+ *  checked as usual.  Rows inserted into it go to the workers that hold
+ *  their shards, and deletes and updates go to all workers.  A select
+ *  from it runs on the workers, each on its own shard, with its
+ *  conditions, any ordered limit, and partial aggregates pushed down,
+ *  and their results are merged.  A join whose tables are not both
+ *  sharded on a column they have in common first moves rows among the
+ *  workers (see shuffle).  Workers read statements, as text, from their
+ *  standard input, and write a reply to each on their standard output.
+ *  @author Brandon Griffin
+ */
+class Cluster {
+
+    /** Tags beginning the parts of a worker's reply to a statement: it
+     *  succeeded; it failed, and the message follows; or a table follows,
+     *  in the format of ResultWriter.Binary. */
+    static final int OK = 0, FAILED = 1, TABLE = 2;
+
+    /** Number of rows sent to a worker in one insert statement. */
+    static final int BATCH = 1024;
+
+    /** Time in seconds a stopping worker is given to exit. */
+    static final int STOP_SECONDS = 10;
+
+    /** Names under which workers hold the rows of the first and second
+     *  tables of a join that were moved among them. */
+    private static final String[] SHUFFLED = { "_shuffle0", "_shuffle1" };
+
+    /** A cluster of COUNT new worker processes, each running this
+     *  program, from the same class path, with the same working
+     *  directory. */
+    Cluster(int count) {
+        _workers = new ArrayList<Worker>();
+        _sharded = new HashMap<Table, Partitioning>();
+        _names = new HashMap<Table, String>();
+        try {
+            for (int w = 0; w < count; w += 1) {
+                _workers.add(new Worker(w, count));
+            }
+        } catch (DBException excp) {
+            close();
+            throw excp;
+        }
+    }
+
+    /** Return my number of workers. */
+    int size() {
+        return _workers.size();
+    }
+
+    /** Stop my workers.  The tables sharded among them are lost. */
+    void close() {
+        for (Worker worker : _workers) {
+            worker.close();
+        }
+        _workers.clear();
+    }
+
+    /** Return true iff any of TABLES (ignoring nulls) is sharded among my
+     *  workers. */
+    boolean sharded(Table... tables) {
+        for (Table table : tables) {
+            if (table != null && _sharded.containsKey(table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the partitioning that divides the rows of TABLE among my
+     *  workers, or null if it is not sharded. */
+    Partitioning sharding(Table table) {
+        return _sharded.get(table);
+    }
+
+    /** Create the table NAME on my workers, with the columns of TABLE,
+     *  sharded by the value of its column COLUMN, and add the rows of
+     *  TABLE to it.  Return an empty table with the same columns, which
+     *  stands for the new table on the coordinator. */
+    Table create(String name, Table table, int column) {
+        Table stub = new Table(titles(table), types(table),
+                               ColumnStorage.Kind.HEAP,
+                               RowOrder.LEXICOGRAPHIC);
+        run("create table " + name + " " + definition(table) + ";",
+            all(), null);
+        shard(name, stub, column);
+        Router router = router(name);
+        table.forEachRow(k -> router.route(values(table, k),
+                                           _sharded.get(stub)));
+        router.flush();
+        return stub;
+    }
+
+    /** Have my workers each load their shard of the table in the file
+     *  NAME.db, divided by the value of its column named COLUMN, and
+     *  return an empty table with its columns, which stands for it on the
+     *  coordinator. */
+    Table load(String name, String column) {
+        Table stub = Table.readSchema(name);
+        int col = stub.findColumn(column);
+        if (col == -1) {
+            throw error("unknown column: %s", column);
+        }
+        run("load " + name + " shard by (" + column + ");", all(), null);
+        shard(name, stub, col);
+        return stub;
+    }
+
+    /** Record that STUB stands for the table NAME, whose rows are
+     *  divided among my workers by the value of its column COLUMN. */
+    private void shard(String name, Table stub, int column) {
+        _sharded.put(stub, Partitioning.hash(column, stub.getTitle(column),
+                                             stub.getType(column), size()));
+        _names.put(stub, name);
+    }
+
+    /** Add a row with VALUES to the sharded table TABLE, on the worker
+     *  that holds its shard. */
+    void insert(Table table, String[] values) {
+        if (values.length != table.columns()) {
+            throw error("wrong number of values");
+        }
+        for (int j = 0; j < values.length; j += 1) {
+            table.getType(j).check(values[j]);
+        }
+        Router router = router(_names.get(table));
+        router.route(values.clone(), _sharded.get(table));
+        router.flush();
+    }
+
+    /** Run STATEMENT, which modifies a sharded table, on all my
+     *  workers. */
+    void broadcast(String statement) {
+        run(statement, all(), null);
+    }
+
+    /** Run STATEMENT, which modifies the rows of a sharded table that
+     *  satisfy CONDITIONS, on all my workers.  The workers hold none of
+     *  the coordinator's tables, so CONDITIONS may not have subqueries. */
+    void modify(String statement, List<Condition> conditions) {
+        for (Condition cond : conditions) {
+            if (cond.subquery()) {
+                throw error("cannot use subqueries on sharded tables");
+            }
+        }
+        broadcast(statement);
+    }
+
+    /** Return a table holding all rows of the sharded table TABLE. */
+    Table contents(Table table) {
+        ArrayList<String> columns =
+            new ArrayList<String>(Arrays.asList(titles(table)));
+        ArrayList<String> functions = new ArrayList<String>();
+        for (String column : columns) {
+            functions.add(null);
+        }
+        return select(new Table[] { table, null }, columns, functions,
+                      columns, new ArrayList<Condition>(), null,
+                      new ArrayList<String>(), new ArrayList<Boolean>(),
+                      RowOrder.LEXICOGRAPHIC, -1);
+    }
+
+    /** Return the result of a select from T[0] and T[1] (which may be
+     *  null), at least one of which is sharded, as parsed by
+     *  CommandInterpreter.selectClause: the Kth item selected is titled
+     *  COLUMNS[K], and is FUNCTIONS[K] applied to the column ARGUMENTS[K]
+     *  (or the column itself, if FUNCTIONS[K] is null), of the rows
+     *  satisfying CONDITIONS, grouped by GROUPBY (or null), and the
+     *  result is ordered by the columns ORDERBY, descending where
+     *  DESCENDING says so, which is ORDER, and is limited to LIMIT rows
+     *  if LIMIT is not negative. */
+    Table select(Table[] t, List<String> columns, List<String> functions,
+                 List<String> arguments, List<Condition> conditions,
+                 List<Column> groupBy, List<String> orderBy,
+                 List<Boolean> descending, RowOrder order, int limit) {
+        for (Condition cond : conditions) {
+            if (cond.subquery()) {
+                throw error("cannot use subqueries on sharded tables");
+            }
+        }
+        String[] names = new String[2];
+        BitSet targets = all();
+        if (t[1] == null) {
+            names[0] = _names.get(t[0]);
+            targets = _sharded.get(t[0]).candidates(t[0], conditions);
+            if (targets.isEmpty()) {
+                targets.set(0);
+            }
+        } else if (colocated(t[0], t[1])) {
+            names[0] = _names.get(t[0]);
+            names[1] = _names.get(t[1]);
+        } else {
+            shuffle(t, conditions, names);
+        }
+        Table[] sources = t[1] == null ? new Table[] { t[0] } : t;
+        try {
+            boolean aggregated = groupBy != null;
+            for (String function : functions) {
+                aggregated |= function != null;
+            }
+            String from = " from " + names[0]
+                + (names[1] == null ? "" : ", " + names[1])
+                + where(conditions);
+            if (aggregated) {
+                return aggregate(sources, from, targets, columns, functions,
+                                 arguments, groupBy, order, limit);
+            }
+            ColumnType[] types = new ColumnType[columns.size()];
+            for (int k = 0; k < types.length; k += 1) {
+                types[k] = new Column(columns.get(k), sources).getType();
+            }
+            String text = "select " + String.join(", ", columns) + from;
+            if (limit >= 0) {
+                text += orderBy(orderBy, descending) + " limit " + limit;
+            }
+            Table merged = new Table(columns, Arrays.asList(types),
+                                     ColumnStorage.Kind.HEAP,
+                                     RowOrder.LEXICOGRAPHIC);
+            ExternalSort rows = merged.sorter();
+            run(text + ";", targets, (values, w) -> rows.add(values));
+            merged.fill(rows);
+            if (orderBy.isEmpty() && limit < 0) {
+                return merged;
+            }
+            return merged.select(null, columns, new ArrayList<Condition>(),
+                                 order, limit);
+        } finally {
+            for (int s = 0; s < 2; s += 1) {
+                if (SHUFFLED[s].equals(names[s])) {
+                    run("delete from " + SHUFFLED[s] + ";", all(), null);
+                }
+            }
+        }
+    }
+
+    /** Return the result of an aggregating select, as for select, whose
+     *  text after the select list is FROM, from the tables SOURCES, as
+     *  found on the workers in TARGETS.  Each worker computes the counts,
+     *  sums, minima, and maxima of its own rows for each group; the
+     *  coordinator then combines them, summing counts and sums, and
+     *  taking the least minima and greatest maxima.  Without grouping, a
+     *  count of each worker's rows lets the coordinator ignore the
+     *  workers that had none. */
+    private Table aggregate(Table[] sources, String from, BitSet targets,
+                            List<String> columns, List<String> functions,
+                            List<String> arguments, List<Column> groupBy,
+                            RowOrder order, int limit) {
+        ArrayList<Column> keys = new ArrayList<Column>();
+        if (groupBy != null) {
+            keys.addAll(groupBy);
+        }
+        ArrayList<Column> args = new ArrayList<Column>();
+        for (String arg : arguments) {
+            args.add(arg == null ? null : new Column(arg, sources));
+        }
+        /* Checks that the select list is valid. */
+        new Aggregation(functions, args, keys, columns);
+
+        ArrayList<String> items = new ArrayList<String>();
+        ArrayList<String> titles = new ArrayList<String>();
+        ArrayList<String> partials = new ArrayList<String>();
+        ArrayList<Column> inputs = new ArrayList<Column>();
+        for (Column key : keys) {
+            items.add(key.getName());
+            titles.add(key.getName());
+            partials.add(null);
+            inputs.add(key);
+        }
+        int counted = -1;
+        for (int k = 0; k <= functions.size(); k += 1) {
+            String function, arg;
+            if (k < functions.size()) {
+                function = functions.get(k);
+                arg = arguments.get(k);
+            } else if (keys.isEmpty() && counted == -1) {
+                function = "count";
+                arg = null;
+            } else {
+                break;
+            }
+            String title = Aggregation.title(function, arg);
+            if (function == null || titles.contains(title)) {
+                continue;
+            }
+            if (function.equals("count") && arg == null) {
+                counted = titles.size();
+            }
+            items.add(function + "(" + (arg == null ? "*" : arg) + ")");
+            titles.add(title);
+            partials.add(function);
+            inputs.add(arg == null ? null : new Column(arg, sources));
+        }
+        ArrayList<ColumnType> types = new ArrayList<ColumnType>(Arrays.asList
+            (new Aggregation(partials, inputs, keys, titles).types()));
+        titles.add("_worker");
+        types.add(ColumnType.STRING);
+        Table partial = new Table(titles, types, ColumnStorage.Kind.HEAP,
+                                  RowOrder.LEXICOGRAPHIC);
+        StringBuilder text = new StringBuilder("select ");
+        text.append(String.join(", ", items)).append(from);
+        for (int g = 0; g < keys.size(); g += 1) {
+            text.append(g == 0 ? " group by " : ", ");
+            text.append(keys.get(g).getName());
+        }
+        int count = keys.isEmpty() ? counted : -1;
+        ExternalSort rows = partial.sorter();
+        run(text + ";", targets, (values, w) -> {
+            String[] row = partialRow(values, w, count);
+            if (row != null) {
+                rows.add(row);
+            }
+        });
+        partial.fill(rows);
+        return combine(partial, columns, functions, arguments, keys, order,
+                       limit);
+    }
+
+    /** Return the row of a table of partial aggregates (see aggregate)
+     *  that holds VALUES, the partial aggregates of one group from worker
+     *  number W, followed by W.  Return null instead if column COUNT (if
+     *  not -1) of VALUES is a count of 0, showing that the worker had no
+     *  rows, and so that its minima and maxima are meaningless. */
+    static String[] partialRow(String[] values, int w, int count) {
+        if (count != -1 && values[count].equals("0")) {
+            return null;
+        }
+        String[] row = Arrays.copyOf(values, values.length + 1);
+        row[values.length] = Integer.toString(w);
+        return row;
+    }
+
+    /** Return the result of the aggregating select whose select list is
+     *  given by COLUMNS, FUNCTIONS, and ARGUMENTS, and whose groups are
+     *  given by KEYS, as for select, from PARTIAL, which holds the
+     *  partial aggregates computed by each worker: a row for each
+     *  group on each worker, whose columns are those of KEYS and an
+     *  aggregate for each function and argument, titled as by
+     *  Aggregation.title.  Partial counts and sums are summed, and the
+     *  least of the minima and greatest of the maxima are taken.  The
+     *  result's rows are in order ORDER, and, if LIMIT >= 0, only the
+     *  first LIMIT are kept. */
+    static Table combine(Table partial, List<String> columns,
+                         List<String> functions, List<String> arguments,
+                         List<Column> keys, RowOrder order, int limit) {
+        ArrayList<String> combiners = new ArrayList<String>();
+        ArrayList<Column> combined = new ArrayList<Column>();
+        for (int k = 0; k < functions.size(); k += 1) {
+            String function = functions.get(k);
+            if (function == null) {
+                combiners.add(null);
+                combined.add(new Column(arguments.get(k), partial));
+            } else {
+                combiners.add(function.equals("count") ? "sum" : function);
+                combined.add(new Column(Aggregation.title(function,
+                                                          arguments.get(k)),
+                                        partial));
+            }
+        }
+        ArrayList<Column> groups = new ArrayList<Column>();
+        for (Column key : keys) {
+            groups.add(new Column(key.getName(), partial));
+        }
+        Aggregation agg = new Aggregation(combiners, combined, groups,
+                                          columns);
+        Table result = new Table(columns, Arrays.asList(agg.types()),
+                                 ColumnStorage.Kind.HEAP, order);
+        result.fill(new Operator.Aggregate(partial.plan(null,
+                                                        new ArrayList<>(),
+                                                        false),
+                                           agg),
+                    limit, order == RowOrder.LEXICOGRAPHIC);
+        return result;
+    }
+
+    /** Return true iff T0 and T1 are both sharded by the values of a
+     *  column they have in common, so that rows of each that join are on
+     *  the same worker. */
+    private boolean colocated(Table t0, Table t1) {
+        Partitioning p0 = _sharded.get(t0), p1 = _sharded.get(t1);
+        return p0 != null && p1 != null
+            && t0.getTitle(p0.column()).equals(t1.getTitle(p1.column()))
+            && t0.getType(p0.column()) == t1.getType(p1.column());
+    }
+
+    /** Move the rows of T[0] and T[1], at least one of which is sharded,
+     *  that satisfy those of CONDITIONS that concern only one of them
+     *  into tables named SHUFFLED on my workers, so that each pair of
+     *  rows that join is on the same worker, and set NAMES[S] to the
+     *  name under which the workers then know T[S].  When the tables
+     *  have columns in common, the rows are divided by the value of one
+     *  of them, preferably one that a table is already sharded by, whose
+     *  rows then stay where they are; otherwise, the rows of one table
+     *  stay where they are, and those of the other are copied to every
+     *  worker.  Rows go by way of the coordinator. */
+    private void shuffle(Table[] t, List<Condition> conditions,
+                         String[] names) {
+        String key = null;
+        for (int j = 0; j < t[0].columns(); j += 1) {
+            String title = t[0].getTitle(j);
+            if (t[1].findColumn(title) != -1
+                && (key == null || shardedBy(t[0], title)
+                    || shardedBy(t[1], title))) {
+                if (key == null || !shardedBy(t[0], key)
+                    && !shardedBy(t[1], key)) {
+                    key = title;
+                }
+            }
+        }
+        Partitioning[] by = new Partitioning[2];
+        boolean[] moved = new boolean[2];
+        if (key == null) {
+            int stay = _sharded.containsKey(t[0]) ? 0 : 1;
+            names[stay] = _names.get(t[stay]);
+            moved[1 - stay] = true;
+        } else {
+            ColumnType type0 = t[0].getType(t[0].findColumn(key)),
+                type1 = t[1].getType(t[1].findColumn(key));
+            ColumnType type = type0 == type1 ? type0 : ColumnType.STRING;
+            for (int s = 0; s < 2; s += 1) {
+                if (shardedBy(t[s], key) && type0 == type1) {
+                    names[s] = _names.get(t[s]);
+                } else {
+                    moved[s] = true;
+                    by[s] = Partitioning.hash(t[s].findColumn(key), key,
+                                              type, size());
+                }
+            }
+        }
+        for (int s = 0; s < 2; s += 1) {
+            if (moved[s]) {
+                names[s] = SHUFFLED[s];
+                move(t[s], s, conditions, by[s]);
+            }
+        }
+    }
+
+    /** Return true iff TABLE is sharded by the value of its column named
+     *  TITLE. */
+    private boolean shardedBy(Table table, String title) {
+        Partitioning sharding = _sharded.get(table);
+        return sharding != null
+            && table.getTitle(sharding.column()).equals(title);
+    }
+
+    /** Copy the rows of TABLE, the Sth table of a join, that satisfy
+     *  those of CONDITIONS that concern it alone into the table
+     *  SHUFFLED[S] on the workers to which BY assigns them, or on every
+     *  worker if BY is null. */
+    private void move(Table table, int s, List<Condition> conditions,
+                      Partitioning by) {
+        String name = SHUFFLED[s];
+        run("create table " + name + " " + definition(table) + ";", all(),
+            null);
+        ArrayList<Condition> mine = new ArrayList<Condition>();
+        for (Condition cond : conditions) {
+            if (cond.within(s)) {
+                mine.add(cond);
+            }
+        }
+        Router router = router(name);
+        if (_sharded.containsKey(table)) {
+            String text = "select " + String.join(", ", titles(table))
+                + " from " + _names.get(table) + where(mine) + ";";
+            for (int w = 0; w < size(); w += 1) {
+                router.hold(w);
+                run(text, one(w), (values, v) -> router.route(values, by));
+            }
+            router.hold(-1);
+        } else {
+            ArrayList<Condition> bound = new ArrayList<Condition>();
+            for (Condition cond : mine) {
+                bound.add(cond.bind(table));
+            }
+            table.forEachRow(k -> {
+                if (Condition.test(bound, k)) {
+                    router.route(values(table, k), by);
+                }
+            });
+        }
+        router.flush();
+    }
+
+    /** Send STATEMENT to each of the workers in TARGETS, and then read
+     *  their replies in turn, passing the rows of any table in a reply
+     *  from worker W to ROWS (if not null) along with W.  Throws the first
+     *  failure reported, once all have replied. */
+    private void run(String statement, BitSet targets,
+                     ObjIntConsumer<String[]> rows) {
+        DBException failure = null;
+        for (int w = targets.nextSetBit(0); w >= 0;
+             w = targets.nextSetBit(w + 1)) {
+            _workers.get(w).send(statement);
+        }
+        for (int w = targets.nextSetBit(0); w >= 0;
+             w = targets.nextSetBit(w + 1)) {
+            try {
+                _workers.get(w).reply(rows);
+            } catch (DBException excp) {
+                if (failure == null) {
+                    failure = excp;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Return the set of all my workers' numbers. */
+    private BitSet all() {
+        BitSet all = new BitSet();
+        all.set(0, size());
+        return all;
+    }
+
+    /** Return the set holding only worker number W. */
+    private static BitSet one(int w) {
+        BitSet one = new BitSet();
+        one.set(w);
+        return one;
+    }
+
+    /** Return the where clause that selects rows satisfying CONDITIONS,
+     *  or the empty string if there are none. */
+    private static String where(List<Condition> conditions) {
+        StringBuilder text = new StringBuilder();
+        for (Condition cond : conditions) {
+            text.append(text.length() == 0 ? " where " : " and ");
+            text.append(cond.text());
+        }
+        return text.toString();
+    }
+
+    /** Return the order by clause for the columns ORDERBY, descending
+     *  where DESCENDING says so, or the empty string if there are
+     *  none. */
+    private static String orderBy(List<String> orderBy,
+                                  List<Boolean> descending) {
+        StringBuilder text = new StringBuilder();
+        for (int k = 0; k < orderBy.size(); k += 1) {
+            text.append(k == 0 ? " order by " : ", ");
+            text.append(orderBy.get(k));
+            if (descending.get(k)) {
+                text.append(" desc");
+            }
+        }
+        return text.toString();
+    }
+
+    /** Return the parenthesized list of column definitions of a create
+     *  statement for a table with the columns of TABLE. */
+    private static String definition(Table table) {
+        StringBuilder text = new StringBuilder("(");
+        for (int j = 0; j < table.columns(); j += 1) {
+            text.append(j == 0 ? "" : ", ").append(table.getTitle(j));
+            text.append(' ').append(table.getType(j).typeName());
+        }
+        return text.append(')').toString();
+    }
+
+    /** Return the titles of the columns of TABLE. */
+    private static String[] titles(Table table) {
+        String[] titles = new String[table.columns()];
+        for (int j = 0; j < titles.length; j += 1) {
+            titles[j] = table.getTitle(j);
+        }
+        return titles;
+    }
+
+    /** Return the types of the columns of TABLE. */
+    private static ColumnType[] types(Table table) {
+        ColumnType[] types = new ColumnType[table.columns()];
+        for (int j = 0; j < types.length; j += 1) {
+            types[j] = table.getType(j);
+        }
+        return types;
+    }
+
+    /** Return the values of physical row K of TABLE. */
+    private static String[] values(Table table, int k) {
+        String[] values = new String[table.columns()];
+        for (int j = 0; j < values.length; j += 1) {
+            values[j] = table.value(k, j);
+        }
+        return values;
+    }
+
+    /** Return a Router of rows into the tables NAME on my workers. */
+    private Router router(String name) {
+        return new Router(name, size(), (text, w) -> run(text, one(w), null));
+    }
+
+    /** Queues rows for insertion into the table of some name on each of
+     *  a number of workers, and sends each worker its rows in insert
+     *  statements of up to BATCH rows. */
+    static class Router {
+        /** A Router of rows into the tables NAME on WORKERS workers, which
+         *  sends statement S to worker W with SEND.accept(S, W). */
+        Router(String name, int workers, ObjIntConsumer<String> send) {
+            _name = name;
+            _send = send;
+            _queues = new ArrayList<ArrayList<String[]>>();
+            for (int w = 0; w < workers; w += 1) {
+                _queues.add(new ArrayList<String[]>());
+            }
+            _held = -1;
+        }
+
+        /** Queue VALUES for the worker to which BY assigns them, or for
+         *  every worker if BY is null. */
+        void route(String[] values, Partitioning by) {
+            if (by != null) {
+                add(by.partition(values[by.column()]), values);
+            } else {
+                for (int w = 0; w < _queues.size(); w += 1) {
+                    add(w, values);
+                }
+            }
+        }
+
+        /** Send nothing to worker W (none if W is -1), which may be busy
+         *  replying to another statement, until told to hold another,
+         *  and then send it the rows queued for it meanwhile. */
+        void hold(int w) {
+            int held = _held;
+            _held = w;
+            if (held != -1) {
+                send(held);
+            }
+        }
+
+        /** Send all queued rows. */
+        void flush() {
+            for (int w = 0; w < _queues.size(); w += 1) {
+                send(w);
+            }
+        }
+
+        /** Queue VALUES for worker W, sending its queue once it is full
+         *  unless W is held. */
+        private void add(int w, String[] values) {
+            ArrayList<String[]> queue = _queues.get(w);
+            queue.add(values);
+            if (queue.size() >= BATCH && w != _held) {
+                send(w);
+            }
+        }
+
+        /** Send the rows queued for worker W. */
+        private void send(int w) {
+            ArrayList<String[]> queue = _queues.get(w);
+            for (int start = 0; start < queue.size(); start += BATCH) {
+                StringBuilder text = new StringBuilder("insert into ");
+                text.append(_name).append(" values ");
+                int end = Math.min(queue.size(), start + BATCH);
+                for (int i = start; i < end; i += 1) {
+                    text.append(i == start ? "(" : ", (");
+                    String[] values = queue.get(i);
+                    for (int j = 0; j < values.length; j += 1) {
+                        if (values[j].indexOf('\'') >= 0) {
+                            throw error("cannot send value to workers: %s",
+                                        values[j]);
+                        }
+                        text.append(j == 0 ? "'" : ", '");
+                        text.append(values[j]).append('\'');
+                    }
+                    text.append(')');
+                }
+                _send.accept(text.append(';').toString(), w);
+            }
+            queue.clear();
+        }
+
+        /** The name of the tables rows go into. */
+        private final String _name;
+        /** Sends a statement to a worker. */
+        private final ObjIntConsumer<String> _send;
+        /** For each worker, the rows waiting to be sent to it. */
+        private final ArrayList<ArrayList<String[]>> _queues;
+        /** The worker to which nothing is sent for now, or -1. */
+        private int _held;
+    }
+
+    /** The rows of a table that a worker holds: those whose values in some
+     *  column a hash partitioning (see Partitioning.hash) assigns to the
+     *  worker's number. */
+    static class Shard {
+        /** The shard of worker number INDEX, of COUNT, of a table sharded
+         *  by the values in its column named COLUMN. */
+        Shard(String column, int index, int count) {
+            _column = column;
+            _index = index;
+            _count = count;
+        }
+
+        /** Return a test of whether the values of a row of a table with
+         *  the columns of TABLE belong to me. */
+        Predicate<String[]> filter(Table table) {
+            int column = table.findColumn(_column);
+            if (column == -1) {
+                throw error("unknown column: %s", _column);
+            }
+            Partitioning hash = Partitioning.hash(column, _column,
+                                                  table.getType(column),
+                                                  _count);
+            return values -> hash.partition(values[column]) == _index;
+        }
+
+        /** The title of the column sharded by. */
+        private final String _column;
+        /** My worker's number. */
+        private final int _index;
+        /** The number of workers. */
+        private final int _count;
+    }
+
+    /** Serve as worker number INDEX of a cluster of COUNT: execute the
+     *  statements arriving on the standard input, one at a time, and
+     *  write a reply to each on the standard output, until the end of the
+     *  input.  Anything else that the statements would print is
+     *  discarded. */
+    static void serve(int index, int count) {
+        Reply reply = new Reply(System.out);
+        PrintStream discard =
+            new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(discard);
+        CommandInterpreter interpreter =
+            new CommandInterpreter(new Scanner(System.in), discard, reply,
+                                   index, count);
+        while (true) {
+            try {
+                if (!interpreter.statement()) {
+                    break;
+                }
+                reply.ok();
+            } catch (DBException e) {
+                reply.failed(e.getMessage());
+                interpreter.skipCommand();
+            }
+        }
+    }
+
+    /** Writes a worker's replies.  Tables are written as by
+     *  ResultWriter.Binary, preceded by TABLE. */
+    private static class Reply extends ResultWriter.Binary {
+        /** A writer of replies to OUT. */
+        Reply(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void begin(Table table) {
+            put(TABLE);
+            super.begin(table);
+        }
+
+        /** Reply that a statement succeeded. */
+        void ok() {
+            put(OK);
+            flush();
+        }
+
+        /** Reply that a statement failed with MESSAGE. */
+        void failed(String message) {
+            put(FAILED);
+            string(message);
+            flush();
+        }
+    }
+
+    /** A worker process, as seen by the coordinator. */
+    private static class Worker {
+        /** Start worker number INDEX of COUNT. */
+        Worker(int index, int count) {
+            String java = Paths.get(System.getProperty("java.home"),
+                                    "bin", "java").toString();
+            ProcessBuilder builder =
+                new ProcessBuilder(java, "-cp",
+                                   System.getProperty("java.class.path"),
+                                   Main.class.getName(), "--worker",
+                                   Integer.toString(index),
+                                   Integer.toString(count));
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            try {
+                _process = builder.start();
+            } catch (IOException excp) {
+                throw error("could not start worker %d", index);
+            }
+            _index = index;
+            _out = new PrintStream(new BufferedOutputStream
+                                   (_process.getOutputStream()),
+                                   false, StandardCharsets.UTF_8);
+            _in = new DataInputStream(new BufferedInputStream
+                                      (_process.getInputStream()));
+        }
+
+        /** Send STATEMENT to me. */
+        void send(String statement) {
+            _out.println(statement);
+            _out.flush();
+            if (_out.checkError()) {
+                throw error("worker %d has stopped", _index);
+            }
+        }
+
+        /** Read my reply to the earliest statement sent me whose reply has
+         *  not yet been read, passing the rows of any table in it to ROWS
+         *  (if not null) along with my number.  If the statement failed,
+         *  throw a DBException with my message. */
+        void reply(ObjIntConsumer<String[]> rows) {
+            try {
+                while (true) {
+                    switch (_in.read()) {
+                    case OK:
+                        return;
+                    case FAILED:
+                        throw error("%s", string());
+                    case TABLE:
+                        String[] values = new String[varint()];
+                        for (int j = 0; j < values.length; j += 1) {
+                            string();
+                        }
+                        while (_in.readUnsignedByte() == 1) {
+                            for (int j = 0; j < values.length; j += 1) {
+                                values[j] = string();
+                            }
+                            if (rows != null) {
+                                rows.accept(values.clone(), _index);
+                            }
+                        }
+                        break;
+                    default:
+                        throw error("worker %d has stopped", _index);
+                    }
+                }
+            } catch (IOException excp) {
+                throw error("worker %d has stopped", _index);
+            }
+        }
+
+        /** Return the next varint of my reply. */
+        private int varint() throws IOException {
+            int n = 0;
+            for (int shift = 0; true; shift += 7) {
+                int b = _in.readUnsignedByte();
+                n |= (b & 0x7f) << shift;
+                if (b < 0x80) {
+                    return n;
+                }
+            }
+        }
+
+        /** Return the next string of my reply. */
+        private String string() throws IOException {
+            byte[] bytes = new byte[varint()];
+            _in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /** End my input, so that I exit, and wait a while for me to do
+         *  so before killing me. */
+        void close() {
+            _out.close();
+            try {
+                if (!_process.waitFor(STOP_SECONDS, TimeUnit.SECONDS)) {
+                    _process.destroy();
+                }
+            } catch (InterruptedException excp) {
+                _process.destroy();
+            }
+        }
+
+        /** My number. */
+        private final int _index;
+        /** My process. */
+        private final Process _process;
+        /** Carries statements to me. */
+        private final PrintStream _out;
+        /** Carries my replies. */
+        private final DataInputStream _in;
+    }
+
+    /** My workers, by number. */
+    private final ArrayList<Worker> _workers;
+    /** How the rows of each table standing for a sharded table are
+     *  divided among my workers. */
+    private final HashMap<Table, Partitioning> _sharded;
+    /** The name of the table each table in _sharded stands for. */
+    private final HashMap<Table, String> _names;
+}
@@ -32,12 +32,70 @@ class Column {
         return _name;
     }
 
-    /** Assuming that for each k, ROWS[k] is the index of a row from my
-     *  kth table, return the value of my column from the appropriate
-     *  row.  It is assumed that all columns with the same name have
-     *  the same value. */
-    String getFrom(Integer... rows) {
-        return _table.get(rows[_tableIndex], _column);
+    /** Assuming that for each k, ROWS[k] is the physical index (see
+     *  Table.value) of a row from my kth table, return the value of my
+     *  column from the appropriate row.  It is assumed that all columns
+     *  with the same name have the same value. */
+    String getFrom(int... rows) {
+        return _table.value(rows[_tableIndex], _column);
+    }
+
+    /** Assuming that ROWS are as for getFrom, return <0, 0, or >0
+     *  depending on whether the value of my column from the appropriate
+     *  row is less than, equal to, or greater than VALUE.  The comparison
+     *  is made in the table's own storage, without fetching the value. */
+    int compareFrom(String value, int... rows) {
+        return _table.compareValue(rows[_tableIndex], _column, value);
+    }
+
+    /** As for compareFrom(String, ROWS), but comparing my numeric value
+     *  against the number VALUE. */
+    int compareFrom(long value, int... rows) {
+        return _table.compareValue(rows[_tableIndex], _column, value);
+    }
+
+    /** As for compareFrom(String, ROWS), but comparing my numeric value
+     *  against the number VALUE. */
+    int compareFrom(double value, int... rows) {
+        return _table.compareValue(rows[_tableIndex], _column, value);
+    }
+
+    /** Copy the characters of my value from ROWS (as for getFrom) into
+     *  BUF, if it has room for them, and return the length of the value
+     *  in either case. */
+    int getCharsFrom(char[] buf, int... rows) {
+        return _table.chars(rows[_tableIndex], _column, buf);
+    }
+
+    /** Return my numeric value from ROWS (as for getFrom) as a long. */
+    long getLongFrom(int... rows) {
+        return _table.longValue(rows[_tableIndex], _column);
+    }
+
+    /** Return my numeric value from ROWS (as for getFrom) as a double. */
+    double getDoubleFrom(int... rows) {
+        return _table.doubleValue(rows[_tableIndex], _column);
+    }
+
+    /** Return the table from which I select, and which is the Kth
+     *  of the tables given to my constructor, where K is tableIndex(). */
+    Table getTable() {
+        return _table;
+    }
+
+    /** Return the position of getTable() among my constructor's tables. */
+    int tableIndex() {
+        return _tableIndex;
+    }
+
+    /** Return my column number within getTable(). */
+    int getColumn() {
+        return _column;
+    }
+
+    /** Return the type of my values. */
+    ColumnType getType() {
+        return _table.getType(_column);
     }
 
     /** Column name denoted by THIS. */
@@ -0,0 +1,84 @@
+package db61b;
+
+/** The values of one column of a Table, numbered in the order in which
+ *  they were appended (that is, by physical row rather than by the
+ *  Table's lexicographic _index).
+ *  @author Brandon Griffin
+ */
+interface ColumnStorage {
+
+    /** The kinds of storage available for a Table's columns. */
+    enum Kind {
+        /** Values are Strings held on the Java heap. */
+        HEAP,
+        /** Values are encoded into memory outside the Java heap, so
+         *  that they are not traced by the garbage collector. */
+        OFF_HEAP,
+        /** Values are kept in pages on disk, cached in the shared
+         *  BufferPool, so that a table need not fit in memory. */
+        PAGED;
+
+        /** Return a new, empty ColumnStorage of this kind. */
+        ColumnStorage create() {
+            switch (this) {
+            case OFF_HEAP:
+                return new OffHeapStorage();
+            case PAGED:
+                return new PagedStorage(BufferPool.shared());
+            default:
+                return new HeapStorage();
+            }
+        }
+
+        /** Return the Kind named NAME (as written in a 'set storage'
+         *  statement). */
+        static Kind named(String name) {
+            switch (name) {
+            case "heap":
+                return HEAP;
+            case "offheap":
+                return OFF_HEAP;
+            case "paged":
+                return PAGED;
+            default:
+                throw Utils.error("unknown storage: %s", name);
+            }
+        }
+    }
+
+    /** Return the number of values stored. */
+    int size();
+
+    /** Return the type of my values. */
+    default ColumnType type() {
+        return ColumnType.STRING;
+    }
+
+    /** Return value number K (0 <= K < size()).  Throws
+     *  IndexOutOfBoundsException if K is out of range. */
+    String get(int k);
+
+    /** Copy the characters of value number K into BUF, if it has room
+     *  for them, and return the length of the value in either case. */
+    default int getChars(int k, char[] buf) {
+        String value = get(k);
+        if (value.length() <= buf.length) {
+            value.getChars(0, value.length(), buf, 0);
+        }
+        return value.length();
+    }
+
+    /** Add VALUE as value number size(). */
+    void append(String value);
+
+    /** Return <0, 0, or >0 depending on whether value number K0 is
+     *  less than, equal to, or greater than value number K1. */
+    int compare(int k0, int k1);
+
+    /** Return <0, 0, or >0 depending on whether value number K is
+     *  less than, equal to, or greater than VALUE. */
+    int compareTo(int k, String value);
+
+    /** Free any resources held by me.  I may not be used afterwards. */
+    void release();
+}
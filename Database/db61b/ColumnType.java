@@ -0,0 +1,163 @@
+package db61b;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import static db61b.Utils.*;
+
+/** The types of values a column may hold.  String columns, the default,
+ *  compare their values lexicographically; the others hold numbers,
+ *  stored as primitives and compared numerically.
+ *  @author Brandon Griffin
+ */
+enum ColumnType {
+    STRING, INT, LONG, DOUBLE;
+
+    /** Return the type named NAME (as written in a table definition or
+     *  a .db header). */
+    static ColumnType named(String name) {
+        switch (name) {
+        case "string":
+            return STRING;
+        case "int":
+            return INT;
+        case "long":
+            return LONG;
+        case "double":
+            return DOUBLE;
+        default:
+            throw error("unknown column type: %s", name);
+        }
+    }
+
+    /** Return an array of N STRING types. */
+    static ColumnType[] untyped(int n) {
+        ColumnType[] types = new ColumnType[n];
+        Arrays.fill(types, STRING);
+        return types;
+    }
+
+    /** Return my name as written in a table definition. */
+    String typeName() {
+        return name().toLowerCase();
+    }
+
+    /** Return true iff I am a numeric type. */
+    boolean numeric() {
+        return this != STRING;
+    }
+
+    /** Return true iff my values are whole numbers. */
+    boolean integral() {
+        return this == INT || this == LONG;
+    }
+
+    /** Return a new, empty ColumnStorage for values of my type.  String
+     *  values are kept in storage of kind KIND; numbers are always kept
+     *  in primitive arrays. */
+    ColumnStorage create(ColumnStorage.Kind kind) {
+        switch (this) {
+        case INT:
+            return new NumericStorage.Ints();
+        case LONG:
+            return new NumericStorage.Longs();
+        case DOUBLE:
+            return new NumericStorage.Doubles();
+        default:
+            return kind.create();
+        }
+    }
+
+    /** Throw a DBException unless VALUE is a valid value of my type. */
+    void check(String value) {
+        parse(value);
+    }
+
+    /** Return VALUE, a value of my type, as compared: a Long for
+     *  integral types, a Double for DOUBLE (with -0.0 made 0.0), and
+     *  VALUE itself for STRING.  Comparing the results with compareTo
+     *  is the same as comparing the values with compare.  Throws a
+     *  DBException unless VALUE is a valid value of my type. */
+    Comparable<?> parse(String value) {
+        try {
+            switch (this) {
+            case INT:
+                return (long) Integer.parseInt(value);
+            case LONG:
+                return Long.parseLong(value);
+            case DOUBLE:
+                return Double.parseDouble(value) + 0.0;
+            default:
+                return value;
+            }
+        } catch (NumberFormatException excp) {
+            throw error("invalid %s value: %s", typeName(), value);
+        }
+    }
+
+    /** Return <0, 0, or >0 depending on whether V0 is less than, equal
+     *  to, or greater than V1, both being valid values of my type. */
+    int compare(String v0, String v1) {
+        switch (this) {
+        case INT: case LONG:
+            return Long.compare(Long.parseLong(v0), Long.parseLong(v1));
+        case DOUBLE:
+            return compareDoubles(Double.parseDouble(v0),
+                                  Double.parseDouble(v1));
+        default:
+            return v0.compareTo(v1);
+        }
+    }
+
+    /** Return <0, 0, or >0 depending on whether V0 is less than, equal
+     *  to, or greater than V1, each being either a valid value of my type
+     *  or a literal compared with one in a condition.  Numbers are
+     *  compared exactly, whether or not they are integers. */
+    int compareLiterals(String v0, String v1) {
+        if (!numeric()) {
+            return v0.compareTo(v1);
+        }
+        try {
+            return new BigDecimal(v0).compareTo(new BigDecimal(v1));
+        } catch (NumberFormatException excp) {
+            return compareDoubles(Double.parseDouble(v0),
+                                  Double.parseDouble(v1));
+        }
+    }
+
+    /** Return a hash code for VALUE, a valid value of my type, such that
+     *  values that compare equal have equal hash codes. */
+    int hash(String value) {
+        switch (this) {
+        case INT: case LONG:
+            return Long.hashCode(Long.parseLong(value));
+        case DOUBLE:
+            return Double.hashCode(Double.parseDouble(value) + 0.0);
+        default:
+            return value.hashCode();
+        }
+    }
+
+    /** Return <0, 0, or >0 depending on whether X is less than, equal to,
+     *  or greater than Y numerically (so that 0.0 and -0.0 are equal).
+     *  NaN is equal only to itself, and greater than all other values,
+     *  so that the order is total. */
+    static int compareDoubles(double x, double y) {
+        return Double.compare(x + 0.0, y + 0.0);
+    }
+
+    /** Return X as a double value is written in a table: as by
+     *  Double.toString, except that magnitudes from 1e-7 up to 1e21 are
+     *  written in plain decimal notation, so that 10000000 is not
+     *  written as 1.0E7.  Parsing the result yields X again. */
+    static String formatDouble(double x) {
+        double size = Math.abs(x);
+        if (!(size >= 1e-7 && size < 1e21)
+            || (size >= 1e-3 && size < 1e7)) {
+            return Double.toString(x);
+        }
+        String plain =
+            BigDecimal.valueOf(x).stripTrailingZeros().toPlainString();
+        return plain.indexOf('.') == -1 ? plain + ".0" : plain;
+    }
+}
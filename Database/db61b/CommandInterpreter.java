@@ -1,9 +1,20 @@
 package db61b;
 
+import java.io.File;
 import java.io.PrintStream;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static db61b.Utils.*;
 import static db61b.Tokenizer.*;
@@ -115,53 +126,163 @@ class CommandInterpreter {
     /** A new CommandInterpreter executing commands read from INP, writing
      *  prompts on PROMPTER, if it is non-null. */
     CommandInterpreter(Scanner inp, PrintStream prompter) {
+        this(inp, prompter, new ResultWriter.Text(System.out), -1, 0);
+    }
+
+    /** A new CommandInterpreter executing commands read from INP, writing
+     *  prompts on PROMPTER, if it is non-null, and the tables printed by
+     *  print and select statements with WRITER.  If SHARDS is positive,
+     *  it is worker number SHARD of a cluster of SHARDS workers (see
+     *  Cluster). */
+    CommandInterpreter(Scanner inp, PrintStream prompter,
+                       ResultWriter writer, int shard, int shards) {
         _input = new Tokenizer(inp, prompter);
         _database = new Database();
+        _storage = ColumnStorage.Kind.HEAP;
+        _cache = new QueryCache(QueryCache.DEFAULT_BUDGET);
+        _writer = writer;
+        _shard = shard;
+        _shards = shards;
     }
 
     /** Parse and execute one statement from the token stream.  Return true
-     *  iff the command is something other than quit or exit. */
+     *  iff the command is something other than quit or exit.  The whole
+     *  statement is read before the statement is executed holding the
+     *  lock on the database, so that background work on the database is
+     *  not held up waiting for input. */
     boolean statement() {
-        switch (_input.peek()) {
-        case "create":
-            createStatement();
-            break;
-        case "load":
-            loadStatement();
-            break;
-        case "exit": case "quit":
-            exitStatement();
-            return false;
-        case "*EOF*":
-            return false;
-        case "insert":
-            insertStatement();
-            break;
-        case "print":
-            printStatement();
-            break;
-        case "select":
-            selectStatement();
-            break;
-        case "store":
-            storeStatement();
-            break;
-        default:
-            throw error("unrecognizable command");
+        _input.statementText();
+        synchronized (_database) {
+            switch (_input.peek()) {
+            case "create":
+                createStatement();
+                break;
+            case "delete":
+                deleteStatement();
+                break;
+            case "load":
+                loadStatement();
+                break;
+            case "exit": case "quit":
+                exitStatement();
+                return false;
+            case "*EOF*":
+                awaitStores();
+                return false;
+            case "insert":
+                insertStatement();
+                break;
+            case "print":
+                printStatement();
+                break;
+            case "select":
+                selectStatement();
+                break;
+            case "set":
+                setStatement();
+                break;
+            case "store":
+                storeStatement();
+                break;
+            case "update":
+                updateStatement();
+                break;
+            case "wait":
+                waitStatement();
+                break;
+            default:
+                throw error("unrecognizable command");
+            }
+            return true;
         }
-        return true;
     }
 
     /** Parse and execute a create statement from the token stream. */
     void createStatement() {
         _input.next("create");
+        if (_input.nextIf("materialized")) {
+            _input.next("view");
+            String name = name();
+            _input.next("as");
+            MaterializedView view = viewDefinition(name);
+            _input.next(";");
+            _database.putView(view);
+            return;
+        }
         _input.next("table");
         String name = name();
         Table table = tableDefinition();
+        if (_input.nextIf("partition")) {
+            _input.next("by");
+            table.partition(partitioning(table));
+        } else if (_input.nextIf("shard")) {
+            _input.next("by");
+            _input.next("(");
+            int column = new Column(columnName(), table).getColumn();
+            _input.next(")");
+            if (_cluster == null) {
+                throw error("there are no workers");
+            }
+            table = _cluster.create(name, table, column);
+        }
         _database.put(name, table);
         _input.next(";");
     }
 
+    /** Parse the rest of a partition by clause for TABLE from the token
+     *  stream ('hash (COLUMN) into N' or 'range (COLUMN) values
+     *  (LITERAL, ...)'), and return the Partitioning it describes. */
+    Partitioning partitioning(Table table) {
+        boolean hash = _input.nextIf("hash");
+        if (!hash) {
+            _input.next("range");
+        }
+        _input.next("(");
+        int column = new Column(columnName(), table).getColumn();
+        _input.next(")");
+        String title = table.getTitle(column);
+        ColumnType type = table.getType(column);
+        if (hash) {
+            _input.next("into");
+            String count = _input.next(Tokenizer.NUMBER);
+            try {
+                return Partitioning.hash(column, title, type,
+                                         Integer.parseInt(count));
+            } catch (NumberFormatException excp) {
+                throw error("too many partitions: %s", count);
+            }
+        }
+        _input.next("values");
+        _input.next("(");
+        ArrayList<String> bounds = new ArrayList<String>();
+        bounds.add(literal());
+        while (_input.nextIf(",")) {
+            bounds.add(literal());
+        }
+        _input.next(")");
+        return Partitioning.range(column, title, type,
+                                  bounds.toArray(new String[bounds.size()]));
+    }
+
+    /** Parse the number of a partition of TABLE, which must be
+     *  partitioned, from the token stream, and return it. */
+    int partitionNumber(Table table) {
+        if (table.partitioning() == null) {
+            throw error("table is not partitioned");
+        }
+        String number = _input.next(Tokenizer.NUMBER);
+        int p;
+        try {
+            p = Integer.parseInt(number);
+        } catch (NumberFormatException excp) {
+            p = -1;
+        }
+        if (p < 0 || p >= table.partitioning().count()) {
+            throw error("no such partition: %s", number);
+        }
+        return p;
+    }
+
     /** Parse and execute an exit or quit statement. Actually does nothing
      *  except check syntax, since statement() handles the actual exiting. */
     void exitStatement() {
@@ -169,13 +290,77 @@ class CommandInterpreter {
             _input.next("exit");
         }
         _input.next(";");
+        awaitStores();
+    }
+
+    /** Parse and execute a delete statement from the token stream. */
+    void deleteStatement() {
+        String statement = _input.statementText();
+        _input.next("delete");
+        _input.next("from");
+        String name = _input.peek();
+        Table table = modifiableTable();
+        ArrayList<Condition> conditions = conditionClause(table);
+        if (_cluster != null && _cluster.sharded(table)) {
+            _cluster.modify(statement, conditions);
+        } else if (table.delete(conditions) > 0) {
+            _database.changed(name);
+        }
+        _input.next(";");
+    }
+
+    /** Parse and execute an update statement from the token stream. */
+    void updateStatement() {
+        String statement = _input.statementText();
+        _input.next("update");
+        String name = _input.peek();
+        Table table = modifiableTable();
+        _input.next("set");
+        ArrayList<Integer> cols = new ArrayList<Integer>();
+        ArrayList<String> values = new ArrayList<String>();
+        do {
+            String column = columnName();
+            cols.add(new Column(column, table).getColumn());
+            _input.next("=");
+            values.add(literal());
+        } while (_input.nextIf(","));
+        ArrayList<Condition> conditions = conditionClause(table);
+        int[] colNums = new int[cols.size()];
+        for (int k = 0; k < colNums.length; k += 1) {
+            colNums[k] = cols.get(k);
+        }
+        if (_cluster != null && _cluster.sharded(table)) {
+            if (cols.contains(_cluster.sharding(table).column())) {
+                throw error("cannot update the column a table is sharded by");
+            }
+            _cluster.modify(statement, conditions);
+        } else if (table.update(colNums,
+                                values.toArray(new String[values.size()]),
+                                conditions) > 0) {
+            _database.changed(name);
+        }
+        _input.next(";");
+    }
+
+    /** Parse a table name from the token stream and return the table,
+     *  which may not be a materialized view. */
+    Table modifiableTable() {
+        String name = _input.peek();
+        Table table = tableName();
+        if (_database.isView(name)) {
+            throw error("cannot modify materialized view: %s", name);
+        }
+        return table;
     }
 
-    /** Parse and execute an insert statement from the token stream. */
+    /** Parse and execute an insert statement from the token stream.
+     *  Materialized views that select from the table are updated with
+     *  each new row. */
     void insertStatement() {
         _input.next("insert");
         _input.next("into");
-        Table table = tableName();
+        String name = _input.peek();
+        Table table = modifiableTable();
         _input.next("values");
         int cols = table.columns();
 
@@ -189,34 +374,268 @@ class CommandInterpreter {
                 _input.next(")");
                 if (_input.nextIf(",")) {
                     _input.next("(");
-                    table.add(values);
+                    insert(name, table, values);
                     k = 0;
                 } else {
                     break;
                 }
             }
         }
-        table.add(values);
+        insert(name, table, values);
         _input.next(";");
     }
 
-    /** Parse and execute a load statement from the token stream. */
+    /** Add VALUES to TABLE, which is named NAME, updating the materialized
+     *  views that select from it if VALUES is a new row. */
+    private void insert(String name, Table table, String[] values) {
+        if (_cluster != null && _cluster.sharded(table)) {
+            _cluster.insert(table, values);
+        } else if (table.add(values)) {
+            _database.inserted(name, table.physicalSize() - 1);
+        }
+    }
+
+    /** Parse and execute a load statement from the token stream: either
+     *  'load' followed by a list of table names, or 'load all from' a
+     *  directory given as a literal, which loads every .db file in the
+     *  directory.  When there is more than one table, the files are read
+     *  in parallel, and the tables are then added to the database in
+     *  order.  If a file cannot be loaded, the tables before it are still
+     *  added.  The files of the partitions of partitioned tables are not
+     *  loaded as tables by themselves.  Finally, 'load T partition P'
+     *  replaces the rows of partition P of the loaded table T with those
+     *  in its file. */
     void loadStatement() {
         _input.next("load");
+        awaitStores();
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> files = new ArrayList<String>();
         String name = name();
-        _database.put(name, Table.readTable(name));
+        if (_input.nextIf("partition")) {
+            loadPartition(name);
+            return;
+        }
+        if (_input.nextIf("shard")) {
+            loadShard(name);
+            return;
+        }
+        if (name.equals("all") && _input.nextIf("from")) {
+            File dir = new File(literal());
+            String[] found =
+                dir.list((d, file) -> file.endsWith(".db")
+                         && file.indexOf('.') == file.length() - 3);
+            if (found == null) {
+                throw error("could not read directory %s", dir);
+            }
+            Arrays.sort(found);
+            for (String file : found) {
+                String table = file.substring(0, file.length() - 3);
+                names.add(table);
+                files.add(new File(dir, table).getPath());
+            }
+        } else {
+            names.add(name);
+            files.add(name);
+            while (_input.nextIf(",")) {
+                name = name();
+                names.add(name);
+                files.add(name);
+            }
+        }
+        List<Future<Table>> tables = readTables(files);
+        DBException failure = null;
+        for (int k = 0; k < names.size(); k += 1) {
+            try {
+                Table table = tables.get(k).get();
+                if (failure != null) {
+                    table.release();
+                } else {
+                    _database.put(names.get(k), table);
+                    System.out.printf("Loaded %s.db%n", names.get(k));
+                }
+            } catch (ExecutionException excp) {
+                if (failure == null) {
+                    failure = excp.getCause() instanceof DBException
+                        ? (DBException) excp.getCause()
+                        : error("could not load %s.db", names.get(k));
+                }
+            } catch (InterruptedException excp) {
+                throw error("interrupted while loading");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        _input.next(";");
+    }
+
+    /** Having parsed 'load NAME partition', parse and execute the rest of
+     *  a load statement that replaces one partition of the table NAME. */
+    private void loadPartition(String name) {
+        Table table = _database.get(name);
+        if (table == null) {
+            throw error("unknown table: %s", name);
+        }
+        if (_database.isView(name)) {
+            throw error("cannot modify materialized view: %s", name);
+        }
+        int p = partitionNumber(table);
+        Table part = Table.readTable(name + "." + p, _storage);
+        try {
+            table.replacePartition(p, part);
+        } finally {
+            part.release();
+        }
+        _database.changed(name);
         _input.next(";");
+        System.out.printf("Loaded %s.%d.db%n", name, p);
+    }
+
+    /** Having parsed 'load NAME shard', parse and execute the rest of a
+     *  load statement ('by (COLUMN);') that divides the table NAME among
+     *  the workers of a cluster by the values of COLUMN, or, on a worker,
+     *  loads its shard. */
+    private void loadShard(String name) {
+        _input.next("by");
+        _input.next("(");
+        String column = columnName();
+        _input.next(")");
+        Table table;
+        if (_cluster != null) {
+            table = _cluster.load(name, column);
+        } else if (_shards > 0) {
+            table = Table.readTable(name, _storage, memoryBudget(),
+                                    new Cluster.Shard(column, _shard,
+                                                      _shards));
+        } else {
+            throw error("there are no workers");
+        }
+        _input.next(";");
+        _database.put(name, table);
         System.out.printf("Loaded %s.db%n", name);
     }
 
-    /** Parse and execute a store statement from the token stream. */
+    /** Start reading the tables in FILES (each named without its .db
+     *  extension), in storage of kind _storage, and return their
+     *  eventual contents.  More than one is read in parallel, on at most
+     *  LOAD_THREADS threads, each with an equal share of the memory
+     *  budget for sorting. */
+    private List<Future<Table>> readTables(List<String> files) {
+        ArrayList<Future<Table>> tables = new ArrayList<Future<Table>>();
+        if (files.size() == 1) {
+            FutureTask<Table> task =
+                new FutureTask<>(() -> Table.readTable(files.get(0),
+                                                       _storage));
+            task.run();
+            tables.add(task);
+            return tables;
+        }
+        int threads = Math.min(files.size(), LOAD_THREADS);
+        long budget = memoryBudget() / threads;
+        ColumnStorage.Kind storage = _storage;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (String file : files) {
+                tables.add(pool.submit(() -> Table.readTable(file, storage,
+                                                             budget)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return tables;
+    }
+
+    /** Parse and execute a store statement from the token stream.  The
+     *  table is written from a snapshot on a background thread, so that
+     *  subsequent statements need not wait for it; a wait store statement
+     *  waits for all stores to finish and reports any that failed.  A
+     *  partitioned table T is written as the manifest T.db and the
+     *  partitions P that have changed since they were last stored or
+     *  loaded, or whose files T.P.db are missing; 'store T partition P'
+     *  writes only partition P. */
     void storeStatement() {
         _input.next("store");
         String name = _input.peek();
         Table table = tableName();
-        table.writeTable(name);
+        int only = -1;
+        if (_input.nextIf("partition")) {
+            only = partitionNumber(table);
+        }
+        if (_cluster != null && _cluster.sharded(table)) {
+            table = _cluster.contents(table);
+        }
+        _input.next(";");
+        Partitioning partitioning = table.partitioning();
+        if (partitioning == null) {
+            Table.Snapshot snapshot = table.snapshot(_compressed);
+            store(name, () -> snapshot.write(name, _database));
+        } else {
+            store(name, () -> partitioning.writeManifest(name));
+            for (int p = 0; p < partitioning.count(); p += 1) {
+                String file = name + "." + p;
+                boolean wanted = only == -1
+                    ? table.partChanged(p) || !new File(file + ".db").exists()
+                    : only == p;
+                if (!wanted) {
+                    continue;
+                }
+                Table.Snapshot snapshot =
+                    table.partitionSnapshot(p, _compressed);
+                store(file, () -> snapshot.write(file, _database));
+            }
+        }
         System.out.printf("Stored %s.db%n", name);
+    }
+
+    /** Start WRITE, which writes the file NAME.db, on STORER, so that
+     *  awaitStores waits for it and reports its failure. */
+    private void store(String name, Runnable write) {
+        _pendingStores += 1;
+        STORER.execute(() -> {
+            DBException failure = null;
+            try {
+                write.run();
+            } catch (DBException excp) {
+                failure = excp;
+            } catch (RuntimeException excp) {
+                failure = error("trouble writing to %s.db", name);
+            } finally {
+                synchronized (_database) {
+                    _pendingStores -= 1;
+                    if (_storeFailure == null) {
+                        _storeFailure = failure;
+                    }
+                    _database.notifyAll();
+                }
+            }
+        });
+    }
+
+    /** Parse and execute a wait store statement from the token stream. */
+    void waitStatement() {
+        _input.next("wait");
+        _input.next("store");
         _input.next(";");
+        awaitStores();
+    }
+
+    /** Wait until all stores started so far have finished, and throw the
+     *  first error, if any, that they encountered since the last call. */
+    void awaitStores() {
+        synchronized (_database) {
+            while (_pendingStores > 0) {
+                try {
+                    _database.wait();
+                } catch (InterruptedException excp) {
+                    throw error("interrupted while storing");
+                }
+            }
+            DBException failure = _storeFailure;
+            _storeFailure = null;
+            if (failure != null) {
+                throw failure;
+            }
+        }
     }
 
     /** Parse and execute a print statement from the token stream. */
@@ -224,17 +643,119 @@ class CommandInterpreter {
         _input.next("print");
         String name = _input.peek();
         Table table = tableName();
+        if (_cluster != null && _cluster.sharded(table)) {
+            table = _cluster.contents(table);
+        }
         _input.next(";");
         System.out.printf("Contents of %s:%n", name);
-        table.print();
+        _writer.write(table);
     }
 
-    /** Parse and execute a select statement from the token stream. */
+    /** Parse and execute a select statement from the token stream.  The
+     *  result is taken from the cache of query results if it holds a
+     *  result for the same statement computed from the same versions of
+     *  the tables involved. */
     void selectStatement() {
-        Table table = selectClause();
-        _input.next(";");
+        String statement = _input.statementText();
+        Table table = _cache.get(statement, _database);
+        if (table != null) {
+            while (!_input.nextIf(";")) {
+                _input.next();
+            }
+        } else {
+            _sources = new HashMap<String, Table>();
+            try {
+                table = selectClause();
+                _input.next(";");
+                Table[] read = _sources.values().toArray(new Table[0]);
+                if (_cluster == null || !_cluster.sharded(read)) {
+                    _cache.put(statement, table, _sources, _database);
+                }
+            } finally {
+                _sources = null;
+            }
+        }
         System.out.printf("Search results:%n");
-        table.print();
+        _writer.write(table);
+    }
+
+    /** Parse and execute a set statement from the token stream.  The
+     *  options are 'storage', which selects the kind of storage ('heap',
+     *  'offheap', or 'paged') for subsequently created and loaded
+     *  tables, and 'memory', which sets the memory budget (e.g., '64M')
+     *  both of the buffer pool caching paged tables and of operations,
+     *  such as sorting, that spill to disk, 'cache', which sets the
+     *  budget (e.g., '16M', or '0' to disable) of the cache of select
+     *  results, 'format', which selects the format ('text', 'csv',
+     *  'json', or 'binary') in which tables are printed, and
+     *  'compression', which selects whether store statements write
+     *  block-compressed files ('block') or text ('none'). */
+    void setStatement() {
+        _input.next("set");
+        String option = name();
+        _input.next("=");
+        String value = literal();
+        switch (option) {
+        case "storage":
+            _storage = ColumnStorage.Kind.named(value);
+            forward(option, value);
+            break;
+        case "memory":
+            setMemoryBudget(parseSize(value));
+            BufferPool.shared().setBudget(memoryBudget());
+            forward(option, value);
+            break;
+        case "workers":
+            workers(value);
+            break;
+        case "cache":
+            _cache.setBudget(parseSize(value));
+            break;
+        case "format":
+            _writer = ResultWriter.named(value, System.out);
+            break;
+        case "compression":
+            if (!value.equals("block") && !value.equals("none")) {
+                throw error("unknown compression: %s", value);
+            }
+            _compressed = value.equals("block");
+            break;
+        default:
+            throw error("unknown option: %s", option);
+        }
+        _input.next(";");
+    }
+
+    /** Stop the workers of my cluster, if any, and, unless COUNT is '0',
+     *  start a new cluster of COUNT workers.  Tables sharded among the old
+     *  workers are left empty. */
+    private void workers(String count) {
+        int workers;
+        try {
+            workers = Integer.parseInt(count);
+        } catch (NumberFormatException excp) {
+            workers = -1;
+        }
+        if (workers < 0) {
+            throw error("invalid number of workers: %s", count);
+        }
+        if (_shards > 0) {
+            throw error("workers may not have workers");
+        }
+        if (_cluster != null) {
+            _cluster.close();
+            _cluster = null;
+        }
+        if (workers > 0) {
+            _cluster = new Cluster(workers);
+        }
+    }
+
+    /** Set OPTION to VALUE on my workers, if any. */
+    private void forward(String option, String value) {
+        if (_cluster != null) {
+            _cluster.broadcast("set " + option + " = '" + value + "';");
+        }
     }
 
     /** Parse and execute a table definition, returning the specified
@@ -242,12 +763,13 @@ class CommandInterpreter {
     Table tableDefinition() {
         Table table;
         ArrayList<String> c = new ArrayList<String>();
+        ArrayList<ColumnType> types = new ArrayList<ColumnType>();
         if (_input.nextIf("(")) {
-            c.add(columnName());
+            columnDefinition(c, types);
             while (_input.nextIf(",")) {
-                c.add(columnName());
+                columnDefinition(c, types);
             }
-            table = new Table(c);
+            table = new Table(c, types, _storage, RowOrder.LEXICOGRAPHIC);
             _input.next(")");
         } else {
             _input.nextIf("as");
@@ -256,14 +778,29 @@ class CommandInterpreter {
         return table;
     }
 
+    /** Parse a column name, optionally followed by a type (int, long,
+     *  double, or string), from the token stream, appending the name to
+     *  NAMES and the type (STRING if not given) to TYPES. */
+    void columnDefinition(ArrayList<String> names,
+                          ArrayList<ColumnType> types) {
+        names.add(columnName());
+        if (_input.nextIs(Tokenizer.IDENTIFIER)) {
+            types.add(ColumnType.named(name()));
+        } else {
+            types.add(ColumnType.STRING);
+        }
+    }
+
     /** Parse and execute a select clause from the token stream, returning the
      *  resulting table. */
     Table selectClause() {
         _input.next("select");
         ArrayList<String> c = new ArrayList<String>();
-        c.add(columnName());
+        ArrayList<String> functions = new ArrayList<String>();
+        ArrayList<String> arguments = new ArrayList<String>();
+        selectItem(c, functions, arguments);
         while (_input.nextIf(",")) {
-            c.add(columnName());
+            selectItem(c, functions, arguments);
         }
         _input.next("from");
         Table[] t = new Table[2];
@@ -272,11 +809,138 @@ class CommandInterpreter {
             t[1] = tableName();
         }
         ArrayList<Condition> conditions = conditionClause(t);
-        if (t[1] == null) {
-            return t[0].select(c, conditions);
+        Table[] sources = t[1] == null ? new Table[] { t[0] } : t;
+        ArrayList<Column> groupBy = groupByClause(sources);
+        ArrayList<String> orderBy = new ArrayList<String>();
+        ArrayList<Boolean> descending = new ArrayList<Boolean>();
+        orderByClause(orderBy, descending);
+        RowOrder order = orderBy.isEmpty() ? RowOrder.LEXICOGRAPHIC
+            : new RowOrder(orderBy, descending, c);
+        int limit = limitClause();
+        if (_cluster != null && _cluster.sharded(sources)) {
+            return _cluster.select(t, c, functions, arguments, conditions,
+                                   groupBy, orderBy, descending, order,
+                                   limit);
+        }
+        boolean aggregated = groupBy != null;
+        for (String function : functions) {
+            aggregated |= function != null;
+        }
+        if (aggregated) {
+            ArrayList<Column> args = new ArrayList<Column>();
+            for (String arg : arguments) {
+                args.add(arg == null ? null : new Column(arg, sources));
+            }
+            if (groupBy == null) {
+                groupBy = new ArrayList<Column>();
+            }
+            Aggregation agg = new Aggregation(functions, args, groupBy, c);
+            Table result = new Table(c, Arrays.asList(agg.types()),
+                                     ColumnStorage.Kind.HEAP, order);
+            result.fill(new Operator.Aggregate(t[0].plan(t[1], conditions,
+                                                         false),
+                                               agg),
+                        limit, order == RowOrder.LEXICOGRAPHIC);
+            return result;
         } else {
-            return t[0].select(t[1], c, conditions);
+            return t[0].select(t[1], c, conditions, order, limit);
+        }
+    }
+
+    /** Parse the select clause defining the materialized view NAME from
+     *  the token stream, returning the view.  The clause may not use
+     *  aggregate functions, group by, or limit. */
+    MaterializedView viewDefinition(String name) {
+        _input.next("select");
+        ArrayList<String> c = new ArrayList<String>();
+        ArrayList<String> functions = new ArrayList<String>();
+        ArrayList<String> arguments = new ArrayList<String>();
+        selectItem(c, functions, arguments);
+        while (_input.nextIf(",")) {
+            selectItem(c, functions, arguments);
+        }
+        for (String function : functions) {
+            if (function != null) {
+                throw error("materialized views may not aggregate");
+            }
+        }
+        _input.next("from");
+        ArrayList<String> sources = new ArrayList<String>();
+        ArrayList<Table> t = new ArrayList<Table>();
+        do {
+            sources.add(_input.peek());
+            t.add(tableName());
+        } while (t.size() < 2 && _input.nextIf(","));
+        Table[] tables = t.toArray(new Table[t.size()]);
+        if (_cluster != null && _cluster.sharded(tables)) {
+            throw error("materialized views may not use sharded tables");
+        }
+        ArrayList<Condition> conditions = conditionClause(tables);
+        for (Condition cond : conditions) {
+            if (cond.subquery()) {
+                throw error("materialized views may not use subqueries");
+            }
+        }
+        if (groupByClause(tables) != null) {
+            throw error("materialized views may not aggregate");
+        }
+        ArrayList<String> orderBy = new ArrayList<String>();
+        ArrayList<Boolean> descending = new ArrayList<Boolean>();
+        orderByClause(orderBy, descending);
+        RowOrder order = orderBy.isEmpty() ? RowOrder.LEXICOGRAPHIC
+            : new RowOrder(orderBy, descending, c);
+        if (limitClause() >= 0) {
+            throw error("materialized views may not have a limit");
+        }
+        return new MaterializedView(name, c, sources, conditions, order,
+                                    _database);
+    }
+
+    /** Parse one item of the list of columns in a select clause: either
+     *  a column name or an aggregate function (count, sum, min, or max)
+     *  applied to a column name (or to '*', for count).  Append the
+     *  item's title to TITLES, its function (null for a plain column) to
+     *  FUNCTIONS, and its column name (null for '*') to ARGUMENTS. */
+    void selectItem(ArrayList<String> titles, ArrayList<String> functions,
+                    ArrayList<String> arguments) {
+        String name = columnName();
+        if (!_input.nextIf("(")) {
+            titles.add(name);
+            functions.add(null);
+            arguments.add(name);
+            return;
+        }
+        String arg;
+        switch (name) {
+        case "count":
+            arg = _input.nextIf("*") ? null : columnName();
+            break;
+        case "sum": case "min": case "max":
+            arg = columnName();
+            break;
+        default:
+            throw error("unknown aggregate function: %s", name);
+        }
+        _input.next(")");
+        titles.add(Aggregation.title(name, arg));
+        functions.add(name);
+        arguments.add(arg);
+    }
+
+    /** Parse and return the list of grouping Columns from TABLES in an
+     *  optional group by clause from the token stream, or null if there
+     *  is no such clause. */
+    ArrayList<Column> groupByClause(Table... tables) {
+        if (!_input.nextIf("group")) {
+            return null;
+        }
+        _input.next("by");
+        ArrayList<Column> groupBy = new ArrayList<Column>();
+        groupBy.add(new Column(columnName(), tables));
+        while (_input.nextIf(",")) {
+            groupBy.add(new Column(columnName(), tables));
         }
+        return groupBy;
     }
 
     /** Parse and return a valid name (identifier) from the token stream. */
@@ -291,6 +955,40 @@ class CommandInterpreter {
         return name();
     }
 
+    /** Parse an optional order by clause from the token stream, appending
+     *  the names of the columns it orders by to ORDERBY and, for each,
+     *  whether it is followed by 'desc' to DESCENDING. */
+    void orderByClause(ArrayList<String> orderBy,
+                       ArrayList<Boolean> descending) {
+        if (!_input.nextIf("order")) {
+            return;
+        }
+        _input.next("by");
+        do {
+            orderBy.add(columnName());
+            if (_input.nextIf("desc")) {
+                descending.add(true);
+            } else {
+                _input.nextIf("asc");
+                descending.add(false);
+            }
+        } while (_input.nextIf(","));
+    }
+
+    /** Parse an optional limit clause from the token stream and return
+     *  its row count, or -1 if there is none. */
+    int limitClause() {
+        if (!_input.nextIf("limit")) {
+            return -1;
+        }
+        String count = _input.next(Tokenizer.NUMBER);
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException excp) {
+            throw error("limit too large: %s", count);
+        }
+    }
+
     /** Parse a valid table name from the token stream, and return the Table
      *  that it designates, which must be loaded. */
     Table tableName() {
@@ -299,6 +997,9 @@ class CommandInterpreter {
         if (table == null) {
             throw error("unknown table: %s", name);
         }
+        if (_sources != null) {
+            _sources.put(name, table);
+        }
         return table;
     }
 
@@ -329,6 +1030,9 @@ class CommandInterpreter {
         String name = columnName();
         try {
             Column col1 = new Column(name, tables);
+            if (_input.nextIs("in") || _input.nextIs("not")) {
+                return membership(col1);
+            }
             String rel = _input.next(Tokenizer.RELATION);
             Condition result;
             if (_input.nextIs(Tokenizer.LITERAL)) {
@@ -343,6 +1047,23 @@ class CommandInterpreter {
         }
     }
 
+    /** Parse the remainder of a condition of the form COL1 [not] in
+     *  (<select clause>) from the token stream, evaluate the subquery,
+     *  which must select a single column, and return the Condition. */
+    Condition membership(Column col1) {
+        boolean negated = _input.nextIf("not");
+        _input.next("in");
+        _input.next("(");
+        Table result = selectClause();
+        _input.next(")");
+        if (result.columns() != 1) {
+            throw error("subquery must select a single column");
+        }
+        HashSet<String> values = new HashSet<String>();
+        result.forEachRow(k -> values.add(result.value(k, 0)));
+        return new Condition(col1, negated, values);
+    }
+
     /** Advance the input past the next semicolon. */
     void skipCommand() {
         while (true) {
@@ -361,4 +1082,37 @@ class CommandInterpreter {
     private Tokenizer _input;
     /** Database containing all tables. */
     private Database _database;
+    /** Kind of storage used for tables created or loaded from now on. */
+    private ColumnStorage.Kind _storage;
+    /** Maximum number of tables read at once by a load statement. */
+    static final int LOAD_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /** Writes the files of store statements, one at a time, in the
+     *  order of the statements. */
+    private static final Executor STORER =
+        Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "storer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /** True iff store statements write block-compressed files. */
+    private boolean _compressed;
+    /** Number of stores started but not yet finished. */
+    private int _pendingStores;
+    /** The first error reported by a store since the last awaitStores. */
+    private DBException _storeFailure;
+    /** Writes the tables printed by print and select statements. */
+    private ResultWriter _writer;
+    /** Results of recent select statements. */
+    private QueryCache _cache;
+    /** The workers among which tables may be sharded, or null if there
+     *  are none. */
+    private Cluster _cluster;
+    /** If _shards is positive, my number as a worker of a cluster of
+     *  _shards workers. */
+    private int _shard, _shards;
+    /** While a cacheable select statement is being executed, the tables
+     *  it has read, by name; otherwise null. */
+    private HashMap<String, Table> _sources;
 }
@@ -1,6 +1,11 @@
 package db61b;
 
+import java.math.BigDecimal;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import static db61b.Utils.*;
 
 /** Represents a single 'where' condition in a 'select' command.
  *  @author Brandon Griffin*/
@@ -23,37 +28,281 @@ class Condition {
     Condition(Column col1, String relation, String val2) {
         this(col1, relation, (Column) null);
         _val2 = val2;
+        if (col1.getType().numeric()) {
+            try {
+                _long2 = Long.parseLong(val2);
+                _integral = true;
+            } catch (NumberFormatException excp) {
+                try {
+                    _double2 = Double.parseDouble(val2);
+                } catch (NumberFormatException excp2) {
+                    throw error("invalid %s literal: '%s'",
+                                col1.getType().typeName(), val2);
+                }
+            }
+        }
     }
 
-    /** Assuming that ROWS are row indices in the respective tables
-     *  from which my columns are selected, returns the result of
-     *  performing the test I denote. */
-    boolean test(Integer... rows) {
-        String val1 = _col1.getFrom(rows);
-        String val2;
+    /** A Condition representing COL1 in (VALUES) or, if NEGATED, COL1
+     *  not in (VALUES), where VALUES holds the values selected by a
+     *  subquery.  Testing a row is a single hash lookup, so that a select
+     *  with this condition is a semi-join (or anti-join) of its table
+     *  with the subquery's result, and yields each of its rows at most
+     *  once.  If COL1 is numeric, values are members if they are
+     *  numerically equal, however they are written. */
+    Condition(Column col1, boolean negated, Set<String> values) {
+        this(col1, negated ? "not in" : "in", (Column) null);
+        _values = values;
+        _members = new HashSet<Object>();
+        for (String value : values) {
+            _members.add(member(col1.getType(), value));
+        }
+    }
+
+    /** Return a Condition that performs my test on the columns with the
+     *  same names as mine in TABLES. */
+    Condition bind(Table... tables) {
+        Column col1 = new Column(_col1.getName(), tables);
+        if (_values != null) {
+            return new Condition(col1, _relation.equals("not in"), _values);
+        }
         if (_val2 != null) {
-            val2 = _val2;
+            return new Condition(col1, _relation, _val2);
+        }
+        return new Condition(col1, _relation,
+                             new Column(_col2.getName(), tables));
+    }
+
+    /** Assuming that ROWS are physical row indices in the respective
+     *  tables from which my columns are selected, returns the result of
+     *  performing the test I denote. */
+    boolean test(int... rows) {
+        if (_values != null) {
+            return _members.contains(member(_col1.getType(),
+                                            _col1.getFrom(rows)))
+                == _relation.equals("in");
+        }
+        int c;
+        if (_val2 == null) {
+            c = compareColumns(rows);
         } else {
-            val2 = _col2.getFrom(rows);
+            c = compareLiteral(rows);
         }
         if (_relation.equals("<")) {
-            return (val1.compareTo(val2) < 0);
+            return c < 0;
         } else if (_relation.equals(">")) {
-            return (val1.compareTo(val2) > 0);
+            return c > 0;
         } else if (_relation.equals("<=")) {
-            return (val1.compareTo(val2) <= 0);
+            return c <= 0;
         } else if (_relation.equals(">=")) {
-            return (val1.compareTo(val2) >= 0);
+            return c >= 0;
         } else if (_relation.equals("=")) {
-            return (val1.compareTo(val2) == 0);
+            return c == 0;
         } else if (_relation.equals("!=")) {
-            return (val1.compareTo(val2) != 0);
+            return c != 0;
         }
         return false;
     }
 
+    /** Return VALUE, a value of or compared with a column of type TYPE,
+     *  as a member of _members: VALUE itself for a string column, and
+     *  otherwise the number it denotes, as a Long if it is an integer
+     *  that fits, so that numerically equal values give equal members. */
+    private static Object member(ColumnType type, String value) {
+        if (!type.numeric()) {
+            return value;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException excp) {
+            /* Not written as a long */
+        }
+        try {
+            BigDecimal number = new BigDecimal(value).stripTrailingZeros();
+            try {
+                return number.longValueExact();
+            } catch (ArithmeticException excp) {
+                return number;
+            }
+        } catch (NumberFormatException excp) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException excp2) {
+                return value;
+            }
+        }
+    }
+
+    /** Return true iff I compare a column of TABLE with a literal, and
+     *  that column is taken from the first row of those passed to test,
+     *  so that mayMatch applies to scans of TABLE. */
+    boolean prunes(Table table) {
+        return _val2 != null && _col1.getTable() == table
+            && _col1.tableIndex() == 0;
+    }
+
+    /** Return true iff all my column operands are taken from row number
+     *  T of those passed to test. */
+    boolean within(int t) {
+        return _col1.tableIndex() == t
+            && (_col2 == null || _col2.tableIndex() == t);
+    }
+
+    /** Return the text of a Java expression that is true iff physical
+     *  row ROW (the name of an int variable) of TABLE (the name of a
+     *  variable holding the table of my columns) satisfies me, or null if
+     *  I have none.  All my columns must be from that table. */
+    String expression(String table, String row) {
+        if (_values != null) {
+            return null;
+        }
+        String relation = _relation.equals("=") ? "==" : _relation;
+        String compare, col1 = _col1.getColumn() + "";
+        if (_col2 != null) {
+            String col2 = _col2.getColumn() + "";
+            ColumnType type1 = _col1.getType(), type2 = _col2.getType();
+            if (type1.integral() && type2.integral()) {
+                compare = String.format("Long.compare("
+                                        + "%1$s.longValue(%2$s, %3$s),"
+                                        + " %1$s.longValue(%2$s, %4$s))",
+                                        table, row, col1, col2);
+            } else if (type1.numeric() && type2.numeric()) {
+                compare = String.format("ColumnType.compareDoubles("
+                                        + "%1$s.doubleValue(%2$s, %3$s),"
+                                        + " %1$s.doubleValue(%2$s, %4$s))",
+                                        table, row, col1, col2);
+            } else {
+                compare = String.format("%1$s.value(%2$s, %3$s)"
+                                        + ".compareTo(%1$s.value(%2$s, %4$s))",
+                                        table, row, col1, col2);
+            }
+        } else {
+            String literal;
+            if (!_col1.getType().numeric()) {
+                literal = QueryCompiler.quote(_val2);
+            } else if (_integral) {
+                literal = _long2 + "L";
+            } else {
+                literal = String.format("Double.longBitsToDouble(%dL)",
+                                        Double.doubleToRawLongBits(_double2));
+            }
+            compare = String.format("%s.compareValue(%s, %s, %s)",
+                                    table, row, col1, literal);
+        }
+        return compare + " " + relation + " 0";
+    }
+
+    /** Return true iff I test membership in the result of a subquery. */
+    boolean subquery() {
+        return _values != null;
+    }
+
+    /** Return true iff I compare a column of TABLE with a literal by a
+     *  relation other than !=, as for prunes, so that a Cracker on the
+     *  column can find the rows satisfying me. */
+    boolean cracks(Table table) {
+        return prunes(table) && !_relation.equals("!=");
+    }
+
+    /** Return the set of values that the column of TABLE I test must
+     *  lie in, if I am an in condition on a column of TABLE taken from the
+     *  first row of those passed to test (otherwise null). */
+    Set<String> members(Table table) {
+        if (_values == null || !_relation.equals("in")
+            || _col1.getTable() != table || _col1.tableIndex() != 0) {
+            return null;
+        }
+        return _values;
+    }
+
+    /** Return my text as it would appear in a where clause, or null if
+     *  I test membership in the result of a subquery. */
+    String text() {
+        if (_values != null) {
+            return null;
+        }
+        return _col1.getName() + " " + _relation + " "
+            + (_col2 != null ? _col2.getName() : "'" + _val2 + "'");
+    }
+
+    /** Return my relation. */
+    String relation() {
+        return _relation;
+    }
+
+    /** Return my literal operand, or null if I have none. */
+    String literal() {
+        return _val2;
+    }
+
+    /** Return the number of the column I test, within its table. */
+    int column() {
+        return _col1.getColumn();
+    }
+
+    /** Assuming that I compare a column with a literal, return false if
+     *  no row whose value in that column lies between the values in
+     *  physical rows MINROW and MAXROW (inclusive) can satisfy me. */
+    boolean mayMatch(int minRow, int maxRow) {
+        return mayMatchRange(compareLiteral(minRow), compareLiteral(maxRow));
+    }
+
+    /** Assuming that I compare a column with a literal, return false if
+     *  no row whose value in that column lies between MIN and MAX
+     *  (inclusive), two values of the column, can satisfy me. */
+    boolean mayMatch(String min, String max) {
+        ColumnType type = _col1.getType();
+        return mayMatchRange(type.compareLiterals(min, _val2),
+                             type.compareLiterals(max, _val2));
+    }
+
+    /** Return false if no value that compares with my literal as LO or
+     *  greater and as HI or less can satisfy me. */
+    private boolean mayMatchRange(int lo, int hi) {
+        if (_relation.equals("<")) {
+            return lo < 0;
+        } else if (_relation.equals(">")) {
+            return hi > 0;
+        } else if (_relation.equals("<=")) {
+            return lo <= 0;
+        } else if (_relation.equals(">=")) {
+            return hi >= 0;
+        } else if (_relation.equals("=")) {
+            return lo <= 0 && hi >= 0;
+        } else if (_relation.equals("!=")) {
+            return lo != 0 || hi != 0;
+        }
+        return true;
+    }
+
+    /** Return the comparison of my column operand from ROWS with my
+     *  literal operand. */
+    int compareLiteral(int... rows) {
+        if (!_col1.getType().numeric()) {
+            return _col1.compareFrom(_val2, rows);
+        } else if (_integral) {
+            return _col1.compareFrom(_long2, rows);
+        } else {
+            return _col1.compareFrom(_double2, rows);
+        }
+    }
+
+    /** Return the comparison of my two column operands from ROWS:
+     *  numeric if both are numeric, and otherwise lexicographic. */
+    private int compareColumns(int... rows) {
+        ColumnType type1 = _col1.getType(), type2 = _col2.getType();
+        if (type1.integral() && type2.integral()) {
+            return Long.compare(_col1.getLongFrom(rows),
+                                _col2.getLongFrom(rows));
+        } else if (type1.numeric() && type2.numeric()) {
+            return ColumnType.compareDoubles(_col1.getDoubleFrom(rows),
+                                             _col2.getDoubleFrom(rows));
+        }
+        return _col1.getFrom(rows).compareTo(_col2.getFrom(rows));
+    }
+
     /** Return true iff ROWS satisfies all CONDITIONS. */
-    static boolean test(List<Condition> conditions, Integer... rows) {
+    static boolean test(List<Condition> conditions, int... rows) {
         for (Condition cond : conditions) {
             if (!cond.test(rows)) {
                 return false;
@@ -67,6 +316,19 @@ class Condition {
     private Column _col1, _col2;
     /** Second operand, if literal (otherwise null). */
     private String _val2;
+    /** The values selected by my subquery, if I am an in or not in
+     *  condition (otherwise null). */
+    private Set<String> _values;
+    /** If _values is not null, its values as given by member for the
+     *  type of _col1. */
+    private HashSet<Object> _members;
+    /** The literal second operand as a number, if _col1 is numeric:
+     *  _long2 if _integral, and otherwise _double2. */
+    private long _long2;
+    /** The literal second operand as a non-integral number. */
+    private double _double2;
+    /** True iff the literal second operand is an integer. */
+    private boolean _integral;
     /**
      * Holds the operand denoting the comparison between the values. */
     private String _relation;
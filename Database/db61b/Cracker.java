@@ -0,0 +1,156 @@
+package db61b;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** An adaptive index (a "cracker column") on one column of a Table,
+ *  built up as a side effect of the selects that compare the column with
+ *  literals.  It holds the physical indices of the table's rows in a
+ *  single array, partitioned into pieces by the literals queried so far:
+ *  every row of a piece has a smaller value than every row of the next.
+ *  A query on a new literal partitions (cracks) only the piece in which
+ *  the literal falls, as in one step of quicksort, and its result is
+ *  then a contiguous range of the array, so that the more a column is
+ *  queried, the closer lookups on it come to the cost of an index.
+ *  Rows added to the table after the cracker was made are kept aside
+ *  and examined by every query, until there are enough of them that the
+ *  cracker is rebuilt.
+ *  @author Brandon Griffin
+ */
+class Cracker {
+
+    /** Tables with fewer physical rows than this are not cracked. */
+    static final int MIN_ROWS = 1 << 12;
+    /** Number of selects that must compare a column with a literal before
+     *  it is cracked. */
+    static final int QUERIES = 2;
+
+    /** A cracker on column COL of TABLE, holding all its current rows in
+     *  a single piece. */
+    Cracker(Table table, int col) {
+        _table = table;
+        _type = table.getType(col);
+        _covered = table.physicalSize();
+        _rows = new int[_covered];
+        for (int k = 0; k < _covered; k += 1) {
+            _rows[k] = k;
+        }
+        _bounds = new TreeMap<Bound, Integer>(this::compare);
+    }
+
+    /** Return true iff so many rows have been added to my table since I
+     *  was made that I should be rebuilt. */
+    boolean stale() {
+        return _table.physicalSize() - _covered > _covered / 4;
+    }
+
+    /** Return the number of my table's physical rows that I hold (rows
+     *  0 .. covered() - 1). */
+    int covered() {
+        return _covered;
+    }
+
+    /** Return my Ith row index. */
+    int row(int i) {
+        return _rows[i];
+    }
+
+    /** Return the range [LO, HI) of my row indices, as { LO, HI }, that
+     *  holds exactly those of my rows that satisfy CONDITIONS, each of
+     *  which compares my column with a literal by a relation other than
+     *  !=, cracking my pieces as needed. */
+    int[] range(List<Condition> conditions) {
+        int lo = 0, hi = _rows.length;
+        for (Condition cond : conditions) {
+            switch (cond.relation()) {
+            case "<":
+                hi = Math.min(hi, crack(cond, false));
+                break;
+            case "<=":
+                hi = Math.min(hi, crack(cond, true));
+                break;
+            case ">":
+                lo = Math.max(lo, crack(cond, true));
+                break;
+            case ">=":
+                lo = Math.max(lo, crack(cond, false));
+                break;
+            case "=":
+                lo = Math.max(lo, crack(cond, false));
+                hi = Math.min(hi, crack(cond, true));
+                break;
+            default:
+                break;
+            }
+        }
+        return new int[] { lo, Math.max(lo, hi) };
+    }
+
+    /** Return the position P in _rows such that the rows before P are
+     *  exactly those whose values are less than (or, if INCLUSIVE, at
+     *  most) the literal of COND, partitioning the piece containing P if
+     *  this literal has not been queried before. */
+    private int crack(Condition cond, boolean inclusive) {
+        Bound bound = new Bound(cond.literal(), inclusive);
+        Integer known = _bounds.get(bound);
+        if (known != null) {
+            return known;
+        }
+        Map.Entry<Bound, Integer> below = _bounds.lowerEntry(bound),
+            above = _bounds.higherEntry(bound);
+        int i = below == null ? 0 : below.getValue(),
+            j = (above == null ? _rows.length : above.getValue()) - 1;
+        int[] one = new int[1];
+        while (i <= j) {
+            one[0] = _rows[i];
+            int c = cond.compareLiteral(one);
+            if (c < 0 || inclusive && c == 0) {
+                i += 1;
+            } else {
+                int t = _rows[i];
+                _rows[i] = _rows[j];
+                _rows[j] = t;
+                j -= 1;
+            }
+        }
+        _bounds.put(bound, i);
+        return i;
+    }
+
+    /** Return the comparison of bounds B0 and B1: by their literals, and
+     *  then strict before inclusive. */
+    private int compare(Bound b0, Bound b1) {
+        int c = _type.compareLiterals(b0.literal, b1.literal);
+        if (c != 0) {
+            return c;
+        }
+        return Boolean.compare(b0.inclusive, b1.inclusive);
+    }
+
+    /** A boundary between pieces: rows before it have values less than
+     *  (or, if inclusive, at most) its literal. */
+    private static class Bound {
+        /** A boundary at LITERAL, inclusive iff INCLUSIVE. */
+        Bound(String literal, boolean inclusive) {
+            this.literal = literal;
+            this.inclusive = inclusive;
+        }
+
+        /** The value at which I divide rows. */
+        private final String literal;
+        /** True iff rows with my literal as value precede me. */
+        private final boolean inclusive;
+    }
+
+    /** The table whose column I index. */
+    private final Table _table;
+    /** The type of my column. */
+    private final ColumnType _type;
+    /** The number of physical rows of _table I hold. */
+    private final int _covered;
+    /** Physical row indices of _table, partitioned into pieces. */
+    private final int[] _rows;
+    /** The positions in _rows of the boundaries between pieces. */
+    private final TreeMap<Bound, Integer> _bounds;
+}
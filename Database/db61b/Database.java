@@ -1,5 +1,9 @@
 package db61b;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /** A collection of Tables, indexed by name.
  *  @author Brandon Griffin*/
@@ -7,6 +11,9 @@ class Database {
     /** An empty database. */
     public Database() {
         _hash = new HashMap<>();
+        _versions = new HashMap<>();
+        _views = new HashMap<>();
+        _clock = 0;
     }
 
     /** Return the Table whose name is NAME stored in this database, or null
@@ -16,15 +23,107 @@ class Database {
     }
 
     /** Set or replace the table named NAME in THIS to TABLE.  TABLE and
-     *  NAME must not be null, and NAME must be a valid name for a table. */
+     *  NAME must not be null, and NAME must be a valid name for a table.
+     *  A replaced table's storage is released.  If NAME was a
+     *  materialized view, it becomes an ordinary table, and materialized
+     *  views that select from NAME are recomputed (or, if they no longer
+     *  apply to the new table, become ordinary tables). */
     public void put(String name, Table table) {
         if (name == null || table == null) {
             throw new IllegalArgumentException("null argument");
         }
-        if (_hash.putIfAbsent(name, table) != null) {
-            _hash.replace(name, table);
+        _clock += 1;
+        _versions.put(name, _clock);
+        Table old = _hash.put(name, table);
+        if (old != null && old != table) {
+            old.release();
+        }
+        MaterializedView replaced = _views.get(name);
+        if (replaced != null && replaced.table() != table) {
+            _views.remove(name);
+        }
+        refreshViews(name);
+    }
+
+    /** Recompute the materialized views that select from the table named
+     *  NAME.  Those that no longer apply to it become ordinary tables. */
+    private void refreshViews(String name) {
+        for (MaterializedView view : new ArrayList<>(_views.values())) {
+            if (view.reads(name)) {
+                try {
+                    put(view.name(), view.refresh(this));
+                } catch (DBException excp) {
+                    _views.remove(view.name());
+                }
+            }
+        }
+    }
+
+    /** Add VIEW to THIS, under its name, as for put. */
+    public void putView(MaterializedView view) {
+        put(view.name(), view.table());
+        _views.put(view.name(), view);
+    }
+
+    /** Return true iff NAME is a materialized view. */
+    public boolean isView(String name) {
+        return _views.containsKey(name);
+    }
+
+    /** Update the materialized views that select from the table named
+     *  NAME for the insertion of its physical row ROW. */
+    public void inserted(String name, int row) {
+        for (MaterializedView view : new ArrayList<>(_views.values())) {
+            if (view.reads(name)) {
+                IntList added = view.inserted(name, row);
+                for (int i = 0; i < added.size(); i += 1) {
+                    inserted(view.name(), added.get(i));
+                }
+            }
         }
     }
+
+    /** Return the version of the table named NAME: a number that changes
+     *  whenever put replaces it (or 0 if there is no such table).  Changes
+     *  to the contents of the Table itself are tracked by Table.version. */
+    public long version(String name) {
+        return _versions.getOrDefault(name, 0L);
+    }
+
+    /** Update the materialized views that select from the table named
+     *  NAME after rows of it have been deleted or changed, and, once
+     *  enough of its rows are deleted, compact it in the background.
+     *  Compaction holds the lock on THIS, which must also be held while
+     *  using the table. */
+    public void changed(String name) {
+        refreshViews(name);
+        Table table = _hash.get(name);
+        if (table.needsCompaction()) {
+            COMPACTOR.execute(() -> {
+                synchronized (this) {
+                    if (_hash.get(name) == table && table.needsCompaction()) {
+                        table.compact();
+                        refreshViews(name);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Runs compactions, one at a time, in a background thread. */
+    private static final Executor COMPACTOR =
+        Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
     /** holds names of tables and corresponding tables. */
     private HashMap<String, Table> _hash;
+    /** Version of each table name. */
+    private HashMap<String, Long> _versions;
+    /** Materialized views, by name. */
+    private HashMap<String, MaterializedView> _views;
+    /** Number of calls to put so far, used to number versions. */
+    private long _clock;
 }
@@ -0,0 +1,248 @@
+package db61b;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+import static db61b.Utils.*;
+
+/** Sorts a sequence of rows that need not fit in memory, removing
+ *  duplicates.  Rows are collected in memory until their estimated size
+ *  exceeds a budget, whereupon they are sorted and spilled to a temporary
+ *  file as a sorted run.  The runs are finally combined by a k-way merge
+ *  using a heap, which also drops rows equal to the preceding one.  Each
+ *  row's numeric values are parsed once, as it is added or read back from
+ *  a run, and the parsed values are kept with it for comparisons.
+ *  @author Brandon Griffin
+ */
+class ExternalSort {
+
+    /** Approximate overhead in bytes of a row and of each of its values,
+     *  beyond the characters themselves. */
+    private static final int ROW_OVERHEAD = 32, VALUE_OVERHEAD = 48;
+    /** Approximate size in bytes of a parsed numeric value. */
+    private static final int PARSED_OVERHEAD = 24;
+    /** Size of the buffers used to read and write runs. */
+    private static final int RUN_BUFFER = 1 << 16;
+
+    /** A sorter ordering rows by ORDER that holds no more than about
+     *  BUDGET bytes of rows in memory at once. */
+    ExternalSort(RowOrder order, long budget) {
+        _order = order;
+        _budget = budget;
+        _rows = new ArrayList<>();
+        _runs = new ArrayList<>();
+        _bytes = 0;
+    }
+
+    /** A sorter ordering rows lexicographically by all columns, using the
+     *  current memory budget. */
+    ExternalSort() {
+        this(RowOrder.LEXICOGRAPHIC, memoryBudget());
+    }
+
+    /** Add ROW to the rows being sorted.  Throws a DBException if it
+     *  has a value that is invalid for the type of its column. */
+    void add(String[] row) {
+        Keyed keyed = new Keyed(row, _order.parse(row));
+        _rows.add(keyed);
+        _bytes += ROW_OVERHEAD;
+        for (String value : row) {
+            _bytes += VALUE_OVERHEAD + 2 * value.length();
+        }
+        if (keyed.key != row) {
+            _bytes += PARSED_OVERHEAD * row.length;
+        }
+        if (_bytes > _budget) {
+            spill();
+        }
+    }
+
+    /** Return the number of runs spilled to disk so far. */
+    int runs() {
+        return _runs.size();
+    }
+
+    /** Pass each of the distinct rows added so far to SINK in order, and
+     *  discard them. */
+    void drain(Consumer<String[]> sink) {
+        try {
+            if (_runs.isEmpty()) {
+                _rows.sort(this::compare);
+                Keyed last = null;
+                for (Keyed row : _rows) {
+                    if (last == null || compare(last, row) != 0) {
+                        sink.accept(row.row);
+                    }
+                    last = row;
+                }
+                _rows.clear();
+            } else {
+                spill();
+                merge(sink);
+            }
+        } finally {
+            for (File run : _runs) {
+                run.delete();
+            }
+            _runs.clear();
+            _rows.clear();
+            _bytes = 0;
+        }
+    }
+
+    /** Sort the rows in memory and write them out as a new run. */
+    private void spill() {
+        if (_rows.isEmpty()) {
+            return;
+        }
+        _rows.sort(this::compare);
+        File run;
+        try {
+            run = File.createTempFile("db61b", ".run");
+            run.deleteOnExit();
+            _runs.add(run);
+        } catch (IOException excp) {
+            throw error("could not create sort run: %s", excp.getMessage());
+        }
+        try (DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream
+                                  (new FileOutputStream(run), RUN_BUFFER))) {
+            Keyed last = null;
+            for (Keyed row : _rows) {
+                if (last != null && compare(last, row) == 0) {
+                    continue;
+                }
+                out.writeInt(row.row.length);
+                for (String value : row.row) {
+                    writeString(out, value);
+                }
+                last = row;
+            }
+        } catch (IOException excp) {
+            throw error("could not write sort run: %s", excp.getMessage());
+        }
+        _rows.clear();
+        _bytes = 0;
+    }
+
+    /** Merge all runs, passing distinct rows to SINK in order. */
+    private void merge(Consumer<String[]> sink) {
+        PriorityQueue<Run> heap =
+            new PriorityQueue<>(_runs.size(),
+                                (r0, r1) -> compare(r0._row, r1._row));
+        try {
+            for (File file : _runs) {
+                Run run = new Run(file, _order);
+                if (run.advance()) {
+                    heap.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            Keyed last = null;
+            while (!heap.isEmpty()) {
+                Run run = heap.poll();
+                if (last == null || compare(last, run._row) != 0) {
+                    sink.accept(run._row.row);
+                    last = run._row;
+                }
+                if (run.advance()) {
+                    heap.add(run);
+                } else {
+                    run.close();
+                }
+            }
+        } catch (IOException excp) {
+            throw error("could not read sort run: %s", excp.getMessage());
+        } finally {
+            for (Run run : heap) {
+                run.close();
+            }
+        }
+    }
+
+    /** Return the comparison of R0 and R1 in my order. */
+    private int compare(Keyed r0, Keyed r1) {
+        return _order.compareParsed(r0.key, r1.key);
+    }
+
+    /** A row along with its values as parsed by RowOrder.parse. */
+    private static class Keyed {
+        /** The row ROW, whose values parse to KEY. */
+        Keyed(String[] row, Object[] key) {
+            this.row = row;
+            this.key = key;
+        }
+
+        /** The row. */
+        final String[] row;
+        /** Its parsed values. */
+        final Object[] key;
+    }
+
+    /** A cursor over the rows of a spilled run. */
+    private static class Run {
+        /** A cursor positioned before the first row of FILE, whose rows
+         *  are parsed as by ORDER. */
+        Run(File file, RowOrder order) throws IOException {
+            _in = new DataInputStream(new BufferedInputStream
+                                      (new FileInputStream(file),
+                                       RUN_BUFFER));
+            _order = order;
+        }
+
+        /** Read the next row into _row, returning false at the end of
+         *  the run. */
+        boolean advance() throws IOException {
+            int n;
+            try {
+                n = _in.readInt();
+            } catch (EOFException excp) {
+                return false;
+            }
+            String[] row = new String[n];
+            for (int i = 0; i < n; i += 1) {
+                row[i] = readString(_in);
+            }
+            _row = new Keyed(row, _order.parse(row));
+            return true;
+        }
+
+        /** Close my file. */
+        void close() {
+            try {
+                _in.close();
+            } catch (IOException excp) {
+                /* Ignore IOException */
+            }
+        }
+
+        /** The current row. */
+        private Keyed _row;
+        /** Source of rows. */
+        private DataInputStream _in;
+        /** Order whose parse gives the key of each row. */
+        private final RowOrder _order;
+    }
+
+    /** Order of the sorted rows. */
+    private final RowOrder _order;
+    /** Maximum estimated bytes of rows to hold in memory. */
+    private final long _budget;
+    /** Rows added since the last spill. */
+    private ArrayList<Keyed> _rows;
+    /** Estimated size of _rows in bytes. */
+    private long _bytes;
+    /** Files holding spilled runs. */
+    private ArrayList<File> _runs;
+}
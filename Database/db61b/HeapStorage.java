@@ -0,0 +1,34 @@
+package db61b;
+
+import java.util.ArrayList;
+
+/** A ColumnStorage that keeps its values as Strings on the Java heap.
+ *  This is essentially ArrayList<String>.  For technical reasons, we
+ *  encapsulate ArrayList<String> like this because the underlying design
+ *  of Java does not properly distinguish between different kinds of
+ *  ArrayList at runtime, which leads to annoying compiler warnings.
+ *  @author Brandon Griffin
+ */
+class HeapStorage extends ArrayList<String> implements ColumnStorage {
+
+    @Override
+    public void append(String value) {
+        add(value);
+    }
+
+    @Override
+    public int compare(int k0, int k1) {
+        return get(k0).compareTo(get(k1));
+    }
+
+    @Override
+    public int compareTo(int k, String value) {
+        return get(k).compareTo(value);
+    }
+
+    @Override
+    public void release() {
+        clear();
+        trimToSize();
+    }
+}
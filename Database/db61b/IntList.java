@@ -0,0 +1,86 @@
+package db61b;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/** A growable list of ints, held in a primitive array, so that neither
+ *  storing nor fetching an element allocates.
+ *  @author Brandon Griffin
+ */
+class IntList {
+
+    /** An empty list. */
+    IntList() {
+        this(16);
+    }
+
+    /** An empty list with room for CAPACITY elements. */
+    IntList(int capacity) {
+        _data = new int[Math.max(capacity, 1)];
+        _size = 0;
+    }
+
+    /** Return the number of elements. */
+    int size() {
+        return _size;
+    }
+
+    /** Return element number K (0 <= K < size()). */
+    int get(int k) {
+        if (k < 0 || k >= _size) {
+            throw new IndexOutOfBoundsException("no element " + k);
+        }
+        return _data[k];
+    }
+
+    /** Add V as the last element. */
+    void add(int v) {
+        ensureCapacity(_size + 1);
+        _data[_size] = v;
+        _size += 1;
+    }
+
+    /** Insert V as element number K (0 <= K <= size()), moving the
+     *  elements from K on up by one. */
+    void add(int k, int v) {
+        if (k < 0 || k > _size) {
+            throw new IndexOutOfBoundsException("no position " + k);
+        }
+        ensureCapacity(_size + 1);
+        System.arraycopy(_data, k, _data, k + 1, _size - k);
+        _data[k] = v;
+        _size += 1;
+    }
+
+    /** Remove all elements that satisfy PRED, keeping the others in
+     *  order. */
+    void removeIf(IntPredicate pred) {
+        int n;
+        n = 0;
+        for (int k = 0; k < _size; k += 1) {
+            if (!pred.test(_data[k])) {
+                _data[n] = _data[k];
+                n += 1;
+            }
+        }
+        _size = n;
+    }
+
+    /** Make room for at least CAPACITY elements. */
+    void ensureCapacity(int capacity) {
+        if (capacity > _data.length) {
+            _data = Arrays.copyOf(_data, Math.max(capacity,
+                                                  2 * _data.length));
+        }
+    }
+
+    /** Return a copy of my elements. */
+    int[] toArray() {
+        return Arrays.copyOf(_data, _size);
+    }
+
+    /** My elements, followed by unused space. */
+    private int[] _data;
+    /** Number of elements. */
+    private int _size;
+}
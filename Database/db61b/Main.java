@@ -12,8 +12,15 @@ public class Main {
 
     /** Starting with an empty database, read and execute commands from
      *  System.in until receiving a 'quit' ('exit') command or until
-     *  reaching the end of input. */
-    public static void main(String[] unused) {
+     *  reaching the end of input.  With the arguments '--worker I N',
+     *  serve instead as worker number I of a cluster of N (see
+     *  Cluster). */
+    public static void main(String[] args) {
+        if (args.length == 3 && args[0].equals("--worker")) {
+            Cluster.serve(Integer.parseInt(args[1]),
+                          Integer.parseInt(args[2]));
+            return;
+        }
         System.out.printf("DB61B System.  Version %s.%n", VERSION);
 
         Database db = new Database();
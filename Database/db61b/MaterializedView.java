@@ -0,0 +1,187 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static db61b.Utils.*;
+
+/** A table holding the result of a select from one or two named source
+ *  tables, kept current as rows are inserted into its sources.  Each
+ *  inserted row is tested against the view's conditions as a delta,
+ *  rather than by recomputing the view: a row of a single source is
+ *  simply filtered, and a row of one side of a join is probed against a
+ *  hash index, on the columns the sources have in common, of the rows of
+ *  the other side.  When a source is replaced as a whole (by load or
+ *  create), the view is recomputed from the new source.
+ *  @author Brandon Griffin
+ */
+class MaterializedView {
+
+    /** A view named NAME of the columns COLUMNNAMES of the rows (or
+     *  pairs of rows) of the tables named SOURCES in DB that satisfy
+     *  CONDITIONS, kept in order ORDER. */
+    MaterializedView(String name, List<String> columnNames,
+                     List<String> sources, List<Condition> conditions,
+                     RowOrder order, Database db) {
+        _name = name;
+        _columnNames = new ArrayList<String>(columnNames);
+        _sources = sources.toArray(new String[sources.size()]);
+        _conditions = new ArrayList<Condition>(conditions);
+        _order = order;
+        build(db);
+    }
+
+    /** Return my name. */
+    String name() {
+        return _name;
+    }
+
+    /** Return the table holding my rows. */
+    Table table() {
+        return _table;
+    }
+
+    /** Return true iff I select from the table named SOURCE. */
+    boolean reads(String source) {
+        for (String name : _sources) {
+            if (name.equals(source)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Recompute me from the current contents of my sources in DB,
+     *  returning the new table holding my rows. */
+    Table refresh(Database db) {
+        build(db);
+        return _table;
+    }
+
+    /** Add to my table the rows due to the insertion of physical row ROW
+     *  into my source SOURCE, returning the physical indices of the rows
+     *  added. */
+    IntList inserted(String source, int row) {
+        IntList added = new IntList();
+        if (_tables.length == 1) {
+            int[] rows = { row };
+            if (Condition.test(_conditions, rows)) {
+                insert(rows, added);
+            }
+            return added;
+        }
+        for (int side = 0; side < 2; side += 1) {
+            if (_sources[side].equals(source)) {
+                _index.get(side)
+                    .computeIfAbsent(key(side, row), x -> new IntList())
+                    .add(row);
+            }
+        }
+        int[] rows = new int[2];
+        for (int side = 0; side < 2; side += 1) {
+            if (!_sources[side].equals(source)) {
+                continue;
+            }
+            IntList matches = _index.get(1 - side).get(key(side, row));
+            if (matches == null) {
+                continue;
+            }
+            rows[side] = row;
+            for (int i = 0; i < matches.size(); i += 1) {
+                rows[1 - side] = matches.get(i);
+                if (Condition.test(_conditions, rows)) {
+                    insert(rows, added);
+                }
+            }
+        }
+        return added;
+    }
+
+    /** Add the row selected by ROWS to my table, appending its physical
+     *  index to ADDED if it is new. */
+    private void insert(int[] rows, IntList added) {
+        if (_table.add(_columns, rows)) {
+            added.add(_table.physicalSize() - 1);
+        }
+    }
+
+    /** Return the values of the join columns of physical row ROW of my
+     *  source on side SIDE. */
+    private List<String> key(int side, int row) {
+        return Arrays.asList(Table.project(_keys.get(side), row));
+    }
+
+    /** Bind my columns and conditions to the current tables named by my
+     *  sources in DB and compute my contents from them. */
+    private void build(Database db) {
+        _tables = new Table[_sources.length];
+        for (int k = 0; k < _sources.length; k += 1) {
+            _tables[k] = db.get(_sources[k]);
+            if (_tables[k] == null) {
+                throw error("unknown table: %s", _sources[k]);
+            }
+        }
+        _columns = new ArrayList<Column>();
+        for (String name : _columnNames) {
+            _columns.add(new Column(name, _tables));
+        }
+        ArrayList<Condition> conditions = new ArrayList<Condition>();
+        for (Condition cond : _conditions) {
+            conditions.add(cond.bind(_tables));
+        }
+        _conditions = conditions;
+        Table table2 = _tables.length == 1 ? null : _tables[1];
+        _table = _tables[0].select(table2, _columnNames, _conditions,
+                                   _order, -1);
+        if (table2 == null) {
+            return;
+        }
+        _keys = new ArrayList<ArrayList<Column>>();
+        _keys.add(new ArrayList<Column>());
+        _keys.add(new ArrayList<Column>());
+        for (int j = 0; j < _tables[0].columns(); j += 1) {
+            String title = _tables[0].getTitle(j);
+            if (_tables[1].findColumn(title) != -1) {
+                _keys.get(0).add(new Column(title, _tables[0], _tables[1]));
+                _keys.get(1).add(new Column(title, _tables[1], _tables[0]));
+            }
+        }
+        _index = new ArrayList<HashMap<List<String>, IntList>>();
+        for (int side = 0; side < 2; side += 1) {
+            _index.add(new HashMap<List<String>, IntList>());
+            for (int k = 0; k < _tables[side].physicalSize(); k += 1) {
+                if (_tables[side].deleted(k)) {
+                    continue;
+                }
+                _index.get(side)
+                    .computeIfAbsent(key(side, k), x -> new IntList())
+                    .add(k);
+            }
+        }
+    }
+
+    /** My name. */
+    private final String _name;
+    /** Names of my columns. */
+    private final ArrayList<String> _columnNames;
+    /** Names of the tables I select from. */
+    private final String[] _sources;
+    /** Conditions on my rows, bound to _tables. */
+    private ArrayList<Condition> _conditions;
+    /** Order of my rows. */
+    private final RowOrder _order;
+    /** The tables named by _sources when I was last built. */
+    private Table[] _tables;
+    /** My columns, bound to _tables. */
+    private ArrayList<Column> _columns;
+    /** The table holding my rows. */
+    private Table _table;
+    /** For a join, the common columns of each side, taken from a single
+     *  row of that side. */
+    private ArrayList<ArrayList<Column>> _keys;
+    /** For a join, the physical indices of the rows of each side, by the
+     *  values of _keys. */
+    private ArrayList<HashMap<List<String>, IntList>> _index;
+}
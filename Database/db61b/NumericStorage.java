@@ -0,0 +1,249 @@
+package db61b;
+
+import java.util.Arrays;
+
+import static db61b.Utils.*;
+
+/** A ColumnStorage for numbers, held in a primitive array and compared
+ *  numerically.  Values are parsed once, when appended.  Comparisons
+ *  against numbers allocate nothing.
+ *  @author Brandon Griffin
+ */
+abstract class NumericStorage implements ColumnStorage {
+
+    /** Initial number of values I have room for. */
+    static final int INITIAL_VALUES = 64;
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    /** Return value number K as a long, truncating if need be. */
+    abstract long getLong(int k);
+
+    /** Return value number K as a double. */
+    abstract double getDouble(int k);
+
+    /** Return <0, 0, or >0 depending on whether value number K is less
+     *  than, equal to, or greater than V. */
+    abstract int compareTo(int k, long v);
+
+    /** Return <0, 0, or >0 depending on whether value number K is less
+     *  than, equal to, or greater than V. */
+    int compareTo(int k, double v) {
+        return ColumnType.compareDoubles(getDouble(k), v);
+    }
+
+    @Override
+    public int compareTo(int k, String value) {
+        try {
+            return compareTo(k, Long.parseLong(value));
+        } catch (NumberFormatException excp) {
+            try {
+                return compareTo(k, Double.parseDouble(value));
+            } catch (NumberFormatException excp2) {
+                throw error("invalid %s value: %s", type().typeName(), value);
+            }
+        }
+    }
+
+    /** Check that 0 <= K < size(). */
+    void checkIndex(int k) {
+        if (k < 0 || k >= _size) {
+            throw new IndexOutOfBoundsException("no value " + k);
+        }
+    }
+
+    /** Number of values stored. */
+    protected int _size;
+
+    /** Storage for int values. */
+    static class Ints extends NumericStorage {
+        @Override
+        public ColumnType type() {
+            return ColumnType.INT;
+        }
+
+        @Override
+        public String get(int k) {
+            checkIndex(k);
+            return Integer.toString(_data[k]);
+        }
+
+        @Override
+        long getLong(int k) {
+            checkIndex(k);
+            return _data[k];
+        }
+
+        @Override
+        double getDouble(int k) {
+            checkIndex(k);
+            return _data[k];
+        }
+
+        @Override
+        public void append(String value) {
+            int v;
+            try {
+                v = Integer.parseInt(value);
+            } catch (NumberFormatException excp) {
+                throw error("invalid int value: %s", value);
+            }
+            if (_size == _data.length) {
+                _data = Arrays.copyOf(_data, 2 * _data.length);
+            }
+            _data[_size] = v;
+            _size += 1;
+        }
+
+        @Override
+        public int compare(int k0, int k1) {
+            checkIndex(k0);
+            checkIndex(k1);
+            return Integer.compare(_data[k0], _data[k1]);
+        }
+
+        @Override
+        int compareTo(int k, long v) {
+            checkIndex(k);
+            return Long.compare(_data[k], v);
+        }
+
+        @Override
+        public void release() {
+            _data = new int[1];
+            _size = 0;
+        }
+
+        /** My values. */
+        private int[] _data = new int[INITIAL_VALUES];
+    }
+
+    /** Storage for long values. */
+    static class Longs extends NumericStorage {
+        @Override
+        public ColumnType type() {
+            return ColumnType.LONG;
+        }
+
+        @Override
+        public String get(int k) {
+            checkIndex(k);
+            return Long.toString(_data[k]);
+        }
+
+        @Override
+        long getLong(int k) {
+            checkIndex(k);
+            return _data[k];
+        }
+
+        @Override
+        double getDouble(int k) {
+            checkIndex(k);
+            return _data[k];
+        }
+
+        @Override
+        public void append(String value) {
+            long v;
+            try {
+                v = Long.parseLong(value);
+            } catch (NumberFormatException excp) {
+                throw error("invalid long value: %s", value);
+            }
+            if (_size == _data.length) {
+                _data = Arrays.copyOf(_data, 2 * _data.length);
+            }
+            _data[_size] = v;
+            _size += 1;
+        }
+
+        @Override
+        public int compare(int k0, int k1) {
+            checkIndex(k0);
+            checkIndex(k1);
+            return Long.compare(_data[k0], _data[k1]);
+        }
+
+        @Override
+        int compareTo(int k, long v) {
+            checkIndex(k);
+            return Long.compare(_data[k], v);
+        }
+
+        @Override
+        public void release() {
+            _data = new long[1];
+            _size = 0;
+        }
+
+        /** My values. */
+        private long[] _data = new long[INITIAL_VALUES];
+    }
+
+    /** Storage for double values. */
+    static class Doubles extends NumericStorage {
+        @Override
+        public ColumnType type() {
+            return ColumnType.DOUBLE;
+        }
+
+        @Override
+        public String get(int k) {
+            checkIndex(k);
+            return ColumnType.formatDouble(_data[k]);
+        }
+
+        @Override
+        long getLong(int k) {
+            checkIndex(k);
+            return (long) _data[k];
+        }
+
+        @Override
+        double getDouble(int k) {
+            checkIndex(k);
+            return _data[k];
+        }
+
+        @Override
+        public void append(String value) {
+            double v;
+            try {
+                v = Double.parseDouble(value);
+            } catch (NumberFormatException excp) {
+                throw error("invalid double value: %s", value);
+            }
+            if (_size == _data.length) {
+                _data = Arrays.copyOf(_data, 2 * _data.length);
+            }
+            _data[_size] = v;
+            _size += 1;
+        }
+
+        @Override
+        public int compare(int k0, int k1) {
+            checkIndex(k0);
+            checkIndex(k1);
+            return ColumnType.compareDoubles(_data[k0], _data[k1]);
+        }
+
+        @Override
+        int compareTo(int k, long v) {
+            checkIndex(k);
+            return ColumnType.compareDoubles(_data[k], v);
+        }
+
+        @Override
+        public void release() {
+            _data = new double[1];
+            _size = 0;
+        }
+
+        /** My values. */
+        private double[] _data = new double[INITIAL_VALUES];
+    }
+}
@@ -0,0 +1,192 @@
+package db61b;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static db61b.Utils.*;
+
+/** A ColumnStorage that encodes its values as UTF-16 characters in a
+ *  direct ByteBuffer, outside the garbage-collected heap.  Only the
+ *  offsets of the values (one int apiece) live on the heap.  Comparisons
+ *  read the characters in place, so they allocate nothing and agree
+ *  exactly with String.compareTo.  I own my buffer: the buffer I outgrow
+ *  when appending, and my buffer when I am released, are freed at once,
+ *  rather than when the garbage collector finds them unreachable (which
+ *  it may not do soon, since it does not see their native memory).
+ *  @author Brandon Griffin
+ */
+class OffHeapStorage implements ColumnStorage {
+
+    /** Initial capacity of my buffer in characters. */
+    private static final int INITIAL_CHARS = 1024;
+    /** Initial number of values I have room for. */
+    private static final int INITIAL_VALUES = 64;
+
+    /** An empty column. */
+    OffHeapStorage() {
+        _data = ByteBuffer.allocateDirect(2 * INITIAL_CHARS);
+        _offsets = new int[INITIAL_VALUES + 1];
+        _size = 0;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    @Override
+    public String get(int k) {
+        int start = start(k), len = _offsets[k + 1] - start;
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i += 1) {
+            chars[i] = _data.getChar(2 * (start + i));
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int getChars(int k, char[] buf) {
+        int start = start(k), len = _offsets[k + 1] - start;
+        if (len <= buf.length) {
+            for (int i = 0; i < len; i += 1) {
+                buf[i] = _data.getChar(2 * (start + i));
+            }
+        }
+        return len;
+    }
+
+    @Override
+    public void append(String value) {
+        checkLive();
+        int end = _offsets[_size], len = value.length();
+        if (2L * (end + len) > Integer.MAX_VALUE) {
+            throw error("column too large for off-heap storage");
+        }
+        if (2 * (end + len) > _data.capacity()) {
+            int cap = _data.capacity();
+            while (cap < 2 * (end + len)) {
+                cap = (int) Math.min(2L * cap, Integer.MAX_VALUE - 1);
+            }
+            ByteBuffer bigger = ByteBuffer.allocateDirect(cap);
+            _data.clear();
+            _data.limit(2 * end);
+            bigger.put(_data);
+            free(_data);
+            _data = bigger;
+        }
+        if (_size + 1 == _offsets.length) {
+            _offsets = Arrays.copyOf(_offsets, 2 * _offsets.length);
+        }
+        for (int i = 0; i < len; i += 1) {
+            _data.putChar(2 * (end + i), value.charAt(i));
+        }
+        _offsets[_size + 1] = end + len;
+        _size += 1;
+    }
+
+    @Override
+    public int compare(int k0, int k1) {
+        int s0 = start(k0), len0 = _offsets[k0 + 1] - s0;
+        int s1 = start(k1), len1 = _offsets[k1 + 1] - s1;
+        int n = Math.min(len0, len1);
+        for (int i = 0; i < n; i += 1) {
+            char c0 = _data.getChar(2 * (s0 + i)),
+                c1 = _data.getChar(2 * (s1 + i));
+            if (c0 != c1) {
+                return c0 - c1;
+            }
+        }
+        return len0 - len1;
+    }
+
+    @Override
+    public int compareTo(int k, String value) {
+        int s = start(k), len = _offsets[k + 1] - s;
+        int n = Math.min(len, value.length());
+        for (int i = 0; i < n; i += 1) {
+            char c = _data.getChar(2 * (s + i)), v = value.charAt(i);
+            if (c != v) {
+                return c - v;
+            }
+        }
+        return len - value.length();
+    }
+
+    /** Free my buffer, so that its native memory is reclaimed without
+     *  waiting for the garbage collector.  I may not be used afterward. */
+    @Override
+    public void release() {
+        ByteBuffer data = _data;
+        _data = null;
+        _offsets = new int[1];
+        _size = 0;
+        if (data != null) {
+            free(data);
+        }
+    }
+
+    /** Free the native memory of BUFFER, a direct buffer that is no
+     *  longer used, now.  If this JDK provides no way to do so, it is
+     *  left to the garbage collector. */
+    private static void free(ByteBuffer buffer) {
+        if (FREE != null) {
+            try {
+                FREE.invokeExact(buffer);
+            } catch (Throwable excp) {
+                /* Left to the garbage collector */
+            }
+        }
+    }
+
+    /** Return a handle on the method that frees a direct buffer at once,
+     *  sun.misc.Unsafe.invokeCleaner, bound to its Unsafe instance, or
+     *  null if there is none.  It is found reflectively, since it is not
+     *  a supported API. */
+    private static MethodHandle freer() {
+        try {
+            Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+            Field instance = unsafe.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            return MethodHandles.lookup()
+                .findVirtual(unsafe, "invokeCleaner",
+                             MethodType.methodType(void.class,
+                                                   ByteBuffer.class))
+                .bindTo(instance.get(null));
+        } catch (ReflectiveOperationException | RuntimeException excp) {
+            return null;
+        }
+    }
+
+    /** Frees direct buffers (see freer), or null. */
+    private static final MethodHandle FREE = freer();
+
+    /** Return the offset in characters of value number K, checking that
+     *  K is in range. */
+    private int start(int k) {
+        checkLive();
+        if (k < 0 || k >= _size) {
+            throw new IndexOutOfBoundsException("no value " + k);
+        }
+        return _offsets[k];
+    }
+
+    /** Check that I have not been released. */
+    private void checkLive() {
+        if (_data == null) {
+            throw error("table storage has been released");
+        }
+    }
+
+    /** My encoded values.  Value k occupies characters
+     *  _offsets[k] .. _offsets[k + 1] - 1. */
+    private ByteBuffer _data;
+    /** Start offsets (in characters) of my values, followed by the end
+     *  offset of the last one. */
+    private int[] _offsets;
+    /** Number of values stored. */
+    private int _size;
+}
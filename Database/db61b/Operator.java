@@ -0,0 +1,791 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static db61b.Utils.*;
+
+/** One stage of the plan by which a select statement is executed.  A
+ *  plan is a tree of Operators: scans at the leaves, and above them
+ *  filters, joins, projections, aggregations, sorts, and limits.  Each
+ *  Operator produces its rows in Batches and passes them to a Sink,
+ *  usually a stage of the Operator above it, so that rows stream up the
+ *  tree a batch at a time.  Only operators that must see all of their
+ *  input before producing output (sort, aggregate, limit, and the build
+ *  side of a join) hold more than a batch of rows.
+ *  @author Brandon Griffin
+ */
+abstract class Operator {
+
+    /** Runs the parts of scans that proceed in parallel. */
+    static final ExecutorService SCANNERS =
+        Executors.newFixedThreadPool(Runtime.getRuntime()
+                                     .availableProcessors(), r -> {
+                Thread thread = new Thread(r, "scanner");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** Receives the batches produced by an Operator. */
+    interface Sink {
+        /** Accept BATCH, which the caller may reuse once I return.
+         *  Return false if I want no more rows. */
+        boolean accept(Batch batch);
+    }
+
+    /** Pass my rows to SINK in batches, until there are no more or SINK
+     *  returns false.  Return false iff SINK returned false. */
+    abstract boolean produce(Sink sink);
+
+    /** Return the number of row indices in each of my rows, or 0 if my
+     *  rows are rows of values. */
+    abstract int width();
+
+    /** If BATCH is full, pass it to SINK and clear it.  Return false iff
+     *  SINK returned false. */
+    static boolean flushIfFull(Batch batch, Sink sink) {
+        if (!batch.full()) {
+            return true;
+        }
+        boolean more = sink.accept(batch);
+        batch.clear();
+        return more;
+    }
+
+    /** Pass BATCH, the last of an Operator's output, to SINK unless it is
+     *  empty.  Return false iff SINK returned false. */
+    static boolean flush(Batch batch, Sink sink) {
+        boolean more = batch.size() == 0 || sink.accept(batch);
+        batch.clear();
+        return more;
+    }
+
+    /** Pass the rows of TABLE, in its order, to SINK as rows of values,
+     *  until SINK returns false.  Return false iff it did. */
+    static boolean produceRows(Table table, Sink sink) {
+        Batch batch = new Batch(0);
+        IntList index = table.liveIndex();
+        for (int i = 0; i < index.size(); i += 1) {
+            if (!flushIfFull(batch, sink)) {
+                return false;
+            }
+            int k = index.get(i);
+            String[] values = new String[table.columns()];
+            for (int j = 0; j < values.length; j += 1) {
+                values[j] = table.value(k, j);
+            }
+            batch.add(values);
+        }
+        return flush(batch, sink);
+    }
+
+    /** Return those of CONDITIONS that compare a column of TABLE with a
+     *  literal, and so can be checked against TABLE's zone maps. */
+    static ArrayList<Condition> prunable(Table table,
+                                         List<Condition> conditions) {
+        ArrayList<Condition> prunable = new ArrayList<Condition>();
+        for (Condition cond : conditions) {
+            if (cond.prunes(table)) {
+                prunable.add(cond);
+            }
+        }
+        return prunable;
+    }
+
+    /** The physical indices of the live rows of a table, as one-element
+     *  tuples.  Blocks of rows whose zone maps show that they cannot
+     *  satisfy one of a list of conditions comparing a column with a
+     *  literal are skipped without examining their rows.  Other rows are
+     *  produced whether or not they satisfy the conditions (see
+     *  Filter). */
+    static class Scan extends Operator {
+        /** A scan of TABLE that skips blocks that cannot satisfy
+         *  CONDITIONS or, if ORDERED, that produces all of TABLE's rows
+         *  in its order. */
+        Scan(Table table, List<Condition> conditions, boolean ordered) {
+            _table = table;
+            _prunable = prunable(table, conditions);
+            _ordered = ordered;
+        }
+
+        @Override
+        int width() {
+            return 1;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            Batch batch = new Batch(1);
+            int[] rows = new int[1];
+            if (_ordered) {
+                IntList index = _table.liveIndex();
+                for (int i = 0; i < index.size(); i += 1) {
+                    if (!flushIfFull(batch, sink)) {
+                        return false;
+                    }
+                    rows[0] = index.get(i);
+                    batch.add(rows);
+                }
+                return flush(batch, sink);
+            }
+            int size = _table.physicalSize();
+            for (int start = 0; start < size; start += ZoneMap.BLOCK) {
+                if (!_table.mayMatch(start / ZoneMap.BLOCK, _prunable)) {
+                    continue;
+                }
+                int end = Math.min(size, start + ZoneMap.BLOCK);
+                for (int k = start; k < end; k += 1) {
+                    if (_table.deleted(k)) {
+                        continue;
+                    }
+                    if (!flushIfFull(batch, sink)) {
+                        return false;
+                    }
+                    rows[0] = k;
+                    batch.add(rows);
+                }
+            }
+            return flush(batch, sink);
+        }
+
+        /** The table scanned. */
+        private final Table _table;
+        /** Conditions whose zone maps are checked. */
+        private final ArrayList<Condition> _prunable;
+        /** True iff rows are produced in _table's order. */
+        private final boolean _ordered;
+    }
+
+    /** The values of some columns of the rows of a table that satisfy
+     *  some conditions, produced by a loop compiled for them (see
+     *  QueryCompiler).  Blocks of rows are skipped as for Scan. */
+    static class Compiled extends Operator {
+        /** The rows produced by LOOP from TABLE, which satisfy
+         *  CONDITIONS. */
+        Compiled(Table table, List<Condition> conditions,
+                 QueryCompiler.Loop loop) {
+            _table = table;
+            _prunable = prunable(table, conditions);
+            _loop = loop;
+        }
+
+        @Override
+        int width() {
+            return 0;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            Batch out = new Batch(0);
+            int size = _table.physicalSize();
+            for (int start = 0; start < size; start += ZoneMap.BLOCK) {
+                if (_table.mayMatch(start / ZoneMap.BLOCK, _prunable)
+                    && !_loop.scan(_table, start,
+                                   Math.min(size, start + ZoneMap.BLOCK),
+                                   out, sink)) {
+                    return false;
+                }
+            }
+            return flush(out, sink);
+        }
+
+        /** The table scanned. */
+        private final Table _table;
+        /** Conditions whose zone maps are checked. */
+        private final ArrayList<Condition> _prunable;
+        /** The compiled scan, filter, and projection. */
+        private final QueryCompiler.Loop _loop;
+    }
+
+    /** The physical indices of the rows of a partitioned table that
+     *  satisfy a list of conditions, as one-element tuples, partition by
+     *  partition.  Partitions that the conditions rule out (see
+     *  Partitioning.candidates) are skipped, and the others are filtered
+     *  in parallel on SCANNERS. */
+    static class Partitions extends Operator {
+        /** The rows of TABLE, which must be partitioned, that satisfy
+         *  CONDITIONS. */
+        Partitions(Table table, List<Condition> conditions) {
+            _table = table;
+            _conditions = conditions;
+        }
+
+        @Override
+        int width() {
+            return 1;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            BitSet candidates =
+                _table.partitioning().candidates(_table, _conditions);
+            ArrayList<Future<IntList>> parts = new ArrayList<>();
+            for (int p = candidates.nextSetBit(0); p >= 0;
+                 p = candidates.nextSetBit(p + 1)) {
+                int part = p;
+                FutureTask<IntList> task =
+                    new FutureTask<>(() -> matches(part));
+                if (candidates.cardinality() == 1) {
+                    task.run();
+                } else {
+                    SCANNERS.execute(task);
+                }
+                parts.add(task);
+            }
+            Batch batch = new Batch(1);
+            int[] rows = new int[1];
+            for (Future<IntList> part : parts) {
+                IntList matches;
+                try {
+                    matches = part.get();
+                } catch (ExecutionException excp) {
+                    if (excp.getCause() instanceof DBException) {
+                        throw (DBException) excp.getCause();
+                    }
+                    throw error("trouble scanning partition");
+                } catch (InterruptedException excp) {
+                    throw error("interrupted while scanning");
+                }
+                for (int i = 0; i < matches.size(); i += 1) {
+                    if (!flushIfFull(batch, sink)) {
+                        return false;
+                    }
+                    rows[0] = matches.get(i);
+                    batch.add(rows);
+                }
+            }
+            return flush(batch, sink);
+        }
+
+        /** Return the physical indices of the live rows of partition P of
+         *  my table that satisfy my conditions. */
+        private IntList matches(int p) {
+            IntList part = _table.part(p);
+            IntList result = new IntList();
+            int[] rows = new int[1];
+            for (int i = 0; i < part.size(); i += 1) {
+                rows[0] = part.get(i);
+                if (!_table.deleted(rows[0])
+                    && Condition.test(_conditions, rows)) {
+                    result.add(rows[0]);
+                }
+            }
+            return result;
+        }
+
+        /** The table scanned. */
+        private final Table _table;
+        /** The conditions my rows satisfy. */
+        private final List<Condition> _conditions;
+    }
+
+    /** The physical indices of the rows of a table that satisfy a list
+     *  of conditions comparing its leading columns with literals, as
+     *  one-element tuples in the table's order, found as a contiguous
+     *  range of the table's index by binary search (see
+     *  Table.indexRange). */
+    static class Range extends Operator {
+        /** The rows of TABLE satisfying CONDITIONS. */
+        Range(Table table, List<Condition> conditions) {
+            _table = table;
+            _conditions = conditions;
+        }
+
+        @Override
+        int width() {
+            return 1;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            Batch batch = new Batch(1);
+            int[] rows = new int[1];
+            int[] range = _table.indexRange(_conditions, null);
+            IntList index = _table.liveIndex();
+            for (int i = range[0]; i < range[1]; i += 1) {
+                if (!flushIfFull(batch, sink)) {
+                    return false;
+                }
+                rows[0] = index.get(i);
+                batch.add(rows);
+            }
+            return flush(batch, sink);
+        }
+
+        /** The table scanned. */
+        private final Table _table;
+        /** The conditions on _table's leading columns. */
+        private final List<Condition> _conditions;
+    }
+
+    /** The physical indices of the live rows of a table that satisfy a
+     *  list of conditions comparing one of its columns with literals, as
+     *  one-element tuples, found with a Cracker on that column.  Rows
+     *  added since the cracker was made are tested one by one. */
+    static class Crack extends Operator {
+        /** The rows of TABLE satisfying CONDITIONS, found with CRACKER. */
+        Crack(Table table, Cracker cracker, List<Condition> conditions) {
+            _table = table;
+            _cracker = cracker;
+            _conditions = conditions;
+        }
+
+        @Override
+        int width() {
+            return 1;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            Batch batch = new Batch(1);
+            int[] rows = new int[1];
+            int[] range = _cracker.range(_conditions);
+            for (int i = range[0]; i < range[1]; i += 1) {
+                rows[0] = _cracker.row(i);
+                if (_table.deleted(rows[0])) {
+                    continue;
+                }
+                if (!flushIfFull(batch, sink)) {
+                    return false;
+                }
+                batch.add(rows);
+            }
+            for (int k = _cracker.covered(); k < _table.physicalSize();
+                 k += 1) {
+                rows[0] = k;
+                if (_table.deleted(k)
+                    || !Condition.test(_conditions, rows)) {
+                    continue;
+                }
+                if (!flushIfFull(batch, sink)) {
+                    return false;
+                }
+                batch.add(rows);
+            }
+            return flush(batch, sink);
+        }
+
+        /** The table scanned. */
+        private final Table _table;
+        /** The index on a column of _table. */
+        private final Cracker _cracker;
+        /** The conditions on that column my rows satisfy. */
+        private final List<Condition> _conditions;
+    }
+
+    /** The rows of its input that satisfy a list of conditions. */
+    static class Filter extends Operator {
+        /** The rows produced by CHILD that satisfy CONDITIONS. */
+        Filter(Operator child, List<Condition> conditions) {
+            _child = child;
+            _conditions = conditions;
+        }
+
+        @Override
+        int width() {
+            return _child.width();
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            if (_conditions.isEmpty()) {
+                return _child.produce(sink);
+            }
+            Batch out = new Batch(width());
+            int[] rows = new int[width()];
+            return _child.produce(batch -> {
+                for (int r = 0; r < batch.size(); r += 1) {
+                    batch.get(r, rows);
+                    if (Condition.test(_conditions, rows)) {
+                        if (!flushIfFull(out, sink)) {
+                            return false;
+                        }
+                        out.add(rows);
+                    }
+                }
+                return true;
+            }) && flush(out, sink);
+        }
+
+        /** My input. */
+        private final Operator _child;
+        /** The conditions my rows satisfy. */
+        private final List<Condition> _conditions;
+    }
+
+    /** The pairs of rows, one from each of two tables, that agree on all
+     *  columns with identical names (or all pairs, if there are no such
+     *  columns), as two-element tuples.  This is a hash join: the input
+     *  from the smaller table (the build side) is hashed on the common
+     *  columns, and that from the other table streamed past it, with a
+     *  Bloom filter of the hashed keys rejecting rows that cannot match
+     *  before any lookup in the hash table.  The hash table is a set of
+     *  chains of positions in int arrays.  Keys are hashed and compared
+     *  through the tables' storage, numeric values as numbers and others
+     *  as characters copied into a pair of reused buffers, so that
+     *  building and probing allocate nothing, unless a numeric column is
+     *  joined with a string column (whose values are then compared as
+     *  strings). */
+    static class Join extends Operator {
+        /** The join of the rows produced by LEFT, from TABLE1, with those
+         *  produced by RIGHT, from TABLE2.  LEFT and RIGHT must produce
+         *  one-element tuples. */
+        Join(Operator left, Table table1, Operator right, Table table2) {
+            _left = left;
+            _right = right;
+            _table1 = table1;
+            _table2 = table2;
+        }
+
+        @Override
+        int width() {
+            return 2;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            ArrayList<Column> common = new ArrayList<Column>();
+            ArrayList<Column> that = new ArrayList<Column>();
+            for (int j = 0; j < _table1.columns(); j += 1) {
+                String title = _table1.getTitle(j);
+                if (_table2.findColumn(title) != -1) {
+                    common.add(new Column(title, _table1, _table2));
+                    that.add(new Column(title, _table2, _table1));
+                }
+            }
+            boolean buildLeft = _table1.size() < _table2.size();
+            Operator build = buildLeft ? _left : _right,
+                probe = buildLeft ? _right : _left;
+            ArrayList<Column> buildKey = buildLeft ? common : that,
+                probeKey = buildLeft ? that : common;
+            int b = buildLeft ? 0 : 1, p = 1 - b;
+            boolean[] numeric = new boolean[common.size()];
+            for (int i = 0; i < numeric.length; i += 1) {
+                numeric[i] = common.get(i).getType().numeric()
+                    && that.get(i).getType().numeric();
+            }
+
+            IntList built = new IntList();
+            build.produce(batch -> {
+                int[] ids = batch.ids(0);
+                for (int r = 0; r < batch.size(); r += 1) {
+                    built.add(ids[r]);
+                }
+                return true;
+            });
+            Batch out = new Batch(2);
+            int[] rows = new int[2];
+            if (common.isEmpty()) {
+                return probe.produce(batch -> {
+                    int[] ids = batch.ids(0);
+                    for (int r = 0; r < batch.size(); r += 1) {
+                        rows[p] = ids[r];
+                        for (int i = 0; i < built.size(); i += 1) {
+                            if (!flushIfFull(out, sink)) {
+                                return false;
+                            }
+                            rows[b] = built.get(i);
+                            out.add(rows);
+                        }
+                    }
+                    return true;
+                }) && flush(out, sink);
+            }
+
+            int n = built.size();
+            int[] heads = new int[Integer.highestOneBit(2 * n + 1)];
+            int[] next = new int[n];
+            long[] hashes = new long[n];
+            int mask = heads.length - 1;
+            Arrays.fill(heads, -1);
+            BloomFilter keys = new BloomFilter(n);
+            int[] one = new int[1], other = new int[1];
+            char[][] chars = { new char[64], new char[64] };
+            for (int i = 0; i < n; i += 1) {
+                one[0] = built.get(i);
+                long h = keyHash(buildKey, numeric, one, chars);
+                int bucket = (int) h & mask;
+                keys.add(h);
+                hashes[i] = h;
+                next[i] = heads[bucket];
+                heads[bucket] = i;
+            }
+            return probe.produce(batch -> {
+                int[] ids = batch.ids(0);
+                for (int r = 0; r < batch.size(); r += 1) {
+                    one[0] = ids[r];
+                    long h = keyHash(probeKey, numeric, one, chars);
+                    if (!keys.mightContain(h)) {
+                        continue;
+                    }
+                    rows[p] = ids[r];
+                    for (int m = heads[(int) h & mask]; m != -1;
+                         m = next[m]) {
+                        other[0] = built.get(m);
+                        if (hashes[m] != h
+                            || !sameKey(probeKey, one, buildKey, other,
+                                        chars)) {
+                            continue;
+                        }
+                        if (!flushIfFull(out, sink)) {
+                            return false;
+                        }
+                        rows[b] = other[0];
+                        out.add(rows);
+                    }
+                }
+                return true;
+            }) && flush(out, sink);
+        }
+
+        /** Return a hash of the values of the join key columns KEY in
+         *  ROWS.  Where NUMERIC[i] is true, KEY[i] is hashed by its
+         *  numeric value, so that keys equal as numbers hash alike
+         *  whatever their types; otherwise by its characters, as for
+         *  String.hashCode.  CHARS[0] is used as a buffer (see load). */
+        private static long keyHash(List<Column> key, boolean[] numeric,
+                                    int[] rows, char[][] chars) {
+            long h = 0;
+            for (int i = 0; i < key.size(); i += 1) {
+                Column col = key.get(i);
+                int v;
+                if (numeric[i]) {
+                    v = Double.hashCode(col.getDoubleFrom(rows) + 0.0);
+                } else {
+                    int len = load(col, rows, chars, 0);
+                    v = 0;
+                    for (int c = 0; c < len; c += 1) {
+                        v = 31 * v + chars[0][c];
+                    }
+                }
+                h = 31 * h + v;
+            }
+            return BloomFilter.mix(h);
+        }
+
+        /** Return true iff the values of KEY1 in ROWS1 equal the
+         *  corresponding values of KEY2 in ROWS2, compared as for a
+         *  condition KEY1 = KEY2: numerically if both are numeric, and
+         *  otherwise as strings.  CHARS[0] and CHARS[1] are used as
+         *  buffers (see load). */
+        private static boolean sameKey(List<Column> key1, int[] rows1,
+                                       List<Column> key2, int[] rows2,
+                                       char[][] chars) {
+            for (int i = 0; i < key1.size(); i += 1) {
+                Column col1 = key1.get(i), col2 = key2.get(i);
+                ColumnType type1 = col1.getType(), type2 = col2.getType();
+                boolean same;
+                if (type1.integral() && type2.integral()) {
+                    same = col1.getLongFrom(rows1) == col2.getLongFrom(rows2);
+                } else if (type1.numeric() && type2.numeric()) {
+                    same = ColumnType.compareDoubles(col1.getDoubleFrom(rows1),
+                                                     col2.getDoubleFrom(rows2))
+                        == 0;
+                } else {
+                    int len1 = load(col1, rows1, chars, 0),
+                        len2 = load(col2, rows2, chars, 1);
+                    same = Arrays.equals(chars[0], 0, len1,
+                                         chars[1], 0, len2);
+                }
+                if (!same) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Copy the characters of the value of COL in ROWS into
+         *  CHARS[SLOT], first replacing it with a larger buffer if it is
+         *  too short, and return the length of the value. */
+        private static int load(Column col, int[] rows, char[][] chars,
+                                int slot) {
+            int len = col.getCharsFrom(chars[slot], rows);
+            if (len > chars[slot].length) {
+                chars[slot] = new char[Math.max(len, 2 * chars[slot].length)];
+                col.getCharsFrom(chars[slot], rows);
+            }
+            return len;
+        }
+
+        /** My inputs, from _table1 and _table2. */
+        private final Operator _left, _right;
+        /** The tables joined. */
+        private final Table _table1, _table2;
+    }
+
+    /** The values of some columns of the rows of its input, as rows of
+     *  values. */
+    static class Project extends Operator {
+        /** The values of COLUMNS in the rows produced by CHILD (see
+         *  Column.getFrom). */
+        Project(Operator child, List<Column> columns) {
+            _child = child;
+            _columns = columns;
+        }
+
+        @Override
+        int width() {
+            return 0;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            Batch out = new Batch(0);
+            int[] rows = new int[_child.width()];
+            return _child.produce(batch -> {
+                for (int r = 0; r < batch.size(); r += 1) {
+                    batch.get(r, rows);
+                    if (!flushIfFull(out, sink)) {
+                        return false;
+                    }
+                    out.add(Table.project(_columns, rows));
+                }
+                return true;
+            }) && flush(out, sink);
+        }
+
+        /** My input. */
+        private final Operator _child;
+        /** The columns whose values I produce. */
+        private final List<Column> _columns;
+    }
+
+    /** One row of values for each group of the rows of its input, as
+     *  computed by an Aggregation, in lexicographic order. */
+    static class Aggregate extends Operator {
+        /** The result of AGGREGATION over the rows produced by CHILD. */
+        Aggregate(Operator child, Aggregation aggregation) {
+            _child = child;
+            _aggregation = aggregation;
+        }
+
+        @Override
+        int width() {
+            return 0;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            int[] rows = new int[_child.width()];
+            _child.produce(batch -> {
+                for (int r = 0; r < batch.size(); r += 1) {
+                    batch.get(r, rows);
+                    _aggregation.add(rows);
+                }
+                return true;
+            });
+            return produceRows(_aggregation.result(), sink);
+        }
+
+        /** My input. */
+        private final Operator _child;
+        /** Computes my rows. */
+        private final Aggregation _aggregation;
+    }
+
+    /** The distinct rows of values of its input, in some order.  Rows are
+     *  sorted by an ExternalSort, and so may spill to disk. */
+    static class Sort extends Operator {
+        /** The distinct rows of values produced by CHILD, in order
+         *  ORDER. */
+        Sort(Operator child, RowOrder order) {
+            _child = child;
+            _order = order;
+        }
+
+        @Override
+        int width() {
+            return 0;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            ExternalSort rows = new ExternalSort(_order, memoryBudget());
+            _child.produce(batch -> {
+                for (int r = 0; r < batch.size(); r += 1) {
+                    rows.add(batch.values(r));
+                }
+                return true;
+            });
+            Batch out = new Batch(0);
+            _stopped = false;
+            rows.drain(values -> {
+                if (!_stopped && flushIfFull(out, sink)) {
+                    out.add(values);
+                } else {
+                    _stopped = true;
+                }
+            });
+            return !_stopped && flush(out, sink);
+        }
+
+        /** My input. */
+        private final Operator _child;
+        /** The order of my rows. */
+        private final RowOrder _order;
+        /** True iff my sink has refused further rows. */
+        private boolean _stopped;
+    }
+
+    /** The first few distinct rows of values of its input under some
+     *  order, collected in a bounded heap rather than sorted.  When the
+     *  input is known to come in non-decreasing order of the order's
+     *  keys, it is stopped as soon as no later row can be among the
+     *  first few. */
+    static class Limit extends Operator {
+        /** The first LIMIT distinct rows produced by CHILD in order ORDER.
+         *  If ORDERED, CHILD produces its rows in non-decreasing order of
+         *  ORDER's keys. */
+        Limit(Operator child, RowOrder order, int limit, boolean ordered) {
+            _child = child;
+            _order = order;
+            _limit = limit;
+            _ordered = ordered;
+        }
+
+        @Override
+        int width() {
+            return 0;
+        }
+
+        @Override
+        boolean produce(Sink sink) {
+            TopK top = new TopK(_order, _limit);
+            _child.produce(batch -> {
+                for (int r = 0; r < batch.size(); r += 1) {
+                    String[] row = batch.values(r);
+                    if (_ordered && top.full()
+                        && _order.compareKeys(row, top.worst()) > 0) {
+                        return false;
+                    }
+                    top.offer(row);
+                }
+                return true;
+            });
+            Batch out = new Batch(0);
+            for (String[] row : top.sorted()) {
+                if (!flushIfFull(out, sink)) {
+                    return false;
+                }
+                out.add(row);
+            }
+            return flush(out, sink);
+        }
+
+        /** My input. */
+        private final Operator _child;
+        /** The order of my rows. */
+        private final RowOrder _order;
+        /** The maximum number of rows I produce. */
+        private final int _limit;
+        /** True iff _child produces rows in order of _order's keys. */
+        private final boolean _ordered;
+    }
+}
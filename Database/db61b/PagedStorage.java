@@ -0,0 +1,179 @@
+package db61b;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static db61b.Utils.*;
+
+/** A ColumnStorage whose values live in pages of a BufferPool, and so
+ *  need not fit in memory.  Values are encoded as runs of UTF-16
+ *  characters laid end to end across my pages; only the starting offset
+ *  of each value and the list of my pages are kept on the heap.  Pages
+ *  are pinned only for the duration of a single access.
+ *  @author Brandon Griffin
+ */
+class PagedStorage implements ColumnStorage {
+
+    /** Number of characters in a page. */
+    private static final int PAGE_CHARS = BufferPool.PAGE_SIZE / 2;
+
+    /** An empty column whose pages come from POOL. */
+    PagedStorage(BufferPool pool) {
+        _pool = pool;
+        _pageList = new int[4];
+        _numPages = 0;
+        _offsets = new long[65];
+        _size = 0;
+        _scratch = new char[][] { new char[64], new char[64] };
+    }
+
+    @Override
+    public synchronized int size() {
+        return _size;
+    }
+
+    @Override
+    public synchronized String get(int k) {
+        int len = load(k, 0);
+        return new String(_scratch[0], 0, len);
+    }
+
+    @Override
+    public synchronized int getChars(int k, char[] buf) {
+        int len = load(k, 0);
+        if (len <= buf.length) {
+            System.arraycopy(_scratch[0], 0, buf, 0, len);
+        }
+        return len;
+    }
+
+    @Override
+    public synchronized void append(String value) {
+        checkLive();
+        long pos = _offsets[_size];
+        int len = value.length();
+        for (int i = 0; i < len; ) {
+            int p = (int) (pos / PAGE_CHARS), start = (int) (pos % PAGE_CHARS);
+            while (p >= _numPages) {
+                if (_numPages == _pageList.length) {
+                    _pageList = Arrays.copyOf(_pageList, 2 * _numPages);
+                }
+                _pageList[_numPages] = _pool.allocate();
+                _numPages += 1;
+            }
+            int n = Math.min(len - i, PAGE_CHARS - start);
+            ByteBuffer page = _pool.pin(_pageList[p]);
+            try {
+                for (int j = 0; j < n; j += 1) {
+                    page.putChar(2 * (start + j), value.charAt(i + j));
+                }
+            } finally {
+                _pool.unpin(_pageList[p], true);
+            }
+            i += n;
+            pos += n;
+        }
+        if (_size + 1 == _offsets.length) {
+            _offsets = Arrays.copyOf(_offsets, 2 * _offsets.length);
+        }
+        _offsets[_size + 1] = pos;
+        _size += 1;
+    }
+
+    @Override
+    public synchronized int compare(int k0, int k1) {
+        int len0 = load(k0, 0), len1 = load(k1, 1);
+        return compare(_scratch[0], len0, _scratch[1], len1);
+    }
+
+    @Override
+    public synchronized int compareTo(int k, String value) {
+        int len = load(k, 0), n = Math.min(len, value.length());
+        char[] chars = _scratch[0];
+        for (int i = 0; i < n; i += 1) {
+            if (chars[i] != value.charAt(i)) {
+                return chars[i] - value.charAt(i);
+            }
+        }
+        return len - value.length();
+    }
+
+    /** Return my pages to the pool. */
+    @Override
+    public synchronized void release() {
+        if (_pageList == null) {
+            return;
+        }
+        for (int p = 0; p < _numPages; p += 1) {
+            _pool.free(_pageList[p]);
+        }
+        _pageList = null;
+        _numPages = 0;
+        _offsets = new long[1];
+        _size = 0;
+    }
+
+    /** Copy the characters of value number K into _scratch[SLOT],
+     *  enlarging it as needed, and return the length of the value. */
+    private int load(int k, int slot) {
+        checkLive();
+        if (k < 0 || k >= _size) {
+            throw new IndexOutOfBoundsException("no value " + k);
+        }
+        long pos = _offsets[k];
+        int len = (int) (_offsets[k + 1] - pos);
+        if (_scratch[slot].length < len) {
+            _scratch[slot] = new char[Math.max(len, 2 * _scratch[slot].length)];
+        }
+        char[] chars = _scratch[slot];
+        for (int i = 0; i < len; ) {
+            int p = (int) (pos / PAGE_CHARS), start = (int) (pos % PAGE_CHARS);
+            int n = Math.min(len - i, PAGE_CHARS - start);
+            ByteBuffer page = _pool.pin(_pageList[p]);
+            try {
+                for (int j = 0; j < n; j += 1) {
+                    chars[i + j] = page.getChar(2 * (start + j));
+                }
+            } finally {
+                _pool.unpin(_pageList[p], false);
+            }
+            i += n;
+            pos += n;
+        }
+        return len;
+    }
+
+    /** Return the lexicographic comparison of the first LEN0 characters
+     *  of C0 with the first LEN1 characters of C1. */
+    private static int compare(char[] c0, int len0, char[] c1, int len1) {
+        int n = Math.min(len0, len1);
+        for (int i = 0; i < n; i += 1) {
+            if (c0[i] != c1[i]) {
+                return c0[i] - c1[i];
+            }
+        }
+        return len0 - len1;
+    }
+
+    /** Check that I have not been released. */
+    private void checkLive() {
+        if (_pageList == null) {
+            throw error("table storage has been released");
+        }
+    }
+
+    /** The pool holding my pages. */
+    private final BufferPool _pool;
+    /** Pool page numbers of my pages, in order; the first _numPages
+     *  are in use. */
+    private int[] _pageList;
+    /** Number of pages in use. */
+    private int _numPages;
+    /** Start offsets (in characters, across my pages) of my values,
+     *  followed by the end offset of the last one. */
+    private long[] _offsets;
+    /** Number of values stored. */
+    private int _size;
+    /** Buffers into which values are copied for comparison. */
+    private char[][] _scratch;
+}
@@ -0,0 +1,248 @@
+package db61b;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import static db61b.Utils.*;
+
+/** How the rows of a partitioned table are divided among its partitions:
+ *  by a hash of the value of one column, into a fixed number of
+ *  partitions, or by ranges of that value, divided at given bounds.  A
+ *  select examines only the partitions that the conditions on that
+ *  column allow.  A partitioned table is stored as a manifest file,
+ *  NAME.db, which describes the partitioning, and one table file per
+ *  partition, NAME.P.db, for P = 0, 1, ..., so that each partition can
+ *  be stored and loaded by itself.
+ *  @author Brandon Griffin
+ */
+class Partitioning {
+
+    /** The first line of a manifest file. */
+    static final byte[] MAGIC = "#dbpart\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Partitioning by a hash of the value of column COLUMN, named TITLE,
+     *  of type TYPE, into COUNT partitions. */
+    static Partitioning hash(int column, String title, ColumnType type,
+                             int count) {
+        if (count < 1) {
+            throw error("must have at least one partition");
+        }
+        return new Partitioning(column, title, type, count, null);
+    }
+
+    /** Partitioning by ranges of the value of column COLUMN, named TITLE,
+     *  of type TYPE, divided at BOUNDS, which must be valid values in
+     *  increasing order: partition 0 holds values less than BOUNDS[0],
+     *  partition P values from BOUNDS[P - 1] up to but not including
+     *  BOUNDS[P], and the last partition values of at least the last
+     *  bound. */
+    static Partitioning range(int column, String title, ColumnType type,
+                              String[] bounds) {
+        for (int k = 0; k < bounds.length; k += 1) {
+            type.check(bounds[k]);
+            if (bounds[k].indexOf(',') >= 0) {
+                throw error("partition bounds may not contain commas");
+            }
+            if (k > 0 && type.compareLiterals(bounds[k - 1], bounds[k]) >= 0) {
+                throw error("partition bounds must increase");
+            }
+        }
+        return new Partitioning(column, title, type, bounds.length + 1,
+                                bounds);
+    }
+
+    /** A partitioning on column COLUMN, named TITLE, of type TYPE, into
+     *  COUNT partitions, by ranges divided at BOUNDS, or by hash if
+     *  BOUNDS is null. */
+    private Partitioning(int column, String title, ColumnType type,
+                         int count, String[] bounds) {
+        _column = column;
+        _title = title;
+        _type = type;
+        _count = count;
+        _bounds = bounds;
+    }
+
+    /** Return the number of the column partitioned on. */
+    int column() {
+        return _column;
+    }
+
+    /** Return the number of partitions. */
+    int count() {
+        return _count;
+    }
+
+    /** Return the partition holding rows whose partitioning column has
+     *  value VALUE, a valid value of the column's type. */
+    int partition(String value) {
+        if (_bounds == null) {
+            return (int) Math.floorMod(BloomFilter.mix(_type.hash(value)),
+                                       (long) _count);
+        }
+        int lo = 0, hi = _bounds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (_type.compareLiterals(_bounds[mid], value) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return the set of partitions of TABLE, which I partition, that can
+     *  hold rows satisfying all of CONDITIONS. */
+    BitSet candidates(Table table, List<Condition> conditions) {
+        BitSet result = new BitSet();
+        result.set(0, _count);
+        for (Condition cond : conditions) {
+            Set<String> members = cond.members(table);
+            if (members != null && cond.column() == _column) {
+                BitSet allowed = new BitSet();
+                for (String value : members) {
+                    Integer p = partitionOf(value);
+                    if (p == null) {
+                        allowed.set(0, _count);
+                        break;
+                    }
+                    allowed.set(p);
+                }
+                result.and(allowed);
+            } else if (cond.prunes(table) && cond.column() == _column) {
+                Integer p = partitionOf(cond.literal());
+                if (p == null) {
+                    continue;
+                }
+                BitSet allowed = new BitSet();
+                switch (cond.relation()) {
+                case "=":
+                    allowed.set(p);
+                    break;
+                case "<": case "<=":
+                    allowed.set(0, _bounds == null ? _count : p + 1);
+                    break;
+                case ">": case ">=":
+                    allowed.set(_bounds == null ? 0 : p, _count);
+                    break;
+                default:
+                    allowed.set(0, _count);
+                    break;
+                }
+                result.and(allowed);
+            }
+        }
+        return result;
+    }
+
+    /** Return the partition that would hold a row whose partitioning
+     *  column equals LITERAL, or null if there can be no such row because
+     *  LITERAL is not a valid value of the column, and I cannot tell where
+     *  it falls. */
+    private Integer partitionOf(String literal) {
+        try {
+            if (_bounds == null) {
+                _type.check(literal);
+            }
+            return partition(literal);
+        } catch (DBException | NumberFormatException excp) {
+            return null;
+        }
+    }
+
+    /** Return the line of a manifest file that describes me:
+     *  'hash,TITLE,COUNT' or 'range,TITLE,BOUND,BOUND,...'. */
+    String describe() {
+        if (_bounds == null) {
+            return String.format("hash,%s,%d", _title, _count);
+        }
+        return "range," + _title + "," + String.join(",", _bounds);
+    }
+
+    /** Write the manifest file NAME.db that describes me, replacing it
+     *  atomically if the file system allows.  Any I/O errors cause a
+     *  DBException. */
+    void writeManifest(String name) {
+        File target = new File(name + ".db");
+        File temp = null;
+        try {
+            File dir = target.getAbsoluteFile().getParentFile();
+            temp = File.createTempFile(target.getName(), ".tmp", dir);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            text.write(MAGIC);
+            text.write((describe() + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.write(temp.toPath(), text.toByteArray());
+            Table.Snapshot.move(temp, target);
+        } catch (IOException excp) {
+            throw error("trouble writing to %s.db", name);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /** Return true iff IN, which must support mark and reset, starts with
+     *  MAGIC, consuming MAGIC if so, and otherwise leaving IN where it
+     *  was. */
+    static boolean isManifest(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        byte[] start = new byte[MAGIC.length];
+        int n = in.readNBytes(start, 0, start.length);
+        if (n == MAGIC.length && Arrays.equals(start, MAGIC)) {
+            return true;
+        }
+        in.reset();
+        return false;
+    }
+
+    /** Return the Partitioning described by LINE, the second line of a
+     *  manifest file, of a table with the same columns as TABLE. */
+    static Partitioning parse(String line, Table table) {
+        String[] fields = line == null ? new String[0] : line.split(",");
+        if (fields.length < 2) {
+            throw error("bad partition manifest");
+        }
+        int column = table.findColumn(fields[1]);
+        if (column == -1) {
+            throw error("unknown column: %s", fields[1]);
+        }
+        ColumnType type = table.getType(column);
+        switch (fields[0]) {
+        case "hash":
+            try {
+                return hash(column, fields[1], type,
+                            Integer.parseInt(fields[2]));
+            } catch (NumberFormatException
+                     | ArrayIndexOutOfBoundsException excp) {
+                throw error("bad partition manifest");
+            }
+        case "range":
+            return range(column, fields[1], type,
+                         Arrays.copyOfRange(fields, 2, fields.length));
+        default:
+            throw error("bad partition manifest");
+        }
+    }
+
+    /** The number of the column partitioned on. */
+    private final int _column;
+    /** The title of that column. */
+    private final String _title;
+    /** The type of that column. */
+    private final ColumnType _type;
+    /** The number of partitions. */
+    private final int _count;
+    /** For range partitioning, the values dividing the partitions;
+     *  otherwise null. */
+    private final String[] _bounds;
+}
@@ -0,0 +1,136 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A cache of the results of select statements, keyed by the normalized
+ *  text of the statement.  Each entry records the versions of the tables
+ *  it was computed from (both the Database's version for each table name
+ *  and the version of the Table itself), and is used only while all of
+ *  them are unchanged.  The least recently used entries are evicted to
+ *  keep the estimated size of the cached results within a budget.
+ *  @author Brandon Griffin
+ */
+class QueryCache {
+
+    /** Default budget in bytes. */
+    static final long DEFAULT_BUDGET = 16L << 20;
+
+    /** An empty cache holding no more than about BUDGET bytes of
+     *  results. */
+    QueryCache(long budget) {
+        _entries = new LinkedHashMap<>(16, 0.75f, true);
+        _budget = budget;
+        _bytes = 0;
+    }
+
+    /** Return the cached result of STATEMENT, if it is still valid for
+     *  the tables in DB, and otherwise null. */
+    Table get(String statement, Database db) {
+        Entry entry = _entries.get(statement);
+        if (entry == null) {
+            return null;
+        }
+        for (Dependency dep : entry._dependencies) {
+            Table table = db.get(dep._name);
+            if (table == null || db.version(dep._name) != dep._dbVersion
+                || table.version() != dep._tableVersion) {
+                remove(statement);
+                return null;
+            }
+        }
+        return entry._result;
+    }
+
+    /** Cache RESULT as the result of STATEMENT, which read the tables
+     *  named by the keys of SOURCES (with the values of those keys) from
+     *  DB. */
+    void put(String statement, Table result, Map<String, Table> sources,
+             Database db) {
+        remove(statement);
+        long bytes = result.estimatedBytes() + 2 * statement.length();
+        if (bytes > _budget) {
+            return;
+        }
+        Entry entry = new Entry(result, bytes);
+        for (Map.Entry<String, Table> source : sources.entrySet()) {
+            entry._dependencies.add
+                (new Dependency(source.getKey(), db.version(source.getKey()),
+                                source.getValue().version()));
+        }
+        _entries.put(statement, entry);
+        _bytes += bytes;
+        evict();
+    }
+
+    /** Set my budget to BUDGET bytes, evicting entries as needed. */
+    void setBudget(long budget) {
+        _budget = budget;
+        evict();
+    }
+
+    /** Remove the least recently used entries until within budget. */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> entries =
+            _entries.entrySet().iterator();
+        while (_bytes > _budget && entries.hasNext()) {
+            Entry entry = entries.next().getValue();
+            entries.remove();
+            _bytes -= entry._bytes;
+            entry._result.release();
+        }
+    }
+
+    /** Remove any entry for STATEMENT. */
+    private void remove(String statement) {
+        Entry entry = _entries.remove(statement);
+        if (entry != null) {
+            _bytes -= entry._bytes;
+            entry._result.release();
+        }
+    }
+
+    /** A cached result. */
+    private static class Entry {
+        /** An entry for RESULT, whose estimated size is BYTES. */
+        Entry(Table result, long bytes) {
+            _result = result;
+            _bytes = bytes;
+            _dependencies = new ArrayList<>();
+        }
+
+        /** The cached result. */
+        private final Table _result;
+        /** Estimated size of _result. */
+        private final long _bytes;
+        /** Tables read in computing _result. */
+        private final ArrayList<Dependency> _dependencies;
+    }
+
+    /** The versions of a table used in computing a result. */
+    private static class Dependency {
+        /** The table named NAME, at version DBVERSION in its database and
+         *  TABLEVERSION itself. */
+        Dependency(String name, long dbVersion, long tableVersion) {
+            _name = name;
+            _dbVersion = dbVersion;
+            _tableVersion = tableVersion;
+        }
+
+        /** Name of the table. */
+        private final String _name;
+        /** Version of the table's name in the database. */
+        private final long _dbVersion;
+        /** Version of the Table. */
+        private final long _tableVersion;
+    }
+
+    /** Cached results by statement, least recently used first. */
+    private final LinkedHashMap<String, Entry> _entries;
+    /** Maximum estimated size of cached results. */
+    private long _budget;
+    /** Estimated size of cached results. */
+    private long _bytes;
+}
@@ -0,0 +1,202 @@
+package db61b;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/** Compiles the scan, filter, and projection of single-table selects
+ *  into Java bytecode at run time.  For each such query, the source of a
+ *  class whose loop has the query's columns, relations, and literals
+ *  built in is generated, compiled with the system Java compiler, and
+ *  defined as a hidden class, so that the JIT compiler sees straight-line
+ *  code with none of the per-row dispatch of the operator tree.  Since
+ *  compiling takes far longer than interpreting a small query, only
+ *  queries that have been seen REPEATS times or that scan at least ROWS
+ *  rows are compiled.  Where compiling is impossible (there is no system
+ *  compiler, or a condition cannot be expressed), queries are
+ *  interpreted as before.
+ *  @author Brandon Griffin
+ */
+class QueryCompiler {
+
+    /** Number of times a query must be seen before it is compiled. */
+    static final int REPEATS = 3;
+    /** Number of rows in a table large enough that any query on it is
+     *  compiled. */
+    static final int ROWS = 1 << 18;
+    /** Maximum number of queries whose counts or loops are kept. */
+    static final int CAPACITY = 256;
+
+    /** A compiled scan-filter-project loop. */
+    interface Loop {
+        /** Add to OUT the values of my columns in each of the physical rows
+         *  K of TABLE, START <= K < END, that is live and satisfies my
+         *  conditions, passing OUT to SINK whenever it fills (as for
+         *  Operator.flushIfFull).  Return false iff SINK returned
+         *  false. */
+        boolean scan(Table table, int start, int end, Batch out,
+                     Operator.Sink sink);
+    }
+
+    /** Return an Operator producing the values of COLUMNS, all taken from
+     *  TABLE, in its rows that satisfy CONDITIONS, by means of a compiled
+     *  loop, or null if the query is not (yet) to be compiled. */
+    static synchronized Operator plan(Table table, List<Column> columns,
+                                      List<Condition> conditions) {
+        String source = source(columns, conditions);
+        if (source == null) {
+            return null;
+        }
+        Entry entry = CACHE.computeIfAbsent(source, x -> new Entry());
+        entry.seen += 1;
+        if (entry.loop == null && !entry.failed
+            && (entry.seen >= REPEATS || table.physicalSize() >= ROWS)) {
+            entry.loop = compile(source);
+            entry.failed = entry.loop == null;
+        }
+        if (entry.loop == null) {
+            return null;
+        }
+        return new Operator.Compiled(table, conditions, entry.loop);
+    }
+
+    /** Return the source of a class implementing Loop for a query of
+     *  COLUMNS with CONDITIONS, or null if a condition cannot be
+     *  compiled. */
+    static String source(List<Column> columns, List<Condition> conditions) {
+        StringBuilder text = new StringBuilder();
+        text.append("package db61b;\n\n")
+            .append("public final class CompiledLoop"
+                    + " implements QueryCompiler.Loop {\n")
+            .append("    public boolean scan(Table t, int start, int end,"
+                    + " Batch out, Operator.Sink sink) {\n")
+            .append("        for (int k = start; k < end; k += 1) {\n")
+            .append("            if (t.deleted(k)");
+        for (Condition cond : conditions) {
+            String test = cond.expression("t", "k");
+            if (test == null) {
+                return null;
+            }
+            text.append("\n                || !(").append(test).append(")");
+        }
+        text.append(") {\n")
+            .append("                continue;\n")
+            .append("            }\n")
+            .append("            if (!Operator.flushIfFull(out, sink)) {\n")
+            .append("                return false;\n")
+            .append("            }\n")
+            .append("            out.add(new String[] {");
+        for (int j = 0; j < columns.size(); j += 1) {
+            text.append(j == 0 ? " " : ", ")
+                .append("t.value(k, ").append(columns.get(j).getColumn())
+                .append(")");
+        }
+        text.append(" });\n")
+            .append("        }\n")
+            .append("        return true;\n")
+            .append("    }\n")
+            .append("}\n");
+        return text.toString();
+    }
+
+    /** Return S as a Java string literal. */
+    static String quote(String s) {
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20 || c >= 0x7f) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    /** Return a new instance of the class whose source is SOURCE, defined
+     *  as a hidden class in this package, or null if it cannot be
+     *  compiled. */
+    private static Loop compile(String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JavaFileObject input =
+            new SimpleJavaFileObject(URI.create("string:///db61b/"
+                                                + "CompiledLoop.java"),
+                                     JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreErrors) {
+                    return source;
+                }
+            };
+        try (StandardJavaFileManager standard =
+                 javac.getStandardFileManager(null, null, null);
+             ForwardingJavaFileManager<StandardJavaFileManager> files =
+                 new ForwardingJavaFileManager<>(standard) {
+                     @Override
+                     public JavaFileObject getJavaFileForOutput(
+                         Location location, String name,
+                         JavaFileObject.Kind kind, FileObject sibling) {
+                         URI uri = URI.create("bytes:///" + name);
+                         return new SimpleJavaFileObject(uri, kind) {
+                             @Override
+                             public OutputStream openOutputStream() {
+                                 return bytes;
+                             }
+                         };
+                     }
+                 }) {
+            boolean compiled =
+                javac.getTask(new StringWriter(), files, d -> { },
+                              List.of("-classpath",
+                                      System.getProperty("java.class.path"),
+                                      "-proc:none"),
+                              null, List.of(input)).call();
+            if (!compiled) {
+                return null;
+            }
+            Class<?> loop = MethodHandles.lookup()
+                .defineHiddenClass(bytes.toByteArray(), true).lookupClass();
+            return (Loop) loop.getDeclaredConstructor().newInstance();
+        } catch (IOException | ReflectiveOperationException
+                 | RuntimeException | LinkageError excp) {
+            return null;
+        }
+    }
+
+    /** What is known of one query. */
+    private static class Entry {
+        /** Number of times the query has been planned. */
+        private int seen;
+        /** The query's compiled loop, or null if not compiled. */
+        private Loop loop;
+        /** True iff compiling the query failed. */
+        private boolean failed;
+    }
+
+    /** The queries seen most recently, by the source of their loops. */
+    private static final LinkedHashMap<String, Entry> CACHE =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e) {
+                return size() > CAPACITY;
+            }
+        };
+}
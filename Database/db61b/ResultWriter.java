@@ -0,0 +1,312 @@
+package db61b;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static db61b.Utils.*;
+
+/** Writes the rows of Tables to an output stream in some format.  Output
+ *  is encoded directly into a large byte buffer that is reused from one
+ *  table to the next and written to the stream only when full or when a
+ *  table is finished, so that printing a large result makes few calls on
+ *  the stream, rather than one or more per value.
+ *  @author Brandon Griffin
+ */
+abstract class ResultWriter {
+
+    /** Size of my buffer in bytes. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Return a new ResultWriter to OUT whose format is named FORMAT (as
+     *  written in a 'set format' statement): 'text' (the default),
+     *  'csv', 'json' (JSON lines), or 'binary'. */
+    static ResultWriter named(String format, OutputStream out) {
+        switch (format) {
+        case "text":
+            return new Text(out);
+        case "csv":
+            return new Csv(out);
+        case "json":
+            return new JsonLines(out);
+        case "binary":
+            return new Binary(out);
+        default:
+            throw error("unknown format: %s", format);
+        }
+    }
+
+    /** A writer to OUT. */
+    ResultWriter(OutputStream out) {
+        _out = out;
+        _buffer = new byte[BUFFER_SIZE];
+        _length = 0;
+    }
+
+    /** Write the rows of TABLE, in its order, followed by anything my
+     *  format requires, and flush the result to my stream. */
+    void write(Table table) {
+        begin(table);
+        table.forEachRow(k -> row(table, k));
+        end(table);
+        flush();
+    }
+
+    /** Write whatever precedes the rows of TABLE. */
+    void begin(Table table) {
+    }
+
+    /** Write physical row K of TABLE. */
+    abstract void row(Table table, int k);
+
+    /** Write whatever follows the rows of TABLE. */
+    void end(Table table) {
+    }
+
+    /** Write my buffer to my stream and flush it. */
+    void flush() {
+        try {
+            _out.write(_buffer, 0, _length);
+            _out.flush();
+            _length = 0;
+        } catch (IOException excp) {
+            throw error("trouble writing results");
+        }
+    }
+
+    /** Append the byte B to my buffer. */
+    void put(int b) {
+        if (_length == _buffer.length) {
+            flush();
+        }
+        _buffer[_length] = (byte) b;
+        _length += 1;
+    }
+
+    /** Append the UTF-8 encoding of S to my buffer. */
+    void put(String s) {
+        int n = s.length();
+        for (int i = 0; i < n; i += 1) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                put(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            put(c);
+        }
+    }
+
+    /** Append BYTES to my buffer. */
+    void put(byte[] bytes) {
+        for (byte b : bytes) {
+            put(b);
+        }
+    }
+
+    /** Append the end of a line to my buffer. */
+    void newline() {
+        put(LINE_SEPARATOR);
+    }
+
+    /** The platform's line separator. */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /** Where my output goes. */
+    private final OutputStream _out;
+    /** Output not yet written to _out. */
+    private final byte[] _buffer;
+    /** Number of bytes of _buffer in use. */
+    private int _length;
+
+    /** Each row on its own line, indented by two blanks, with its values
+     *  separated by blanks (the format of the print statement). */
+    static class Text extends ResultWriter {
+        /** A writer to OUT. */
+        Text(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void row(Table table, int k) {
+            put(' ');
+            for (int j = 0; j < table.columns(); j += 1) {
+                put(' ');
+                put(table.value(k, j));
+            }
+            newline();
+        }
+    }
+
+    /** Comma-separated values, preceded by a line of column titles.
+     *  Values containing commas, quotes, or line breaks are quoted. */
+    static class Csv extends ResultWriter {
+        /** A writer to OUT. */
+        Csv(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void begin(Table table) {
+            for (int j = 0; j < table.columns(); j += 1) {
+                if (j > 0) {
+                    put(',');
+                }
+                field(table.getTitle(j));
+            }
+            newline();
+        }
+
+        @Override
+        void row(Table table, int k) {
+            for (int j = 0; j < table.columns(); j += 1) {
+                if (j > 0) {
+                    put(',');
+                }
+                field(table.value(k, j));
+            }
+            newline();
+        }
+
+        /** Append VALUE as a field, quoting it if need be. */
+        private void field(String value) {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i += 1) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                put(value);
+                return;
+            }
+            put('"');
+            put(value.replace("\"", "\"\""));
+            put('"');
+        }
+    }
+
+    /** One JSON object per line, whose keys are the column titles.
+     *  Values of numeric columns are written as JSON numbers, except that
+     *  NaN and the infinities, which JSON cannot represent, are written
+     *  as null.  Other values are written as strings. */
+    static class JsonLines extends ResultWriter {
+        /** A writer to OUT. */
+        JsonLines(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void row(Table table, int k) {
+            put('{');
+            for (int j = 0; j < table.columns(); j += 1) {
+                if (j > 0) {
+                    put(',');
+                }
+                string(table.getTitle(j));
+                put(':');
+                ColumnType type = table.getType(j);
+                if (type == ColumnType.DOUBLE
+                    && !Double.isFinite(table.doubleValue(k, j))) {
+                    put("null");
+                } else if (type.numeric()) {
+                    put(table.value(k, j));
+                } else {
+                    string(table.value(k, j));
+                }
+            }
+            put('}');
+            newline();
+        }
+
+        /** Append S as a JSON string. */
+        private void string(String s) {
+            put('"');
+            int start = 0;
+            for (int i = 0; i < s.length(); i += 1) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\' || c < 0x20) {
+                    put(s.substring(start, i));
+                    put('\\');
+                    switch (c) {
+                    case '"': case '\\':
+                        put(c);
+                        break;
+                    case '\n':
+                        put('n');
+                        break;
+                    case '\t':
+                        put('t');
+                        break;
+                    case '\r':
+                        put('r');
+                        break;
+                    default:
+                        put(String.format("u%04x", (int) c));
+                        break;
+                    }
+                    start = i + 1;
+                }
+            }
+            put(s.substring(start));
+            put('"');
+        }
+    }
+
+    /** A compact binary encoding: the number of columns and the column
+     *  titles, then, for each row, a 1 byte followed by its values, and
+     *  finally a 0 byte.  Counts are unsigned LEB128 varints, and each
+     *  title or value is its UTF-8 length (as a varint) followed by its
+     *  UTF-8 bytes. */
+    static class Binary extends ResultWriter {
+        /** A writer to OUT. */
+        Binary(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        void begin(Table table) {
+            varint(table.columns());
+            for (int j = 0; j < table.columns(); j += 1) {
+                string(table.getTitle(j));
+            }
+        }
+
+        @Override
+        void row(Table table, int k) {
+            put(1);
+            for (int j = 0; j < table.columns(); j += 1) {
+                string(table.value(k, j));
+            }
+        }
+
+        @Override
+        void end(Table table) {
+            put(0);
+        }
+
+        /** Append the non-negative N as a varint. */
+        void varint(int n) {
+            while (n >= 0x80) {
+                put(0x80 | (n & 0x7f));
+                n >>>= 7;
+            }
+            put(n);
+        }
+
+        /** Append the length of S's UTF-8 encoding, then the encoding. */
+        void string(String s) {
+            int n = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < n && ascii; i += 1) {
+                ascii = s.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                varint(n);
+                put(s);
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                varint(bytes.length);
+                put(bytes);
+            }
+        }
+    }
+}
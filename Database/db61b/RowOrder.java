@@ -0,0 +1,158 @@
+package db61b;
+
+import java.util.Comparator;
+import java.util.List;
+
+import static db61b.Utils.*;
+
+/** An ordering of the rows of a table: first by a sequence of key
+ *  columns, each ascending or descending, and then, to break ties,
+ *  lexicographically by all columns.  With no key columns, this is the
+ *  usual lexicographic order of rows.  Values of numeric columns are
+ *  compared numerically once the order is given the columns' types.
+ *  @author Brandon Griffin
+ */
+class RowOrder implements Comparator<String[]> {
+
+    /** The lexicographic order. */
+    static final RowOrder LEXICOGRAPHIC =
+        new RowOrder(new int[0], new boolean[0]);
+
+    /** An order whose Kth key is column KEYS[K], in descending order iff
+     *  DESCENDING[K]. */
+    RowOrder(int[] keys, boolean[] descending) {
+        this(keys, descending, null);
+    }
+
+    /** An order whose Kth key is column KEYS[K], in descending order iff
+     *  DESCENDING[K], and whose columns have types TYPES (all STRING if
+     *  null). */
+    private RowOrder(int[] keys, boolean[] descending, ColumnType[] types) {
+        _keys = keys;
+        _descending = descending;
+        _types = types;
+    }
+
+    /** The order whose keys are the columns named NAMES among TITLES,
+     *  descending as indicated by DESCENDING. */
+    RowOrder(List<String> names, List<Boolean> descending,
+             List<String> titles) {
+        this(new int[names.size()], new boolean[names.size()]);
+        for (int k = 0; k < _keys.length; k += 1) {
+            _keys[k] = titles.indexOf(names.get(k));
+            if (_keys[k] < 0) {
+                throw error("unknown column: %s", names.get(k));
+            }
+            _descending[k] = descending.get(k);
+        }
+    }
+
+    /** Return this order applied to rows whose columns have types
+     *  TYPES. */
+    RowOrder typed(ColumnType[] types) {
+        for (ColumnType type : types) {
+            if (type.numeric()) {
+                return new RowOrder(_keys, _descending, types);
+            }
+        }
+        return _types == null ? this : new RowOrder(_keys, _descending, null);
+    }
+
+    /** Return the number of key columns. */
+    int keys() {
+        return _keys.length;
+    }
+
+    /** Return the column number of key K. */
+    int key(int k) {
+        return _keys[k];
+    }
+
+    /** Return true iff key K is in descending order. */
+    boolean descending(int k) {
+        return _descending[k];
+    }
+
+    /** Return <0, 0, or >0 depending on whether row R0 comes before, is
+     *  tied with, or comes after R1 considering only my keys. */
+    int compareKeys(String[] r0, String[] r1) {
+        for (int k = 0; k < _keys.length; k += 1) {
+            int c = compare(_keys[k], r0[_keys[k]], r1[_keys[k]]);
+            if (c != 0) {
+                return _descending[k] ? -c : c;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int compare(String[] r0, String[] r1) {
+        int c = compareKeys(r0, r1);
+        if (c != 0) {
+            return c;
+        }
+        for (int i = 0; i < r0.length; i += 1) {
+            c = compare(i, r0[i], r1[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the values of ROW as I compare them, in an array that
+     *  compareParsed compares without parsing any numbers: those of
+     *  numeric columns as parsed by ColumnType.parse, and the rest as
+     *  they are.  If I compare all values as strings, that is ROW
+     *  itself.  Throws a DBException if a numeric value is invalid. */
+    Object[] parse(String[] row) {
+        if (_types == null) {
+            return row;
+        }
+        Object[] parsed = new Object[row.length];
+        for (int i = 0; i < row.length; i += 1) {
+            parsed[i] = _types[i].parse(row[i]);
+        }
+        return parsed;
+    }
+
+    /** Return the same as compare on the rows whose values, as returned
+     *  by parse, are P0 and P1. */
+    int compareParsed(Object[] p0, Object[] p1) {
+        for (int k = 0; k < _keys.length; k += 1) {
+            int c = compareParsed(p0[_keys[k]], p1[_keys[k]]);
+            if (c != 0) {
+                return _descending[k] ? -c : c;
+            }
+        }
+        for (int i = 0; i < p0.length; i += 1) {
+            int c = compareParsed(p0[i], p1[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Return the comparison of V0 and V1, values of the same column as
+     *  returned by parse. */
+    @SuppressWarnings("unchecked")
+    private static int compareParsed(Object v0, Object v1) {
+        return ((Comparable<Object>) v0).compareTo(v1);
+    }
+
+    /** Return the comparison of values V0 and V1 of column I. */
+    private int compare(int i, String v0, String v1) {
+        if (_types == null) {
+            return v0.compareTo(v1);
+        }
+        return _types[i].compare(v0, v1);
+    }
+
+    /** Key column numbers. */
+    private final int[] _keys;
+    /** Direction of each key. */
+    private final boolean[] _descending;
+    /** Column types, or null if all are STRING. */
+    private final ColumnType[] _types;
+}
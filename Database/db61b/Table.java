@@ -1,13 +1,29 @@
 package db61b;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
 
 import static db61b.Utils.*;
 
@@ -16,8 +32,11 @@ import static db61b.Utils.*;
  */
 class Table {
     /** A new Table whose columns are given by COLUMNTITLES, which may
-     *  not contain duplicate names. */
-    Table(String[] columnTitles) {
+     *  not contain duplicate names, and hold values of types TYPES, whose
+     *  string values are kept in storage of kind STORAGE, and whose rows
+     *  are kept in order ORDER. */
+    Table(String[] columnTitles, ColumnType[] types,
+          ColumnStorage.Kind storage, RowOrder order) {
         if (columnTitles.length == 0) {
             throw error("table must have at least one column");
         }
@@ -32,15 +51,86 @@ class Table {
             }
         }
         _titles = columnTitles;
-        _columns = new ValueList[_rowSize];
+        _types = types;
+        _storage = storage;
+        _order = order.typed(types);
+        _columns = new ColumnStorage[_rowSize];
+        _zones = new ZoneMap[_rowSize];
         for (int k = 0; k < _rowSize; k++) {
-            _columns[k] = new ValueList();
+            _columns[k] = types[k].create(storage);
+            _zones[k] = new ZoneMap(_columns[k]);
+        }
+    }
+
+    /** A new Table holding the rows of SOURCE, which must be distinct and
+     *  in lexicographic order, whose columns are decoded from SOURCE into
+     *  storage of kind STORAGE only when first used.  Until all have
+     *  been, SOURCE remains open. */
+    private Table(BlockFile.Columns source, ColumnStorage.Kind storage) {
+        _titles = source.titles();
+        _types = source.types();
+        _rowSize = _titles.length;
+        _storage = storage;
+        _order = RowOrder.LEXICOGRAPHIC.typed(_types);
+        _columns = new ColumnStorage[_rowSize];
+        _zones = new ZoneMap[_rowSize];
+        _source = source;
+        _unloaded = _rowSize;
+        _bloom = null;
+        _size = source.rows();
+        _index.ensureCapacity(_size);
+        for (int k = 0; k < _size; k += 1) {
+            _index.add(k);
         }
     }
 
+    /** A new Table whose columns are given by COLUMNTITLES, which may
+     *  not contain duplicate names, whose values are kept in storage of
+     *  kind STORAGE, and whose rows are kept in order ORDER. */
+    Table(String[] columnTitles, ColumnStorage.Kind storage, RowOrder order) {
+        this(columnTitles, ColumnType.untyped(columnTitles.length), storage,
+             order);
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES, which may
+     *  not contain duplicate names, and whose values are kept in
+     *  storage of kind STORAGE. */
+    Table(String[] columnTitles, ColumnStorage.Kind storage) {
+        this(columnTitles, storage, RowOrder.LEXICOGRAPHIC);
+    }
+
+    /** A new Table whose columns are given by COLUMNTITLES, which may
+     *  not contain duplicate names. */
+    Table(String[] columnTitles) {
+        this(columnTitles, ColumnStorage.Kind.HEAP);
+    }
+
     /** A new Table whose columns are give by COLUMNTITLES. */
     Table(List<String> columnTitles) {
-        this(columnTitles.toArray(new String[columnTitles.size()]));
+        this(columnTitles, ColumnStorage.Kind.HEAP);
+    }
+
+    /** A new Table whose columns are give by COLUMNTITLES, kept in
+     *  storage of kind STORAGE. */
+    Table(List<String> columnTitles, ColumnStorage.Kind storage) {
+        this(columnTitles, storage, RowOrder.LEXICOGRAPHIC);
+    }
+
+    /** A new Table whose columns are give by COLUMNTITLES, kept in
+     *  storage of kind STORAGE and in order ORDER. */
+    Table(List<String> columnTitles, ColumnStorage.Kind storage,
+          RowOrder order) {
+        this(columnTitles.toArray(new String[columnTitles.size()]), storage,
+             order);
+    }
+
+    /** A new Table whose columns are give by COLUMNTITLES, holding values
+     *  of types TYPES, kept in storage of kind STORAGE and in order
+     *  ORDER. */
+    Table(List<String> columnTitles, List<ColumnType> types,
+          ColumnStorage.Kind storage, RowOrder order) {
+        this(columnTitles.toArray(new String[columnTitles.size()]),
+             types.toArray(new ColumnType[types.size()]), storage, order);
     }
 
     /** Return the number of columns in this table. */
@@ -69,104 +159,565 @@ class Table {
         return -1;
     }
 
+    /** Return the type of the values in column COL. */
+    public ColumnType getType(int col) {
+        return _types[col];
+    }
+
+    /** Return my version: a number that changes whenever my contents
+     *  do. */
+    public long version() {
+        return _version;
+    }
+
+    /** Return an estimate of the memory occupied by my rows, in bytes. */
+    long estimatedBytes() {
+        long bytes = 64L * _rowSize + 8L * _size;
+        for (int k = 0; k < _size; k += 1) {
+            if (deleted(k)) {
+                continue;
+            }
+            for (int j = 0; j < _rowSize; j += 1) {
+                bytes += 48 + 2 * column(j).get(k).length();
+            }
+        }
+        return bytes;
+    }
+
     /** Return the number of rows in this table. */
     public int size() {
+        return _size - _deletedCount;
+    }
+
+    /** Return the number of physical rows in this table, including
+     *  deleted rows that have not yet been compacted away.  Physical
+     *  row indices range from 0 to physicalSize() - 1. */
+    int physicalSize() {
         return _size;
     }
 
+    /** Return true iff physical row K has been deleted. */
+    boolean deleted(int k) {
+        return _deletedCount > 0 && _deleted.get(k);
+    }
+
     /** Return the value of column number COL (0 <= COL < columns())
      *  of record number ROW (0 <= ROW < size()). */
     public String get(int row, int col) {
         try {
-            return _columns[col].get(_index.get(row));
+            return column(col).get(liveIndex().get(row));
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** Return the value of column number COL of physical row K, that is,
+     *  of the Kth row added (0 <= K < physicalSize()).  Scans, Columns,
+     *  and Conditions identify rows this way. */
+    String value(int k, int col) {
+        try {
+            return column(col).get(k);
         } catch (IndexOutOfBoundsException excp) {
             throw error("invalid row or column");
         }
     }
 
+    /** Return my column COL, first decoding it from my file if I was
+     *  loaded lazily and it has not yet been used. */
+    private ColumnStorage column(int col) {
+        ColumnStorage column = _columns[col];
+        return column != null ? column : load(col);
+    }
+
+    /** Decode my column COL, and its zone map, from _source, if that has
+     *  not already been done, and return it. */
+    private synchronized ColumnStorage load(int col) {
+        if (_columns[col] == null) {
+            ColumnStorage column = _types[col].create(_storage);
+            try {
+                _source.read(col, column);
+            } catch (IOException excp) {
+                column.release();
+                throw error("problem reading column %s", _titles[col]);
+            }
+            ZoneMap zones = new ZoneMap(column);
+            for (int k = 0; k < _size; k += 1) {
+                zones.added(k);
+            }
+            _zones[col] = zones;
+            _columns[col] = column;
+            _unloaded -= 1;
+            if (_unloaded == 0) {
+                _source.close();
+                _source = null;
+            }
+        }
+        return _columns[col];
+    }
+
+    /** Decode all of my columns that have not yet been used, and build
+     *  my Bloom filter if I do not yet have one. */
+    private void materialize() {
+        for (int j = 0; j < _rowSize; j += 1) {
+            column(j);
+        }
+        if (_bloom == null) {
+            rebuildBloom(_size);
+        }
+    }
+
+    /** Replace my Bloom filter with one of capacity CAPACITY holding my
+     *  first _size physical rows. */
+    private void rebuildBloom(int capacity) {
+        _bloom = new BloomFilter(capacity);
+        String[] row = new String[_rowSize];
+        for (int k = 0; k < _size; k += 1) {
+            for (int j = 0; j < _rowSize; j += 1) {
+                row[j] = _columns[j].get(k);
+            }
+            _bloom.add(rowHash(row));
+        }
+    }
+
     /** Add a new row whose column values are VALUES to me if no equal
      *  row already exists.  Return true if anything was added,
      *  false otherwise. */
     public boolean add(String[] values) {
-        String[] testRow = new String[_rowSize];
-        for (int i = 0; i < _size; i++) {
-            for (int j = 0; j < _rowSize; j++) {
-                testRow[j] = this.get(i, j);
-            }
-            if (Arrays.equals(values, testRow)) {
-                return false;
-            }
-        }
         if (values.length != _columns.length) {
             throw error("Input row has incorrect size");
+        }
+        for (int j = 0; j < _rowSize; j += 1) {
+            _types[j].check(values[j]);
+        }
+        materialize();
+        if (_bloom.mightContain(rowHash(values))) {
+            for (int k = 0; k < _size; k++) {
+                if (!deleted(k) && rowEquals(k, values)) {
+                    return false;
+                }
+            }
+        }
+        appendValues(values);
+        _size++;
+        _version++;
+        if (_size == 1) {
+            _index.add(0, 0);
+            return true;
         } else {
-            for (int j = 0; j < columns(); j++) {
-                _columns[j].add(values[j]);
+            int index = -1;
+            search:
+            for (int i = 0; i < columns(); i++) {
+                for (int j = 0; j < _index.size(); j++) {
+                    if (this.compareRows(_index.get(j), _size - 1) > 0) {
+                        index = j;
+                        break search;
+                    } else if (this.compareRows(_index.get(j), _size - 1)
+                            == 0) {
+                        break;
+                    }
+                }
+            }
+            if (index < 0) {
+                index = _index.size();
             }
-            _size++;
-            if (_size == 1) {
-                _index.add(0, 0);
+            if (index == _index.size()) {
+                _index.add(_size - 1);
                 return true;
             } else {
-                int index = -1;
-                search:
-                for (int i = 0; i < columns(); i++) {
-                    for (int j = 0; j < _index.size(); j++) {
-                        if (this.compareRows(_index.get(j), _size - 1) > 0) {
-                            index = j;
-                            break search;
-                        } else if (this.compareRows(_index.get(j), _size - 1)
-                                == 0) {
-                            break;
-                        }
-                    }
-                }
-                if (index < 0) {
-                    index = _index.size();
-                }
-                if (index == _index.size()) {
-                    _index.add(index);
-                    return true;
-                } else {
-                    _index.add(index, _size - 1);
-                    return true;
-                }
+                _index.add(index, _size - 1);
+                return true;
             }
         }
     }
+
     /** Add a new row whose column values are extracted by COLUMNS from
      *  the rows indexed by ROWS, if no equal row already exists.
      *  Return true if anything was added, false otherwise. See
-     *  Column.getFrom(Integer...) for a description of how Columns
+     *  Column.getFrom(int...) for a description of how Columns
      *  extract values. */
-    public boolean add(List<Column> columns, Integer... rows) {
-        String[] values = new String[columns()];
-        for (int i = 0; i < columns.size(); i++) {
-            values[i] = columns.get(i).getFrom(rows);
+    public boolean add(List<Column> columns, int... rows) {
+        return this.add(project(columns, rows));
+    }
+
+    /** Delete the rows of this table that satisfy CONDITIONS, returning
+     *  the number deleted.  Deleted rows are only marked in a bitmap
+     *  that scans skip, so that this takes time proportional to the
+     *  number of rows examined, not to the size of the table; their
+     *  storage is reclaimed by compact. */
+    int delete(List<Condition> conditions) {
+        int before = _deletedCount;
+        scan(conditions, rows -> tombstone(rows[0]));
+        return _deletedCount - before;
+    }
+
+    /** Set the columns numbered COLS to VALUES in the rows of this table
+     *  that satisfy CONDITIONS, returning the number of rows changed.
+     *  Each changed row is deleted and its new version added (unless
+     *  it duplicates an existing row), so that my order and my other
+     *  indices are maintained as for add. */
+    int update(int[] cols, String[] values, List<Condition> conditions) {
+        for (int j = 0; j < cols.length; j += 1) {
+            getType(cols[j]).check(values[j]);
+        }
+        IntList matches = new IntList();
+        scan(conditions, rows -> matches.add(rows[0]));
+        String[] row = new String[_rowSize];
+        for (int i = 0; i < matches.size(); i += 1) {
+            int k = matches.get(i);
+            for (int j = 0; j < _rowSize; j += 1) {
+                row[j] = column(j).get(k);
+            }
+            for (int j = 0; j < cols.length; j += 1) {
+                row[cols[j]] = values[j];
+            }
+            tombstone(k);
+            add(row);
+        }
+        return matches.size();
+    }
+
+    /** Mark physical row K as deleted. */
+    private void tombstone(int k) {
+        if (!_deleted.get(k)) {
+            _deleted.set(k);
+            _deletedCount += 1;
+            _layout += 1;
+            _indexStale = true;
+            _version += 1;
+            if (_partitioning != null) {
+                partChange(partitionOf(k));
+            }
+        }
+    }
+
+    /** Return true iff enough of my rows are deleted that compacting me
+     *  would be worthwhile. */
+    boolean needsCompaction() {
+        return _deletedCount > 0 && _deletedCount >= COMPACTION_RATIO * _size;
+    }
+
+    /** Rebuild my columns, indices, zone maps, and Bloom filter without
+     *  the deleted rows, renumbering the remaining physical rows in
+     *  their current physical order.  My contents are unchanged. */
+    void compact() {
+        if (_deletedCount == 0) {
+            return;
+        }
+        materialize();
+        ColumnStorage[] columns = new ColumnStorage[_rowSize];
+        for (int j = 0; j < _rowSize; j += 1) {
+            columns[j] = getType(j).create(_storage);
+        }
+        int[] renumbered = new int[_size];
+        int live;
+        live = 0;
+        for (int k = 0; k < _size; k += 1) {
+            if (!_deleted.get(k)) {
+                for (int j = 0; j < _rowSize; j += 1) {
+                    columns[j].append(_columns[j].get(k));
+                }
+                renumbered[k] = live;
+                live += 1;
+            }
+        }
+        IntList index = new IntList(live);
+        for (int i = 0; i < _index.size(); i += 1) {
+            int k = _index.get(i);
+            if (!_deleted.get(k)) {
+                index.add(renumbered[k]);
+            }
+        }
+        if (_partitioning != null) {
+            for (int p = 0; p < _parts.length; p += 1) {
+                IntList part = new IntList(_parts[p].size());
+                for (int i = 0; i < _parts[p].size(); i += 1) {
+                    int k = _parts[p].get(i);
+                    if (!_deleted.get(k)) {
+                        part.add(renumbered[k]);
+                    }
+                }
+                _parts[p] = part;
+            }
+        }
+        for (int j = 0; j < _rowSize; j += 1) {
+            retire(_columns[j]);
+            _columns[j] = columns[j];
+            _zones[j] = new ZoneMap(columns[j]);
+            for (int k = 0; k < live; k += 1) {
+                _zones[j].added(k);
+            }
+        }
+        _index = index;
+        _size = live;
+        _layout += 1;
+        _deleted.clear();
+        _deletedCount = 0;
+        _indexStale = false;
+        rebuildBloom(live);
+        _crackers = null;
+    }
+
+    /** Divide my rows among partitions as directed by PARTITIONING, which
+     *  must be on one of my columns.  All partitions count as changed
+     *  (see partChanged). */
+    void partition(Partitioning partitioning) {
+        _partitioning = partitioning;
+        _parts = new IntList[partitioning.count()];
+        for (int p = 0; p < _parts.length; p += 1) {
+            _parts[p] = new IntList();
+        }
+        for (int k = 0; k < _size; k += 1) {
+            if (!deleted(k)) {
+                _parts[partitionOf(k)].add(k);
+            }
         }
-        return this.add(values);
+        _dirtyParts = new BitSet();
+        _dirtyParts.set(0, _parts.length);
+        _partChanges = new int[_parts.length];
+    }
+
+    /** Return how my rows are partitioned, or null if they are not. */
+    Partitioning partitioning() {
+        return _partitioning;
+    }
+
+    /** Return the physical indices of the rows of my partition P, in
+     *  physical order.  Some may be deleted. */
+    IntList part(int p) {
+        return _parts[p];
+    }
+
+    /** Return the partition of physical row K. */
+    private int partitionOf(int k) {
+        return _partitioning.partition(value(k, _partitioning.column()));
+    }
+
+    /** Return true iff rows have been added to or deleted from my
+     *  partition P since it was last stored or loaded. */
+    boolean partChanged(int p) {
+        return _dirtyParts.get(p);
+    }
+
+    /** Record that rows have been added to or deleted from my
+     *  partition P. */
+    private void partChange(int p) {
+        _dirtyParts.set(p);
+        _partChanges[p] += 1;
+    }
+
+    /** Return a snapshot of the current contents of my partition P, as
+     *  for snapshot, to be written block-compressed iff COMPRESSED.
+     *  Taking one copies only the partition's list of live rows.  Once it
+     *  is written, partition P no longer counts as changed, unless it
+     *  has changed since the snapshot was taken. */
+    Snapshot partitionSnapshot(int p, boolean compressed) {
+        IntList live = new IntList();
+        for (int i = 0; i < _parts[p].size(); i += 1) {
+            int k = _parts[p].get(i);
+            if (!deleted(k)) {
+                live.add(k);
+            }
+        }
+        _pins += 1;
+        return new Snapshot(this, compressed, p, live.toArray());
+    }
+
+    /** Replace the rows of my partition P with the rows of PART, which
+     *  must have the same columns as I, and all of whose rows must belong
+     *  to partition P.  Partition P then counts as unchanged.  The new
+     *  rows are sorted into my order and then merged with my other rows,
+     *  which they cannot duplicate, rather than added one by one. */
+    void replacePartition(int p, Table part) {
+        if (!Arrays.equals(part._titles, _titles)
+            || !Arrays.equals(part._types, _types)) {
+            throw error("partition has different columns");
+        }
+        int col = _partitioning.column();
+        ExternalSort rows = sorter();
+        part.forEachRow(k -> {
+            String[] values = part.rowValues(k);
+            if (_partitioning.partition(values[col]) != p) {
+                throw error("row does not belong to partition %d", p);
+            }
+            rows.add(values);
+        });
+        materialize();
+        for (int i = 0; i < _parts[p].size(); i += 1) {
+            tombstone(_parts[p].get(i));
+        }
+        IntList others = liveIndex();
+        int first = _size;
+        rows.drain(values -> {
+            appendValues(values);
+            _size += 1;
+        });
+        IntList index = new IntList(others.size() + _size - first);
+        int i = 0, k = first;
+        while (i < others.size() || k < _size) {
+            if (k == _size
+                || (i < others.size() && compareRows(others.get(i), k) < 0)) {
+                index.add(others.get(i));
+                i += 1;
+            } else {
+                index.add(k);
+                k += 1;
+            }
+        }
+        _index = index;
+        _version += 1;
+        _dirtyParts.clear(p);
+    }
+
+    /** Return the values of physical row K. */
+    private String[] rowValues(int k) {
+        String[] values = new String[_rowSize];
+        for (int j = 0; j < _rowSize; j += 1) {
+            values[j] = value(k, j);
+        }
+        return values;
+    }
+
+    /** Return _index, first removing any deleted rows from it. */
+    IntList liveIndex() {
+        if (_indexStale) {
+            _index.removeIf(k -> _deleted.get(k));
+            _indexStale = false;
+        }
+        return _index;
+    }
+
+    /** Return a new sorter of rows into my order, for fill, that holds
+     *  about as many rows in memory as the memory budget allows. */
+    ExternalSort sorter() {
+        return new ExternalSort(_order, memoryBudget());
+    }
+
+    /** Add the rows that ROWS produces, which must be distinct and come
+     *  out in my order, to me.  I must be empty.  Since the order is
+     *  known, each row takes constant time, where add would search for
+     *  duplicates and for the row's place in _index. */
+    void fill(ExternalSort rows) {
+        if (_size != 0) {
+            throw error("can only fill an empty table");
+        }
+        rows.drain(this::append);
+    }
+
+    /** Add the rows of values produced by PLAN to me, in my order and,
+     *  if LIMIT >= 0, only the first LIMIT of them.  I must be empty.  If
+     *  ORDERED, PLAN produces its rows in non-decreasing order of my
+     *  order's keys, and if also LIMIT < 0, they are distinct and in my
+     *  order, so that they need not be sorted. */
+    void fill(Operator plan, int limit, boolean ordered) {
+        if (_size != 0) {
+            throw error("can only fill an empty table");
+        }
+        if (limit >= 0) {
+            plan = new Operator.Limit(plan, _order, limit, ordered);
+        } else if (!ordered) {
+            plan = new Operator.Sort(plan, _order);
+        }
+        plan.produce(batch -> {
+            for (int r = 0; r < batch.size(); r += 1) {
+                append(batch.values(r));
+            }
+            return true;
+        });
+    }
+
+    /** Add VALUES as my last row in order, without checking that it
+     *  belongs there. */
+    private void append(String[] values) {
+        appendValues(values);
+        _index.add(_size);
+        _size += 1;
+    }
+
+    /** Append VALUES to my columns as physical row _size, and record them
+     *  in my zone maps and Bloom filter. */
+    private void appendValues(String[] values) {
+        for (int j = 0; j < _rowSize; j += 1) {
+            _columns[j].append(values[j]);
+            _zones[j].added(_size);
+        }
+        if (_bloom.full()) {
+            rebuildBloom(2 * _bloom.capacity());
+        }
+        _bloom.add(rowHash(values));
+        if (_partitioning != null) {
+            int p = _partitioning.partition(values[_partitioning.column()]);
+            _parts[p].add(_size);
+            partChange(p);
+        }
+    }
+
+    /** Return a hash of the row VALUES such that equal rows (including
+     *  rows whose numeric values are written differently) have equal
+     *  hashes. */
+    private long rowHash(String[] values) {
+        long h = 0;
+        for (int j = 0; j < _rowSize; j += 1) {
+            h = 31 * h + _types[j].hash(values[j]);
+        }
+        return BloomFilter.mix(h);
     }
 
     /** Read the contents of the file NAME.db, and return as a Table.
      *  Format errors in the .db file cause a DBException. */
     static Table readTable(String name) {
-        BufferedReader input;
+        return readTable(name, ColumnStorage.Kind.HEAP);
+    }
+
+    /** Read the contents of the file NAME.db, and return as a Table
+     *  whose values are kept in storage of kind STORAGE.  Format errors
+     *  in the .db file cause a DBException. */
+    static Table readTable(String name, ColumnStorage.Kind storage) {
+        return readTable(name, storage, memoryBudget());
+    }
+
+    /** As for readTable(NAME, STORAGE), but sorting the rows using at
+     *  most about BUDGET bytes of memory.  The file may be in text form
+     *  or block-compressed (see BlockFile).  A text file whose last line
+     *  is unterminated was cut short while being appended to, and that
+     *  line is ignored. */
+    static Table readTable(String name, ColumnStorage.Kind storage,
+                           long budget) {
+        return readTable(name, storage, budget, null);
+    }
+
+    /** As for readTable(NAME, STORAGE, BUDGET), but keeping only the rows
+     *  that belong to SHARD, if it is not null. */
+    static Table readTable(String name, ColumnStorage.Kind storage,
+                           long budget, Cluster.Shard shard) {
+        BufferedInputStream input;
         Table table;
         input = null;
-        table = null;
         try {
-            input = new BufferedReader(new FileReader(name + ".db"));
-            String header = input.readLine();
-            if (header == null) {
-                throw error("missing header in DB file");
-            }
-            String[] columnNames = header.split(",");
-            table = new Table(columnNames);
-            String[] values;
-            for (String newline = input.readLine(); newline != null;
-                 newline = input.readLine()) {
-                values = newline.split(",");
-                table.add(values);
+            input = new BufferedInputStream(new FileInputStream(name + ".db"));
+            if (Partitioning.isManifest(input)) {
+                return readPartitioned(name, input, storage, budget, shard);
+            }
+            input.mark(BlockFile.MAGIC.length);
+            if (BlockFile.isBlockFile(input)) {
+                BlockFile.Reader reader = new BlockFile.Reader(input);
+                if (reader.sorted() && shard == null) {
+                    input.close();
+                    input = null;
+                    return new Table(new BlockFile.Columns
+                                     (Paths.get(name + ".db")), storage);
+                }
+                table = readBlocks(reader, storage, budget, shard);
+            } else {
+                input.reset();
+                File file = new File(name + ".db");
+                boolean partial = partialLine(file);
+                table = readText(new BufferedReader
+                                 (new InputStreamReader(input)),
+                                 storage, budget, shard, partial);
+                if (shard == null && !partial) {
+                    table.stored(name, file, table._size, table._layout,
+                                 false);
+                }
             }
         } catch (FileNotFoundException e) {
             throw error("could not find %s.db", name);
@@ -184,77 +735,516 @@ class Table {
         return table;
     }
 
+    /** Return the partitioned table whose manifest file, NAME.db, is
+     *  INPUT, from which the first line has been read, reading its
+     *  partitions from NAME.0.db, NAME.1.db, ... into storage of kind
+     *  STORAGE, and sorting within memory budget BUDGET.  Only the rows
+     *  belonging to SHARD are kept, if it is not null. */
+    private static Table readPartitioned(String name, InputStream input,
+                                         ColumnStorage.Kind storage,
+                                         long budget, Cluster.Shard shard)
+        throws IOException {
+        String line = new BufferedReader(new InputStreamReader(input))
+            .readLine();
+        Table first = readTable(name + ".0", storage, budget, shard);
+        Partitioning partitioning = Partitioning.parse(line, first);
+        Table table = new Table(first._titles, first._types, storage,
+                                RowOrder.LEXICOGRAPHIC);
+        table.partition(partitioning);
+        ExternalSort rows = new ExternalSort(table._order, budget);
+        for (int p = 0; p < partitioning.count(); p += 1) {
+            Table part = p == 0 ? first : readTable(name + "." + p, storage,
+                                                    budget, shard);
+            if (!Arrays.equals(part._titles, first._titles)
+                || !Arrays.equals(part._types, first._types)) {
+                throw error("partitions of %s have different columns", name);
+            }
+            part.forEachRow(k -> rows.add(part.rowValues(k)));
+            part.release();
+        }
+        table.fill(rows);
+        table._dirtyParts.clear();
+        return table;
+    }
+
+    /** Return an empty Table with the columns of the table in the file
+     *  NAME.db, reading only as much of the file as describes them.
+     *  Format errors in the .db file cause a DBException. */
+    static Table readSchema(String name) {
+        try (BufferedInputStream input =
+             new BufferedInputStream(new FileInputStream(name + ".db"))) {
+            if (Partitioning.isManifest(input)) {
+                return readSchema(name + ".0");
+            }
+            input.mark(BlockFile.MAGIC.length);
+            if (BlockFile.isBlockFile(input)) {
+                BlockFile.Reader reader = new BlockFile.Reader(input);
+                return new Table(reader.titles(), reader.types(),
+                                 ColumnStorage.Kind.HEAP,
+                                 RowOrder.LEXICOGRAPHIC);
+            }
+            input.reset();
+            return header(new BufferedReader(new InputStreamReader(input))
+                          .readLine(), ColumnStorage.Kind.HEAP);
+        } catch (FileNotFoundException e) {
+            throw error("could not find %s.db", name);
+        } catch (IOException e) {
+            throw error("problem reading from %s.db", name);
+        }
+    }
+
+    /** Return true iff the text table file FILE does not end with a line
+     *  terminator.  Every row written to such a file is terminated, so
+     *  its last line is then the partial row left by an append to it
+     *  that was cut short (as by a crash). */
+    private static boolean partialLine(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            long length = input.length();
+            if (length == 0) {
+                return false;
+            }
+            input.seek(length - 1);
+            int last = input.read();
+            return last != '\n' && last != '\r';
+        }
+    }
+
+    /** Return a Table read from the text table file INPUT, in storage of
+     *  kind STORAGE, sorting its rows in about BUDGET bytes of memory, and
+     *  keeping only those that belong to SHARD, if it is not null.  If
+     *  PARTIAL, the last line of INPUT is a partial row, and is
+     *  ignored. */
+    private static Table readText(BufferedReader input,
+                                  ColumnStorage.Kind storage, long budget,
+                                  Cluster.Shard shard, boolean partial)
+        throws IOException {
+        Table table = header(input.readLine(), storage);
+        ColumnType[] types = table._types;
+        Predicate<String[]> keep = shard == null ? null : shard.filter(table);
+        ExternalSort rows = new ExternalSort(table._order, budget);
+        String[] values;
+        String next;
+        for (String newline = input.readLine(); newline != null;
+             newline = next) {
+            next = input.readLine();
+            if (partial && next == null) {
+                break;
+            }
+            values = newline.split(",");
+            if (values.length != types.length) {
+                throw error("Input row has incorrect size");
+            }
+            keep(values, types, keep, rows);
+        }
+        table.fill(rows);
+        return table;
+    }
+
+    /** Add VALUES, a row read from a table file whose columns have types
+     *  TYPES, to ROWS if KEEP is null or accepts it.  Throws a DBException
+     *  if a value is invalid for its column.  ROWS parses the values of
+     *  the rows it gets, so that they are checked and then compared
+     *  without being parsed again. */
+    private static void keep(String[] values, ColumnType[] types,
+                             Predicate<String[]> keep, ExternalSort rows) {
+        if (keep == null || keep.test(values)) {
+            rows.add(values);
+        } else {
+            for (int k = 0; k < values.length; k += 1) {
+                types[k].check(values[k]);
+            }
+        }
+    }
+
+    /** Return an empty Table, in storage of kind STORAGE, with the
+     *  columns described by HEADER, the first line of a text table
+     *  file. */
+    private static Table header(String header, ColumnStorage.Kind storage) {
+        if (header == null) {
+            throw error("missing header in DB file");
+        }
+        String[] columnNames = header.split(",");
+        ColumnType[] types = ColumnType.untyped(columnNames.length);
+        for (int k = 0; k < columnNames.length; k += 1) {
+            int colon = columnNames[k].indexOf(':');
+            if (colon >= 0) {
+                types[k] =
+                    ColumnType.named(columnNames[k].substring(colon + 1));
+                columnNames[k] = columnNames[k].substring(0, colon);
+            }
+        }
+        return new Table(columnNames, types, storage,
+                         RowOrder.LEXICOGRAPHIC);
+    }
+
+    /** Return a Table read from the block-compressed file INPUT, in
+     *  storage of kind STORAGE, sorting its rows in about BUDGET bytes of
+     *  memory, and keeping only those that belong to SHARD, if it is not
+     *  null. */
+    private static Table readBlocks(BlockFile.Reader input,
+                                    ColumnStorage.Kind storage, long budget,
+                                    Cluster.Shard shard)
+        throws IOException {
+        ColumnType[] types = input.types();
+        Table table = new Table(input.titles(), types, storage,
+                                RowOrder.LEXICOGRAPHIC);
+        Predicate<String[]> keep = shard == null ? null : shard.filter(table);
+        ExternalSort rows = new ExternalSort(table._order, budget);
+        input.rows(values -> keep(values, types, keep, rows));
+        table.fill(rows);
+        return table;
+    }
+
     /** Write the contents of TABLE into the file NAME.db. Any I/O errors
      *  cause a DBException. */
     void writeTable(String name) {
-        PrintStream output;
-        output = null;
-        try {
-            String sep;
-            sep = "";
-            output = new PrintStream(name + ".db");
-            output.print(_titles[0]);
-            for (int b = 1; b < _titles.length; b++) {
-                output.print("," + _titles[b]);
+        snapshot(false).write(name, this);
+    }
+
+    /** Return a snapshot of my current contents, which stays unchanged as
+     *  I am modified, until it is released, and which is written
+     *  block-compressed if COMPRESSED.  Taking one copies only my
+     *  deletion bitmap (and, if COMPRESSED, the order of my rows): my
+     *  columns are only ever appended to, and when compact or release
+     *  would free them, they are instead kept until no snapshot of them
+     *  remains. */
+    Snapshot snapshot(boolean compressed) {
+        _pins += 1;
+        return new Snapshot(this, compressed, -1, null);
+    }
+
+    /** Maximum number of times in a row that storing me appends to a
+     *  file rather than rewriting it. */
+    static final int MAX_APPENDS = 16;
+
+    /** Return the number of my physical rows that FILE, named NAME.db,
+     *  holds, if it holds the same rows as my first rows as numbered in
+     *  layout LAYOUT, and was last written or read by me.  Otherwise, or
+     *  if it is time to rewrite FILE, return -1. */
+    private int storedRows(String name, File file, int layout) {
+        if (name.equals(_storedName) && layout == _storedLayout
+            && _appends < MAX_APPENDS && file.length() == _storedLength
+            && file.lastModified() == _storedModified) {
+            return _storedRows;
+        }
+        return -1;
+    }
+
+    /** Record that FILE, named NAME.db, now holds the same rows as my
+     *  first ROWS physical rows as numbered in layout LAYOUT, having been
+     *  appended to if APPENDED, or rewritten otherwise.  A null NAME
+     *  records that no file is known to hold my rows. */
+    private void stored(String name, File file, int rows, int layout,
+                        boolean appended) {
+        _storedName = name;
+        _storedRows = rows;
+        _storedLayout = layout;
+        _storedLength = file.length();
+        _storedModified = file.lastModified();
+        _appends = appended ? _appends + 1 : 0;
+    }
+
+    /** Note that a snapshot of me has been released. */
+    private void unpin() {
+        _pins -= 1;
+        if (_pins == 0) {
+            for (ColumnStorage column : _retired) {
+                column.release();
+            }
+            _retired.clear();
+        }
+    }
+
+    /** Release COLUMN, or, if there are snapshots of me, retire it until
+     *  there are none. */
+    private void retire(ColumnStorage column) {
+        if (_pins > 0) {
+            _retired.add(column);
+        } else {
+            column.release();
+        }
+    }
+
+    /** The contents of a Table at some moment. */
+    static class Snapshot {
+
+        /** Number of rows read at a time by write. */
+        static final int BATCH = 1024;
+
+        /** A snapshot of TABLE, to be written block-compressed iff
+         *  COMPRESSED.  If PART is not -1, the snapshot is of partition
+         *  PART of TABLE, whose live rows are ROWS. */
+        private Snapshot(Table table, boolean compressed, int part,
+                         int[] rows) {
+            table.materialize();
+            _table = table;
+            _titles = table._titles;
+            _columns = table._columns.clone();
+            _size = table._size;
+            _deleted = (BitSet) table._deleted.clone();
+            _layout = table._layout;
+            _compressed = compressed;
+            _part = part;
+            if (part != -1) {
+                _order = rows;
+                _sorted = false;
+                _partChanges = table._partChanges[part];
+            } else {
+                _order = compressed ? table.liveIndex().toArray() : null;
+                _sorted = table._order.keys() == 0;
+                _partChanges = 0;
+            }
+        }
+
+        /** Write my rows into the file NAME.db, with a header as for
+         *  readTable, and release me.  If NAME.db holds the rows my table
+         *  had when it was last read from or written to NAME.db, and no
+         *  row has since been deleted, only the rows added since are
+         *  appended to it (which leaves a valid table file, since
+         *  readTable does not depend on the order of rows), unless I am
+         *  to be written block-compressed or unless it has been appended to
+         *  MAX_APPENDS times since it was last rewritten.  Otherwise,
+         *  the rows go to a temporary file in the same directory, which
+         *  then replaces NAME.db atomically, so that NAME.db is never
+         *  seen partly written.  An append that fails is cut back off
+         *  NAME.db; one cut short by a crash leaves at most a partial
+         *  last line, which readTable ignores.  My rows are read in
+         *  batches while holding the lock on LOCK, which must be held
+         *  while modifying my table, so that it may be in use by another
+         *  thread meanwhile.  Any I/O errors cause a DBException. */
+        void write(String name, Object lock) {
+            File target = new File(name + ".db");
+            File temp = null;
+            boolean written = false;
+            int from;
+            synchronized (lock) {
+                from = _order != null ? -1
+                    : _table.storedRows(name, target, _layout);
+            }
+            try {
+                if (from >= 0) {
+                    long length = target.length();
+                    boolean appended = false;
+                    try {
+                        PrintStream output = new PrintStream
+                            (new BufferedOutputStream
+                             (new FileOutputStream(target, true), 1 << 16));
+                        try {
+                            writeRows(output, from, lock);
+                        } finally {
+                            output.close();
+                        }
+                        appended = !output.checkError();
+                    } finally {
+                        if (!appended) {
+                            truncate(target, length);
+                        }
+                    }
+                    if (!appended) {
+                        throw new IOException("write failed");
+                    }
+                } else {
+                    File dir = target.getAbsoluteFile().getParentFile();
+                    temp = File.createTempFile(target.getName(), ".tmp",
+                                               dir);
+                    PrintStream output = new PrintStream
+                        (new BufferedOutputStream(new FileOutputStream(temp),
+                                                  1 << 16));
+                    try {
+                        if (_compressed) {
+                            writeBlocks(output, lock);
+                        } else {
+                            writeHeader(output);
+                            writeRows(output, 0, lock);
+                        }
+                    } finally {
+                        output.close();
+                    }
+                    if (output.checkError()) {
+                        throw new IOException("write failed");
+                    }
+                    move(temp, target);
+                }
+                written = true;
+            } catch (IOException e) {
+                throw error("trouble writing to %s.db", name);
+            } finally {
+                if (temp != null) {
+                    temp.delete();
+                }
+                synchronized (lock) {
+                    if (_part != -1) {
+                        if (written
+                            && _table._partChanges[_part] == _partChanges) {
+                            _table._dirtyParts.clear(_part);
+                        }
+                    } else if (written && _order == null) {
+                        _table.stored(name, target, _size, _layout, from >= 0);
+                    } else {
+                        _table.stored(null, target, 0, _layout, false);
+                    }
+                    release();
+                }
+            }
+        }
+
+        /** Cut FILE back to its first LENGTH bytes, undoing a failed
+         *  append to it.  If that fails too, the partial row left at its
+         *  end is ignored when it is read. */
+        private static void truncate(File file, long length) {
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                output.setLength(length);
+            } catch (IOException excp) {
+                /* Left for readTable to skip */
+            }
+        }
+
+        /** Write my header to OUTPUT. */
+        private void writeHeader(PrintStream output) {
+            for (int b = 0; b < _titles.length; b++) {
+                output.print(b == 0 ? "" : ",");
+                output.print(_titles[b]);
+                if (_columns[b].type().numeric()) {
+                    output.print(":" + _columns[b].type().typeName());
+                }
             }
             output.println();
-            for (int i = 0; i < _size; i++) {
-                output.print(_columns[0].get(i));
-                for (int k = 1; k < _rowSize; k++) {
-                    output.print("," + _columns[k].get(i));
+        }
+
+        /** Write my rows starting at physical row FROM (or, if _order is
+         *  not null, my rows in _order starting at index FROM) to OUTPUT,
+         *  reading them while holding the lock on LOCK. */
+        private void writeRows(PrintStream output, int from, Object lock) {
+            String[][] batch = new String[BATCH][_columns.length];
+            int size = _order == null ? _size : _order.length;
+            for (int start = from; start < size; start += BATCH) {
+                int end = Math.min(size, start + BATCH), n;
+                n = 0;
+                synchronized (lock) {
+                    for (int i = start; i < end; i++) {
+                        int row = _order == null ? i : _order[i];
+                        if (_deleted.get(row)) {
+                            continue;
+                        }
+                        for (int k = 0; k < _columns.length; k++) {
+                            batch[n][k] = _columns[k].get(row);
+                        }
+                        n += 1;
+                    }
+                }
+                for (int r = 0; r < n; r += 1) {
+                    output.print(batch[r][0]);
+                    for (int k = 1; k < _columns.length; k++) {
+                        output.print(',');
+                        output.print(batch[r][k]);
+                    }
+                    output.println();
                 }
-                output.println();
             }
-        } catch (IOException e) {
-            throw error("trouble writing to %s.db", name);
-        } finally {
-            if (output != null) {
-                output.close();
+        }
+
+        /** Write my rows, in order, block-compressed to OUTPUT, reading
+         *  them while holding the lock on LOCK. */
+        private void writeBlocks(OutputStream output, Object lock)
+            throws IOException {
+            ColumnType[] types = new ColumnType[_columns.length];
+            for (int k = 0; k < types.length; k += 1) {
+                types[k] = _columns[k].type();
+            }
+            BlockFile.Writer writer =
+                new BlockFile.Writer(output, _titles, types, _sorted);
+            String[][] batch = new String[BATCH][_columns.length];
+            for (int start = 0; start < _order.length; start += BATCH) {
+                int end = Math.min(_order.length, start + BATCH);
+                synchronized (lock) {
+                    for (int i = start; i < end; i++) {
+                        for (int k = 0; k < _columns.length; k++) {
+                            batch[i - start][k] = _columns[k].get(_order[i]);
+                        }
+                    }
+                }
+                for (int i = start; i < end; i += 1) {
+                    writer.add(batch[i - start]);
+                }
+            }
+            writer.finish();
+        }
+
+        /** Rename SOURCE to TARGET, replacing TARGET, atomically if the
+         *  file system allows. */
+        static void move(File source, File target)
+            throws IOException {
+            try {
+                Files.move(source.toPath(), target.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException excp) {
+                Files.move(source.toPath(), target.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
             }
         }
+
+        /** Release me, so that my table may free storage I hold.  Has no
+         *  effect if I am already released. */
+        void release() {
+            if (!_released) {
+                _released = true;
+                _table.unpin();
+            }
+        }
+
+        /** The table I am a snapshot of. */
+        private final Table _table;
+        /** Column titles of _table. */
+        private final String[] _titles;
+        /** The columns of _table when I was taken. */
+        private final ColumnStorage[] _columns;
+        /** Number of physical rows of _table when I was taken. */
+        private final int _size;
+        /** The deleted rows of _table when I was taken. */
+        private final BitSet _deleted;
+        /** The value of _table._layout when I was taken. */
+        private final int _layout;
+        /** True iff my rows are distinct and in lexicographic order
+         *  (given that I am written in _order). */
+        private final boolean _sorted;
+        /** If I am to be written block-compressed, or am of a partition,
+         *  the physical indices of my live rows in order; otherwise
+         *  null. */
+        private final int[] _order;
+        /** True iff I am to be written block-compressed. */
+        private final boolean _compressed;
+        /** The partition of _table I am of, or -1 if I am of all of it. */
+        private final int _part;
+        /** If I am of a partition, the number of times it had changed
+         *  when I was taken. */
+        private final int _partChanges;
+        /** True iff I have been released. */
+        private boolean _released;
     }
 
     /** Print my contents on the standard output, separated by spaces
      *  and indented by two spaces. */
     void print() {
-        PrintStream output = new PrintStream(System.out);
-        for (int j = 0; j < _size; j++) {
-            output.print(" ");
-            for (int i = 0; i < _rowSize; i++) {
-                output.print(" " + _columns[i].get(_index.get(j)));
+        new ResultWriter.Text(System.out).write(this);
+    }
+
+    /** Call VISITOR with the physical index of each of my rows, in
+     *  order. */
+    void forEachRow(IntConsumer visitor) {
+        for (int j = 0; j < _index.size(); j++) {
+            int k = _index.get(j);
+            if (!deleted(k)) {
+                visitor.accept(k);
             }
-            output.println();
         }
     }
 
     /** Return a new Table whose columns are COLUMNNAMES, selected from
      *  rows of this table that satisfy CONDITIONS. */
     Table select(List<String> columnNames, List<Condition> conditions) {
-        Table result = new Table(columnNames);
-        ArrayList<Column> c = new ArrayList<Column>();
-        for (String s : columnNames) {
-            c.add(new Column(s, this));
-        }
-        if (conditions.isEmpty()) {
-            for (int i = 0; i < _size; i++) {
-                String[] rowVals = new String[columnNames.size()];
-                for (int k = 0; k < columnNames.size(); k++) {
-                    rowVals[k] = (c.get(k).getFrom(i));
-                }
-                result.add(rowVals);
-            }
-        } else {
-            for (int i = 0; i < _size; i++) {
-                String[] rowVals = new String[columnNames.size()];
-                if (Condition.test(conditions, i)) {
-                    for (int k = 0; k < columnNames.size(); k++) {
-                        rowVals[k] = (c.get(k).getFrom(i));
-                    }
-                    result.add(rowVals);
-                }
-            }
-        }
-        return result;
+        return select(null, columnNames, conditions,
+                      RowOrder.LEXICOGRAPHIC, -1);
     }
 
     /** Return a new Table whose columns are COLUMNNAMES, selected
@@ -262,41 +1252,316 @@ class Table {
      *  on all columns with identical names and satisfy CONDITIONS. */
     Table select(Table table2, List<String> columnNames,
                  List<Condition> conditions) {
-        Table result = new Table(columnNames);
+        return select(table2, columnNames, conditions,
+                      RowOrder.LEXICOGRAPHIC, -1);
+    }
+
+    /** Return a new Table whose columns are COLUMNNAMES, selected from
+     *  rows of this table that satisfy CONDITIONS or, if TABLE2 is not
+     *  null, from pairs of rows from this table and from TABLE2 that
+     *  match on all columns with identical names and satisfy CONDITIONS.
+     *  The result keeps its rows in order ORDER and, if LIMIT >= 0,
+     *  contains only the first LIMIT of them.  With a limit, rows are
+     *  collected in a bounded heap rather than sorted, and when ORDER's
+     *  keys are ascending leading columns of this table, the scan stops
+     *  as soon as no later row can be among the first LIMIT. */
+    Table select(Table table2, List<String> columnNames,
+                 List<Condition> conditions, RowOrder order, int limit) {
         ArrayList<Column> c = new ArrayList<Column>();
-        for (int i = 0; i < columnNames.size(); i++) {
-            c.add(new Column(columnNames.get(i), this, table2));
-        }
-        ArrayList<Column> common = new ArrayList<Column>();
-        ArrayList<Column> that = new ArrayList<Column>();
-        for (String title1 : this._titles) {
-            for (String title2 : table2._titles) {
-                if (title1.equals(title2)) {
-                    common.add(new Column(title1, this, table2));
-                    that.add(new Column(title1, table2, this));
+        ArrayList<ColumnType> types = new ArrayList<ColumnType>();
+        for (String name : columnNames) {
+            if (table2 == null) {
+                c.add(new Column(name, this));
+            } else {
+                c.add(new Column(name, this, table2));
+            }
+            types.add(c.get(c.size() - 1).getType());
+        }
+        boolean ordered = limit >= 0 && table2 == null
+            && leads(order, columnNames);
+        Operator plan = null;
+        if (table2 == null && !ordered && _partitioning == null
+            && indexRange(conditions, null) == null) {
+            plan = crackedPlan(conditions);
+            if (plan != null) {
+                plan = new Operator.Project(plan, c);
+            } else {
+                plan = QueryCompiler.plan(this, c, conditions);
+            }
+        }
+        if (plan == null) {
+            plan = new Operator.Project(plan(table2, conditions, ordered), c);
+        }
+        Table result = new Table(columnNames, types, _storage, order);
+        result.fill(plan, limit, ordered);
+        return result;
+    }
+
+    /** Return { LO, HI } such that positions LO through HI - 1 of my
+     *  _index hold exactly my rows that satisfy those of CONDITIONS that
+     *  compare my leading columns with literals, found by binary search,
+     *  or null if there are no such conditions or my rows are not in
+     *  lexicographic order.  The leading columns are my first column,
+     *  and, while CONDITIONS include an equality on each, the following
+     *  ones.  Unless USED is null, the conditions applied are added to
+     *  it. */
+    int[] indexRange(List<Condition> conditions, List<Condition> used) {
+        if (_order.keys() != 0) {
+            return null;
+        }
+        IntList index = liveIndex();
+        int lo = 0, hi = index.size();
+        boolean found = false;
+        for (int col = 0; col < _rowSize; col += 1) {
+            boolean equal = false;
+            for (Condition cond : conditions) {
+                if (!cond.cracks(this) || cond.column() != col) {
+                    continue;
                 }
+                found = true;
+                if (used != null) {
+                    used.add(cond);
+                }
+                switch (cond.relation()) {
+                case "<":
+                    hi = search(index, lo, hi, cond, false);
+                    break;
+                case "<=":
+                    hi = search(index, lo, hi, cond, true);
+                    break;
+                case ">":
+                    lo = search(index, lo, hi, cond, true);
+                    break;
+                case ">=":
+                    lo = search(index, lo, hi, cond, false);
+                    break;
+                default:
+                    lo = search(index, lo, hi, cond, false);
+                    hi = search(index, lo, hi, cond, true);
+                    equal = true;
+                    break;
+                }
+            }
+            if (!equal) {
+                break;
             }
         }
-        ArrayList<String> values = new ArrayList<String>();
-        for (int i = 0; i < this.size(); i++) {
-            for (int j = 0; j < table2.size(); j++) {
-                if (equijoin(common, that, i, j)
-                        && Condition.test(conditions, i, j)) {
-                    result.add(c, i, j);
+        return found ? new int[] { lo, hi } : null;
+    }
+
+    /** Return the first position P, LO <= P <= HI, in INDEX such that the
+     *  row at P has a value in the column of COND greater than (or, unless
+     *  INCLUSIVE, equal to) COND's literal, assuming that the rows from LO
+     *  to HI are in order of that column. */
+    private int search(IntList index, int lo, int hi, Condition cond,
+                       boolean inclusive) {
+        int[] one = new int[1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            one[0] = index.get(mid);
+            int c = cond.compareLiteral(one);
+            if (c < 0 || inclusive && c == 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Return a plan producing the rows of this table that satisfy
+     *  CONDITIONS, as for plan(null, CONDITIONS, false), by means of a
+     *  Cracker on a column that CONDITIONS compare with literals, or null
+     *  if there is no such column, or it has not yet been queried often
+     *  enough to crack.  Equalities are preferred to other comparisons.
+     *  Each call counts as a query of the column, and may crack it
+     *  further. */
+    private Operator crackedPlan(List<Condition> conditions) {
+        if (physicalSize() < Cracker.MIN_ROWS) {
+            return null;
+        }
+        int col = -1;
+        for (Condition cond : conditions) {
+            if (cond.cracks(this)
+                && (col == -1 || cond.relation().equals("="))) {
+                col = cond.column();
+            }
+        }
+        if (col == -1) {
+            return null;
+        }
+        if (_crackers == null) {
+            _crackers = new Cracker[_rowSize];
+            _filters = new int[_rowSize];
+        }
+        _filters[col] += 1;
+        if (_filters[col] < Cracker.QUERIES) {
+            return null;
+        }
+        if (_crackers[col] == null || _crackers[col].stale()) {
+            _crackers[col] = new Cracker(this, col);
+        }
+        ArrayList<Condition> on = new ArrayList<Condition>(),
+            rest = new ArrayList<Condition>();
+        for (Condition cond : conditions) {
+            if (cond.cracks(this) && cond.column() == col) {
+                on.add(cond);
+            } else {
+                rest.add(cond);
+            }
+        }
+        return new Operator.Filter(new Operator.Crack(this, _crackers[col],
+                                                      on),
+                                   rest);
+    }
+
+    /** Return a plan producing the physical index of each row of this
+     *  table that satisfies CONDITIONS, as a one-element tuple, or, if
+     *  TABLE2 is not null, the indices of each pair of rows from this
+     *  table and from TABLE2 that match on all columns with identical
+     *  names and satisfy CONDITIONS.  Conditions that concern only one of
+     *  the tables are applied to its rows before they are joined.  If
+     *  ORDERED (and TABLE2 is null), rows are produced in my order. */
+    Operator plan(Table table2, List<Condition> conditions,
+                  boolean ordered) {
+        if (table2 == null) {
+            ArrayList<Condition> used = new ArrayList<Condition>();
+            if (indexRange(conditions, used) == null) {
+                if (_partitioning != null && !ordered) {
+                    return new Operator.Partitions(this, conditions);
                 }
+                return new Operator.Filter(new Operator.Scan(this, conditions,
+                                                             ordered),
+                                           conditions);
             }
+            ArrayList<Condition> rest = new ArrayList<Condition>();
+            for (Condition cond : conditions) {
+                if (!used.contains(cond)) {
+                    rest.add(cond);
+                }
+            }
+            return new Operator.Filter(new Operator.Range(this, used), rest);
         }
-        return result;
+        ArrayList<Condition> mine = new ArrayList<Condition>(),
+            theirs = new ArrayList<Condition>(),
+            both = new ArrayList<Condition>();
+        for (Condition cond : conditions) {
+            if (cond.within(0)) {
+                mine.add(cond);
+            } else if (cond.within(1)) {
+                theirs.add(cond.bind(table2));
+            } else {
+                both.add(cond);
+            }
+        }
+        return new Operator.Filter(new Operator.Join(plan(null, mine, false),
+                                                     this,
+                                                     table2.plan(null, theirs,
+                                                                 false),
+                                                     table2),
+                                   both);
+    }
+
+    /** Return true iff the keys of ORDER, applied to rows with columns
+     *  named COLUMNNAMES taken from me, are all ascending and are my
+     *  leading columns, so that scanning me in _index order yields rows
+     *  in non-decreasing order of those keys. */
+    private boolean leads(RowOrder order, List<String> columnNames) {
+        if (_order.keys() > 0) {
+            return false;
+        }
+        for (int k = 0; k < order.keys(); k += 1) {
+            if (order.descending(k)
+                || findColumn(columnNames.get(order.key(k))) != k) {
+                return false;
+            }
+        }
+        return order.keys() > 0;
+    }
+
+    /** Call VISITOR with the physical index of each row of this table that
+     *  satisfies CONDITIONS, as a one-element array.  The array is reused
+     *  from one call to the next.  Blocks of rows whose zone maps show
+     *  that they cannot satisfy a condition comparing one of my columns
+     *  with a literal are skipped without examining their rows. */
+    void scan(List<Condition> conditions, Consumer<int[]> visitor) {
+        visit(plan(null, conditions, false), visitor);
+    }
+
+    /** Return false if my zone maps show that no row in block number
+     *  BLOCK can satisfy all of CONDITIONS, each of which must compare one
+     *  of my columns with a literal.  For a column not yet decoded from
+     *  my file, the least and greatest values of the file's block holding
+     *  BLOCK are checked first, so that the column is decoded only if
+     *  they do not rule BLOCK out. */
+    boolean mayMatch(int block, List<Condition> conditions) {
+        for (Condition cond : conditions) {
+            int col = cond.column();
+            BlockFile.Columns source = _source;
+            if (_columns[col] == null && source != null) {
+                int row = block * ZoneMap.BLOCK;
+                if (!cond.mayMatch(source.min(row, col),
+                                   source.max(row, col))) {
+                    return false;
+                }
+            }
+            column(col);
+            ZoneMap zones = _zones[cond.column()];
+            if (!cond.mayMatch(zones.minRow(block), zones.maxRow(block))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Call VISITOR with the physical indices of each pair of rows from
+     *  this table and from TABLE2 that match on all columns with identical
+     *  names and satisfy CONDITIONS, as a two-element array.  The array is
+     *  reused from one call to the next.  When the tables have columns in
+     *  common, this is a hash join (see Operator.Join). */
+    void scan(Table table2, List<Condition> conditions,
+              Consumer<int[]> visitor) {
+        visit(plan(table2, conditions, false), visitor);
+    }
+
+    /** Call VISITOR with each tuple of row indices produced by PLAN, as
+     *  an array reused from one call to the next. */
+    private static void visit(Operator plan, Consumer<int[]> visitor) {
+        int[] rows = new int[plan.width()];
+        plan.produce(batch -> {
+            for (int r = 0; r < batch.size(); r += 1) {
+                batch.get(r, rows);
+                visitor.accept(rows);
+            }
+            return true;
+        });
+    }
+
+    /** Return the values of COLUMNS from ROWS (as for
+     *  Column.getFrom). */
+    static String[] project(List<Column> columns, int... rows) {
+        String[] values = new String[columns.size()];
+        for (int k = 0; k < values.length; k += 1) {
+            values[k] = columns.get(k).getFrom(rows);
+        }
+        return values;
     }
 
     /** Return <0, 0, or >0 depending on whether the row formed from
      *  the elements _columns[0].get(K0), _columns[1].get(K0), ...
-     *  is less than, equal to, or greater than that formed from elememts
-     *  _columns[0].get(K1), _columns[1].get(K1), ....  This method ignores
-     *  the _index. */
+     *  comes before, is equal to, or comes after that formed from elememts
+     *  _columns[0].get(K1), _columns[1].get(K1), ... in my order (which
+     *  is lexicographic unless the table was created with another).  This
+     *  method ignores the _index. */
     private int compareRows(int k0, int k1) {
+        for (int k = 0; k < _order.keys(); k += 1) {
+            int c = column(_order.key(k)).compare(k0, k1);
+            if (c != 0) {
+                return _order.descending(k) ? -c : c;
+            }
+        }
         for (int i = 0; i < _columns.length; i += 1) {
-            int c = _columns[i].get(k0).compareTo(_columns[i].get(k1));
+            int c = column(i).compare(k0, k1);
             if (c != 0) {
                 return c;
             }
@@ -304,45 +1569,129 @@ class Table {
         return 0;
     }
 
-    /** Return true if the columns COMMON1 from ROW1 and COMMON2 from
-     *  ROW2 all have identical values.  Assumes that COMMON1 and
-     *  COMMON2 have the same number of elements and the same names,
-     *  that the columns in COMMON1 apply to this table, those in
-     *  COMMON2 to another, and that ROW1 and ROW2 are indices, respectively,
-     *  into those tables. */
-    private static boolean equijoin(List<Column> common1, List<Column> common2,
-                                    int row1, int row2) {
-        if (common1.size() == 0 || common2.size() == 0) {
-            return true;
-        }
-        for (Column c1 : common1) {
-            for (Column c2 : common2) {
-                if (c1.getName().equals(c2.getName())) {
-                    if (!c1.getFrom(row1).equals(c2.getFrom(row2))) {
-                        return false;
-                    }
-                }
+    /** Return true iff physical row K has the values VALUES.  Compares
+     *  in place, without fetching the row. */
+    private boolean rowEquals(int k, String[] values) {
+        for (int j = 0; j < _rowSize; j += 1) {
+            if (column(j).compareTo(k, values[j]) != 0) {
+                return false;
             }
         }
         return true;
     }
 
-    /** A class that is essentially ArrayList<String>.  For technical reasons,
-     *  we need to encapsulate ArrayList<String> like this because the
-     *  underlying design of Java does not properly distinguish between
-     *  different kinds of ArrayList at runtime (e.g., if you have a
-     *  variable of type Object that was created from an ArrayList, there is
-     *  no way to determine in general whether it is an ArrayList<String>,
-     *  ArrayList<Integer>, or ArrayList<Object>).  This leads to annoying
-     *  compiler warnings.  The trick of defining a new type avoids this
-     *  issue. */
-    private static class ValueList extends ArrayList<String> {
+    /** Return <0, 0, or >0 depending on whether the value of column COL
+     *  in lexicographic position ROW is less than, equal to, or greater
+     *  than VALUE.  Compares in place, without fetching the value. */
+    int compare(int row, int col, String value) {
+        try {
+            return compareValue(liveIndex().get(row), col, value);
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** Return <0, 0, or >0 depending on whether the value of column COL
+     *  of physical row K is less than, equal to, or greater than VALUE.
+     *  Compares in place, without fetching the value. */
+    int compareValue(int k, int col, String value) {
+        try {
+            return column(col).compareTo(k, value);
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** As for compareValue(K, COL, String), but comparing against the
+     *  number VALUE.  Column COL must be numeric. */
+    int compareValue(int k, int col, long value) {
+        try {
+            return ((NumericStorage) column(col)).compareTo(k, value);
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** As for compareValue(K, COL, String), but comparing against the
+     *  number VALUE.  Column COL must be numeric. */
+    int compareValue(int k, int col, double value) {
+        try {
+            return ((NumericStorage) column(col)).compareTo(k, value);
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** Copy the characters of column COL of physical row K into BUF, if
+     *  it has room for them, and return the length of the value in
+     *  either case.  Unless the column is numeric, this allocates
+     *  nothing. */
+    int chars(int k, int col, char[] buf) {
+        try {
+            return column(col).getChars(k, buf);
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** Return the value of numeric column COL of physical row K as a
+     *  long. */
+    long longValue(int k, int col) {
+        try {
+            return ((NumericStorage) column(col)).getLong(k);
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** Return the value of numeric column COL of physical row K as a
+     *  double. */
+    double doubleValue(int k, int col) {
+        try {
+            return ((NumericStorage) column(col)).getDouble(k);
+        } catch (IndexOutOfBoundsException excp) {
+            throw error("invalid row or column");
+        }
+    }
+
+    /** Free the storage held by my columns.  I may not be used
+     *  afterwards. */
+    void release() {
+        for (ColumnStorage column : _columns) {
+            if (column != null) {
+                retire(column);
+            }
+        }
+        if (_source != null) {
+            _source.close();
+            _source = null;
+        }
     }
 
     /** My column titles. */
     private final String[] _titles;
-    /** My columns. Row i consists of _columns[k].get(i) for all k. */
-    private final ValueList[] _columns;
+    /** The types of my columns. */
+    private final ColumnType[] _types;
+    /** My columns. Row i consists of _columns[k].get(i) for all k.  If I
+     *  was loaded lazily, a column is null until it is first used; use
+     *  column(k) rather than _columns[k] to ensure it has been read. */
+    private final ColumnStorage[] _columns;
+    /** The kind of storage holding my columns, which is also used for
+     *  the results of selecting from me. */
+    private final ColumnStorage.Kind _storage;
+    /** Bloom filter of the hashes of my rows, which lets add skip its
+     *  search for a duplicate of a row not already present. */
+    private BloomFilter _bloom = new BloomFilter(0);
+    /** If I was loaded lazily, the file from which my columns not yet
+     *  used are read; otherwise null. */
+    private BlockFile.Columns _source;
+    /** Number of my columns that are null. */
+    private int _unloaded;
+    /** Zone maps of my columns, kept current as rows are appended (null
+     *  while a column is). */
+    private final ZoneMap[] _zones;
+    /** The order of my rows in _index. */
+    private final RowOrder _order;
 
     /** Rows in the database are supposed to be sorted. To do so, we
      *  have a list whose kth element is the index in each column
@@ -356,8 +1705,62 @@ class Table {
      *  so that we would not need _index.  But that would mean that inserting
      *  a new row would require rearranging _rowSize lists (each list in
      *  _columns) rather than just one. */
-    private final ArrayList<Integer> _index = new ArrayList<>();
+    private IntList _index = new IntList();
+
+    /** Fraction of my physical rows that must be deleted before
+     *  needsCompaction is true. */
+    static final double COMPACTION_RATIO = 0.25;
+
+    /** Physical rows that have been deleted. */
+    private final BitSet _deleted = new BitSet();
+    /** Number of bits set in _deleted. */
+    private int _deletedCount;
+    /** Cracker indices on my columns (see Cracker), by column number, or
+     *  null if no column has yet been queried by comparison with a
+     *  literal.  Cleared when my rows are renumbered. */
+    private Cracker[] _crackers;
+    /** Number of selects that have compared each of my columns with a
+     *  literal, while I was large enough to crack. */
+    private int[] _filters;
+    /** How my rows are partitioned, or null if they are not. */
+    private Partitioning _partitioning;
+    /** If I am partitioned, the physical indices of the rows of each
+     *  partition, in physical order. */
+    private IntList[] _parts;
+    /** If I am partitioned, the partitions changed since they were last
+     *  stored or loaded. */
+    private BitSet _dirtyParts;
+    /** If I am partitioned, the number of times each partition has
+     *  changed (see partChange), which tells a store of a partition
+     *  whether it changed while being written. */
+    private int[] _partChanges;
+    /** True iff _index may contain deleted rows. */
+    private boolean _indexStale;
+
+    /** Incremented whenever rows are deleted or renumbered, so that a
+     *  file holding my earlier rows can no longer be appended to. */
+    private int _layout;
+    /** The name of the file (less .db) known to hold the same rows as my
+     *  first _storedRows physical rows as numbered in layout _storedLayout,
+     *  or null if none is. */
+    private String _storedName;
+    /** See _storedName. */
+    private int _storedRows, _storedLayout;
+    /** Length and modification time of _storedName when it was last
+     *  written or read. */
+    private long _storedLength, _storedModified;
+    /** Number of times _storedName has been appended to since it was
+     *  last rewritten or read. */
+    private int _appends;
+
+    /** Number of unreleased snapshots of me. */
+    private int _pins;
+    /** Columns replaced or released while there were snapshots of me,
+     *  to be released when there are none. */
+    private final ArrayList<ColumnStorage> _retired = new ArrayList<>();
 
+    /** Number of changes made to my contents. */
+    private long _version;
     /** My number of rows (redundant, but convenient). */
     private int _size;
     /** My number of columns (redundant, but convenient). */
@@ -1,7 +1,20 @@
 package db61b;
 import static org.junit.Assert.*;
 import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
 
 public class TableTests {
     Table t = new Table(new String[]{"Height", "Weight", "NetWorth"});
@@ -54,4 +67,778 @@ public class TableTests {
         assertEquals(1, t2.size());
         assertEquals("56", t2.get(0, 0));
     }
+
+    @Test
+    public void testOffHeap() {
+        Table o = new Table(new String[]{"Name", "City"},
+                            ColumnStorage.Kind.OFF_HEAP);
+        o.add(new String[]{"Zed", "Oakland"});
+        o.add(new String[]{"Amy", "Berkeley"});
+        assertEquals(false, o.add(new String[]{"Zed", "Oakland"}));
+        assertEquals(2, o.size());
+        assertEquals("Amy", o.get(0, 0));
+        assertEquals("Oakland", o.get(1, 1));
+        assertTrue(o.compare(0, 0, "Amz") < 0);
+        assertEquals(0, o.compare(1, 1, "Oakland"));
+        char[] buf = new char[4];
+        assertEquals(8, o.chars(1, 1, buf));
+        assertEquals(3, o.chars(1, 0, buf));
+        assertEquals("Amy", new String(buf, 0, 3));
+
+        Table p = new Table(new String[]{"City", "Zip"},
+                            ColumnStorage.Kind.OFF_HEAP);
+        String longCity = "Oakland".repeat(20);
+        p.add(new String[]{"Oakland", "94612"});
+        p.add(new String[]{longCity, "00000"});
+        o.add(new String[]{"Bob", longCity});
+        Table joined = o.select(p, Arrays.asList("Name", "Zip"),
+                                new ArrayList<Condition>());
+        assertEquals(2, joined.size());
+
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory
+                 .getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                direct = pool;
+            }
+        }
+        OffHeapStorage column = new OffHeapStorage();
+        for (int i = 0; i < 100000; i += 1) {
+            column.append("value " + i);
+        }
+        long used = direct.getMemoryUsed();
+        column.release();
+        assertTrue(direct.getMemoryUsed() < used - 1000000);
+    }
+
+    @Test
+    public void testPagedEviction() {
+        BufferPool pool = new BufferPool(0);
+        PagedStorage col = new PagedStorage(pool);
+        for (int i = 0; i < 5000; i += 1) {
+            col.append("value number " + i);
+        }
+        assertTrue(5000 * 30 > pool.frames() * BufferPool.PAGE_SIZE);
+        assertEquals("value number 0", col.get(0));
+        assertEquals("value number 4999", col.get(4999));
+        assertEquals("value number 17", col.get(17));
+        assertTrue(col.compare(17, 4999) < 0);
+        assertEquals(0, col.compareTo(2500, "value number 2500"));
+        char[] buf = new char[17];
+        assertEquals(17, col.getChars(4999, buf));
+        assertEquals("value number 4999", new String(buf));
+        col.release();
+    }
+
+    @Test
+    public void testExternalSort() {
+        ExternalSort sorter =
+            new ExternalSort(RowOrder.LEXICOGRAPHIC, 1000);
+        for (int i = 0; i < 500; i += 1) {
+            sorter.add(new String[] {"k" + (i * 7919) % 100, "v"});
+        }
+        assertTrue(sorter.runs() > 1);
+        Table s = new Table(new String[] {"Key", "Val"});
+        s.fill(sorter);
+        assertEquals(100, s.size());
+        assertEquals("k0", s.get(0, 0));
+        assertEquals("k99", s.get(99, 0));
+        assertEquals(false, s.add(new String[] {"k42", "v"}));
+    }
+
+    @Test
+    public void testAggregationSpill() {
+        Table r = new Table(new String[] {"Key", "Amount"});
+        for (int i = 0; i < 300; i += 1) {
+            r.add(new String[] {"g" + i % 50, Integer.toString(i)});
+        }
+        long budget = Utils.memoryBudget();
+        Utils.setMemoryBudget(1000);
+        try {
+            ArrayList<String> functions = new ArrayList<String>();
+            ArrayList<Column> args = new ArrayList<Column>();
+            ArrayList<Column> groupBy = new ArrayList<Column>();
+            ArrayList<String> titles = new ArrayList<String>();
+            functions.add(null);
+            args.add(new Column("Key", r));
+            titles.add("Key");
+            functions.add("count");
+            args.add(null);
+            titles.add("count");
+            functions.add("sum");
+            args.add(new Column("Amount", r));
+            titles.add("sum_Amount");
+            groupBy.add(new Column("Key", r));
+            Aggregation agg =
+                new Aggregation(functions, args, groupBy, titles);
+            r.scan(new ArrayList<Condition>(), agg::add);
+            Table result = agg.result();
+            assertEquals(50, result.size());
+            assertEquals("g0", result.get(0, 0));
+            assertEquals("6", result.get(0, 1));
+            assertEquals("750", result.get(0, 2));
+        } finally {
+            Utils.setMemoryBudget(budget);
+        }
+    }
+
+    @Test
+    public void testOrderLimit() {
+        Table r = new Table(new String[] {"Key", "Val"});
+        r.add(new String[] {"b", "0"});
+        r.add(new String[] {"a", "3"});
+        r.add(new String[] {"c", "9"});
+        r.add(new String[] {"a", "1"});
+        ArrayList<String> names = new ArrayList<String>();
+        names.add("Val");
+        names.add("Key");
+        RowOrder byKey = new RowOrder(new int[] {1}, new boolean[] {false});
+        Table first = r.select(null, names, new ArrayList<Condition>(),
+                               byKey, 2);
+        assertEquals(2, first.size());
+        assertEquals("1", first.get(0, 0));
+        assertEquals("3", first.get(1, 0));
+        RowOrder byVal = new RowOrder(new int[] {0}, new boolean[] {true});
+        Table last = r.select(null, names, new ArrayList<Condition>(),
+                              byVal, 3);
+        assertEquals("9", last.get(0, 0));
+        assertEquals("3", last.get(1, 0));
+        assertEquals("1", last.get(2, 0));
+        last.add(new String[] {"5", "z"});
+        assertEquals("5", last.get(1, 0));
+    }
+
+    @Test
+    public void testTypedColumns() {
+        Table n = new Table(new String[] {"Name", "Age"},
+                            new ColumnType[] {ColumnType.STRING,
+                                              ColumnType.INT},
+                            ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        n.add(new String[] {"x", "10"});
+        n.add(new String[] {"x", "9"});
+        assertEquals(false, n.add(new String[] {"x", "009"}));
+        assertEquals("9", n.get(0, 1));
+        Condition small = new Condition(new Column("Age", n), "<", "10");
+        assertTrue(small.test(1));
+        assertFalse(small.test(0));
+        n.writeTable("typed");
+        Table back = Table.readTable("typed");
+        assertEquals(ColumnType.INT, back.getType(1));
+        assertEquals(2, back.size());
+        assertEquals("10", back.get(1, 1));
+        new java.io.File("typed.db").delete();
+    }
+
+    @Test
+    public void testDoubleColumns() {
+        Table d = new Table(new String[] {"D"},
+                            new ColumnType[] {ColumnType.DOUBLE},
+                            ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        d.add(new String[] {"NaN"});
+        d.add(new String[] {"10000000"});
+        d.add(new String[] {"-0.0"});
+        assertEquals(false, d.add(new String[] {"0"}));
+        assertEquals("10000000.0", d.get(1, 0));
+        assertEquals("1.0E21", ColumnType.formatDouble(1e21));
+        assertEquals("0.0001", ColumnType.formatDouble(1e-4));
+        Column col = new Column("D", d);
+        assertEquals(1, d.select(Arrays.asList("D"),
+                                 Arrays.asList(new Condition(col, "=", "0")))
+                     .size());
+        assertEquals(2, d.select(Arrays.asList("D"),
+                                 Arrays.asList(new Condition(col, ">", "1")))
+                     .size());
+    }
+
+    @Test
+    public void testZoneMaps() {
+        Table z = new Table(new String[] {"Time"},
+                            new ColumnType[] {ColumnType.INT},
+                            ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < 5 * ZoneMap.BLOCK; i += 1) {
+            z.add(new String[] {Integer.toString(i)});
+        }
+        ArrayList<Condition> conds = new ArrayList<Condition>();
+        conds.add(new Condition(new Column("Time", z), ">=", "2100"));
+        conds.add(new Condition(new Column("Time", z), "<", "2200"));
+        assertFalse(z.mayMatch(0, conds));
+        assertTrue(z.mayMatch(2, conds));
+        assertFalse(z.mayMatch(3, conds));
+        ArrayList<String> names = new ArrayList<String>();
+        names.add("Time");
+        assertEquals(100, z.select(names, conds).size());
+    }
+
+    @Test
+    public void testBloomFilter() {
+        BloomFilter bloom = new BloomFilter(1000);
+        for (long i = 0; i < 1000; i += 1) {
+            bloom.add(BloomFilter.mix(i));
+        }
+        int falsePositives = 0;
+        for (long i = 0; i < 1000; i += 1) {
+            assertTrue(bloom.mightContain(BloomFilter.mix(i)));
+            if (bloom.mightContain(BloomFilter.mix(i + 1000))) {
+                falsePositives += 1;
+            }
+        }
+        assertTrue(falsePositives < 50);
+    }
+
+    @Test
+    public void testHashJoin() {
+        Table a = new Table(new String[] {"Id", "Name"});
+        Table b = new Table(new String[] {"Id", "Score"});
+        for (int i = 0; i < 300; i += 1) {
+            a.add(new String[] {"id" + i, "n" + i});
+            assertEquals(false, a.add(new String[] {"id" + i, "n" + i}));
+        }
+        b.add(new String[] {"id7", "1"});
+        b.add(new String[] {"id7", "2"});
+        b.add(new String[] {"nobody", "3"});
+        ArrayList<String> names = new ArrayList<String>();
+        names.add("Name");
+        names.add("Score");
+        Table joined = a.select(b, names, new ArrayList<Condition>());
+        assertEquals(2, joined.size());
+        assertEquals("n7", joined.get(0, 0));
+        assertEquals("2", joined.get(1, 1));
+        assertEquals(300, a.size());
+
+        Table ints = new Table(new String[] {"K", "I"},
+                               new ColumnType[] {ColumnType.INT,
+                                                 ColumnType.STRING},
+                               ColumnStorage.Kind.HEAP,
+                               RowOrder.LEXICOGRAPHIC);
+        Table doubles = new Table(new String[] {"K", "D"},
+                                  new ColumnType[] {ColumnType.DOUBLE,
+                                                    ColumnType.STRING},
+                                  ColumnStorage.Kind.HEAP,
+                                  RowOrder.LEXICOGRAPHIC);
+        ints.add(new String[] {"5", "five"});
+        ints.add(new String[] {"0", "zero"});
+        doubles.add(new String[] {"5", "5.0"});
+        doubles.add(new String[] {"-0.0", "-0.0"});
+        joined = ints.select(doubles, Arrays.asList("I", "D"),
+                             new ArrayList<Condition>());
+        assertEquals(2, joined.size());
+        Table zeros = new Table(new String[] {"K"},
+                                new ColumnType[] {ColumnType.DOUBLE},
+                                ColumnStorage.Kind.HEAP,
+                                RowOrder.LEXICOGRAPHIC);
+        zeros.add(new String[] {"0.0"});
+        assertEquals(1, doubles.select(zeros, Arrays.asList("D"),
+                                       new ArrayList<Condition>()).size());
+    }
+
+    @Test
+    public void testQueryCache() {
+        Database db = new Database();
+        Table source = new Table(new String[] {"A"});
+        source.add(new String[] {"x"});
+        db.put("t", source);
+        HashMap<String, Table> sources = new HashMap<String, Table>();
+        sources.put("t", source);
+        QueryCache cache = new QueryCache(QueryCache.DEFAULT_BUDGET);
+        Table result = new Table(new String[] {"A"});
+        cache.put("select A from t ;", result, sources, db);
+        assertEquals(result, cache.get("select A from t ;", db));
+        source.add(new String[] {"y"});
+        assertEquals(null, cache.get("select A from t ;", db));
+        cache.put("select A from t ;", result, sources, db);
+        db.put("t", new Table(new String[] {"A"}));
+        assertEquals(null, cache.get("select A from t ;", db));
+        sources.put("t", db.get("t"));
+        cache.setBudget(0);
+        cache.put("select A from t ;", result, sources, db);
+        assertEquals(null, cache.get("select A from t ;", db));
+    }
+
+    @Test
+    public void testDeleteUpdate() {
+        Table table = new Table(new String[] {"Id", "Group"});
+        for (int i = 0; i < 10; i += 1) {
+            table.add(new String[] {"id" + i, i % 2 == 0 ? "even" : "odd"});
+        }
+        Column group = new Column("Group", table);
+        ArrayList<Condition> odd = new ArrayList<Condition>();
+        odd.add(new Condition(group, "=", "odd"));
+        assertEquals(5, table.delete(odd));
+        assertEquals(5, table.size());
+        assertEquals(10, table.physicalSize());
+        assertEquals("id2", table.get(1, 0));
+        assertEquals(0, table.select(Arrays.asList("Id"), odd).size());
+        assertEquals(true, table.needsCompaction());
+        ArrayList<Condition> even = new ArrayList<Condition>();
+        even.add(new Condition(group, "=", "even"));
+        assertEquals(5, table.update(new int[] {1}, new String[] {"odd"},
+                                     even));
+        table.compact();
+        assertEquals(5, table.size());
+        assertEquals(5, table.physicalSize());
+        assertEquals("odd", table.get(4, 1));
+        assertEquals(false, table.add(new String[] {"id8", "odd"}));
+        assertEquals(true, table.add(new String[] {"id8", "even"}));
+    }
+
+    @Test
+    public void testResultWriters() {
+        Table table = new Table(new String[] {"A", "B"});
+        table.add(new String[] {"x,y", "say \"hi\""});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultWriter.named("csv", out).write(table);
+        String nl = System.lineSeparator();
+        assertEquals("A,B" + nl + "\"x,y\",\"say \"\"hi\"\"\"" + nl,
+                     out.toString());
+        out.reset();
+        ResultWriter.named("binary", out).write(table);
+        byte[] bytes = out.toByteArray();
+        assertEquals(2, bytes[0]);
+        assertEquals(1, bytes[5]);
+        assertEquals(3, bytes[6]);
+        assertEquals(0, bytes[bytes.length - 1]);
+    }
+
+    @Test
+    public void testSnapshot() {
+        Table table = new Table(new String[] {"A"},
+                                ColumnStorage.Kind.OFF_HEAP);
+        table.add(new String[] {"x"});
+        table.add(new String[] {"y"});
+        Table.Snapshot snapshot = table.snapshot(false);
+        ArrayList<Condition> all = new ArrayList<Condition>();
+        table.delete(all);
+        table.add(new String[] {"z"});
+        table.compact();
+        snapshot.write("snapshot", table);
+        Table copy = Table.readTable("snapshot");
+        new File("snapshot.db").delete();
+        assertEquals(2, copy.size());
+        assertEquals("y", copy.get(1, 0));
+        assertEquals(1, table.size());
+        assertEquals("z", table.get(0, 0));
+    }
+
+    @Test
+    public void testIncrementalStore() throws IOException {
+        Path file = Paths.get("growing.db");
+        Files.write(file, Arrays.asList("A", "b", "a"));
+        Table table = Table.readTable("growing");
+        table.add(new String[] {"c"});
+        table.writeTable("growing");
+        assertEquals(Arrays.asList("A", "b", "a", "c"),
+                     Files.readAllLines(file));
+        ArrayList<Condition> isA = new ArrayList<Condition>();
+        isA.add(new Condition(new Column("A", table), "=", "a"));
+        table.delete(isA);
+        table.writeTable("growing");
+        assertEquals(Arrays.asList("A", "b", "c"), Files.readAllLines(file));
+        table.add(new String[] {"d"});
+        table.writeTable("growing");
+        assertEquals(Arrays.asList("A", "b", "c", "d"),
+                     Files.readAllLines(file));
+        Files.write(file, "e,torn".getBytes(), StandardOpenOption.APPEND);
+        table = Table.readTable("growing");
+        assertEquals(3, table.size());
+        table.add(new String[] {"f"});
+        table.writeTable("growing");
+        assertEquals(Arrays.asList("A", "b", "c", "d", "f"),
+                     Files.readAllLines(file));
+        Files.delete(file);
+    }
+
+    @Test
+    public void testBlockFile() {
+        Table table = new Table(new String[] {"Dept", "Grade", "Id"},
+                                new ColumnType[] {ColumnType.STRING,
+                                                  ColumnType.STRING,
+                                                  ColumnType.INT},
+                                ColumnStorage.Kind.HEAP,
+                                RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < 10000; i += 1) {
+            table.add(new String[] {"d" + (i / 1000), "g" + (i % 7),
+                                    Integer.toString(i * 7919 % 10007)});
+        }
+        table.snapshot(true).write("blocks", table);
+        Table copy = Table.readTable("blocks");
+        assertEquals(true, new File("blocks.db").length() < 10000 * 10);
+        new File("blocks.db").delete();
+        assertEquals(table.size(), copy.size());
+        assertEquals(ColumnType.INT, copy.getType(2));
+        for (int i = 0; i < table.size(); i += 97) {
+            for (int j = 0; j < 3; j += 1) {
+                assertEquals(table.get(i, j), copy.get(i, j));
+            }
+        }
+
+        Table wide = new Table(new String[] {"Text"});
+        String text = "\u00e9".repeat(40000);
+        wide.add(new String[] {text});
+        wide.add(new String[] {"short"});
+        wide.snapshot(true).write("blocks", wide);
+        Table wideCopy = Table.readTable("blocks");
+        new File("blocks.db").delete();
+        assertEquals(text, wideCopy.get(1, 0));
+    }
+
+    @Test
+    public void testLazyColumns() {
+        Table table = new Table(new String[] {"Key", "Payload"});
+        for (int i = 0; i < 5000; i += 1) {
+            table.add(new String[] {"k" + (i % 100), "p" + i});
+        }
+        table.snapshot(true).write("lazy", table);
+        Table copy = Table.readTable("lazy");
+        new File("lazy.db").delete();
+        assertEquals(5000, copy.size());
+        Column key = new Column("Key", copy);
+        assertFalse(copy.mayMatch(0, Arrays.asList(new Condition(key, ">",
+                                                                 "z"))));
+        assertFalse(copy.mayMatch(4, Arrays.asList(new Condition(key, "=",
+                                                                 "k0"))));
+        assertTrue(copy.mayMatch(0, Arrays.asList(new Condition(key, "=",
+                                                                "k0"))));
+        ArrayList<Condition> conds = new ArrayList<Condition>();
+        conds.add(new Condition(new Column("Key", copy), "=", "k7"));
+        assertEquals(1, copy.select(Arrays.asList("Key"), conds).size());
+        assertEquals(50, copy.select(Arrays.asList("Key", "Payload"),
+                                     conds).size());
+        assertEquals(table.get(4321, 1), copy.get(4321, 1));
+        assertEquals(false, copy.add(new String[] {"k7", "p7"}));
+        assertEquals(true, copy.add(new String[] {"k7", "q"}));
+    }
+
+    @Test
+    public void testHashJoinCollisions() {
+        Table a = new Table(new String[] {"K", "A"});
+        Table b = new Table(new String[] {"K", "B"});
+        for (int i = 0; i < 300; i += 1) {
+            a.add(new String[] {"k" + i, "a" + i});
+            b.add(new String[] {"k" + (i % 100), "b" + i});
+        }
+        a.add(new String[] {"Aa", "x"});
+        b.add(new String[] {"BB", "y"});
+        Table joined = a.select(b, Arrays.asList("K", "A", "B"),
+                                new ArrayList<Condition>());
+        assertEquals(300, joined.size());
+        IntList list = new IntList(1);
+        for (int i = 0; i < 10; i += 1) {
+            list.add(0, i);
+        }
+        list.removeIf(k -> k % 2 == 0);
+        assertEquals(5, list.size());
+        assertEquals(9, list.get(0));
+        assertEquals(1, list.get(4));
+    }
+
+    @Test
+    public void testOperators() {
+        Table a = new Table(new String[] {"K", "A"});
+        Table b = new Table(new String[] {"K", "B"});
+        for (int i = 0; i < 3000; i += 1) {
+            a.add(new String[] {"k" + i % 1500, "a" + i});
+            b.add(new String[] {"k" + i % 700, "b" + i % 2});
+        }
+        ArrayList<Condition> conds = new ArrayList<Condition>();
+        conds.add(new Condition(new Column("B", a, b), "=", "b1"));
+        Operator plan = new Operator.Project(a.plan(b, conds, false),
+                                             Arrays.asList(new Column("A",
+                                                                      a, b)));
+        Table result = new Table(new String[] {"A"});
+        result.fill(plan, 5, false);
+        assertEquals(5, result.size());
+        assertEquals("a1", result.get(0, 0));
+        assertEquals("a101", result.get(1, 0));
+        int[] batches = new int[1];
+        new Operator.Scan(a, conds, false).produce(batch -> {
+            batches[0] += 1;
+            return false;
+        });
+        assertEquals(1, batches[0]);
+    }
+
+    @Test
+    public void testCompiledQuery() {
+        Table table =
+            new Table(new String[] {"Name", "N", "D"},
+                      new ColumnType[] {ColumnType.STRING, ColumnType.INT,
+                                        ColumnType.DOUBLE},
+                      ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < Cracker.MIN_ROWS - 1; i += 1) {
+            table.add(new String[] {"n" + i % 10, Integer.toString(i),
+                                    Double.toString(i / 4.0)});
+        }
+        ArrayList<Condition> conds = new ArrayList<Condition>();
+        conds.add(new Condition(new Column("Name", table), "!=", "n\"3\\"));
+        conds.add(new Condition(new Column("N", table), "<", "2000"));
+        conds.add(new Condition(new Column("D", table), ">=", "100.5"));
+        conds.add(new Condition(new Column("N", table), ">",
+                                new Column("D", table)));
+        List<String> names = Arrays.asList("N", "Name");
+        Table expected = table.select(names, conds);
+        for (int i = 2; i < QueryCompiler.REPEATS; i += 1) {
+            table.select(names, conds);
+        }
+        assertNotNull(QueryCompiler.plan(table,
+                                         Arrays.asList(new Column("N", table),
+                                                       new Column("Name",
+                                                                  table)),
+                                         conds));
+        Table compiled = table.select(names, conds);
+        assertEquals(1598, expected.size());
+        assertEquals(expected.size(), compiled.size());
+        for (int i = 0; i < expected.size(); i += 1) {
+            assertEquals(expected.get(i, 0), compiled.get(i, 0));
+            assertEquals(expected.get(i, 1), compiled.get(i, 1));
+        }
+    }
+
+    @Test
+    public void testCracking() {
+        Table table =
+            new Table(new String[] {"S", "N"},
+                      new ColumnType[] {ColumnType.STRING, ColumnType.INT},
+                      ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < 2 * Cracker.MIN_ROWS; i += 1) {
+            table.add(new String[] {"s" + i % 3,
+                                    Integer.toString(i * 7919 % 10007)});
+        }
+        Column n = new Column("N", table), str = new Column("S", table);
+        String[][] queries = {
+            {">=", "5000", "<", "6000"}, {"=", "5003", "<=", "9000"},
+            {">", "100", "<=", "4000.5"}, {"<", "5000", ">", "4990"},
+            {">=", "5000", "<", "6000"}, {"=", "17", ">=", "17"},
+        };
+        for (int round = 0; round < 2; round += 1) {
+            for (String[] q : queries) {
+                ArrayList<Condition> conds = new ArrayList<Condition>();
+                conds.add(new Condition(n, q[0], q[1]));
+                conds.add(new Condition(n, q[2], q[3]));
+                conds.add(new Condition(str, "!=", "s1"));
+                int expected = 0;
+                for (int k = 0; k < table.physicalSize(); k += 1) {
+                    if (!table.deleted(k) && Condition.test(conds, k)) {
+                        expected += 1;
+                    }
+                }
+                assertEquals(expected,
+                             table.select(Arrays.asList("N", "S"),
+                                          conds).size());
+            }
+            table.add(new String[] {"s0", "5500"});
+            table.delete(Arrays.asList(new Condition(n, "=", "17")));
+        }
+    }
+
+    @Test
+    public void testRangeScan() {
+        Table table =
+            new Table(new String[] {"G", "N", "S"},
+                      new ColumnType[] {ColumnType.STRING, ColumnType.LONG,
+                                        ColumnType.STRING},
+                      ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < 3000; i += 1) {
+            table.add(new String[] {"g" + i % 7, Integer.toString(i % 500),
+                                    "s" + i});
+        }
+        Column g = new Column("G", table), n = new Column("N", table),
+            str = new Column("S", table);
+        table.delete(Arrays.asList(new Condition(str, "=", "s10")));
+        String[][] queries = {
+            {"G", "=", "g3"}, {"G", ">", "g2", "G", "<=", "g4"},
+            {"G", "=", "g3", "N", ">=", "100", "N", "<", "250"},
+            {"G", "=", "g3", "N", "=", "10"}, {"G", "<", "g0"},
+            {"N", "=", "10"}, {"G", "=", "g3", "S", ">", "s2"},
+        };
+        for (String[] q : queries) {
+            ArrayList<Condition> conds = new ArrayList<Condition>();
+            for (int i = 0; i < q.length; i += 3) {
+                Column col = q[i].equals("G") ? g : q[i].equals("N") ? n : str;
+                conds.add(new Condition(col, q[i + 1], q[i + 2]));
+            }
+            int expected = 0;
+            for (int k = 0; k < table.physicalSize(); k += 1) {
+                if (!table.deleted(k) && Condition.test(conds, k)) {
+                    expected += 1;
+                }
+            }
+            assertEquals(expected,
+                         table.select(Arrays.asList("G", "N", "S"),
+                                      conds).size());
+            assertEquals(Math.min(expected, 3),
+                         table.select(null, Arrays.asList("G", "N", "S"),
+                                      conds, new RowOrder(new int[] {0},
+                                                          new boolean[1]),
+                                      3).size());
+        }
+        int[] range = table.indexRange(Arrays.asList(new Condition(g, "=",
+                                                                   "g3")),
+                                       null);
+        assertEquals(428, range[1] - range[0]);
+    }
+
+    @Test
+    public void testPartitions() {
+        Table table =
+            new Table(new String[] {"G", "N"},
+                      new ColumnType[] {ColumnType.STRING, ColumnType.LONG},
+                      ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < 1000; i += 1) {
+            table.add(new String[] {"g" + i % 7, Integer.toString(i)});
+        }
+        table.partition(Partitioning.range(1, "N", ColumnType.LONG,
+                                           new String[] {"100", "500"}));
+        Column g = new Column("G", table), n = new Column("N", table);
+        table.add(new String[] {"g1", "2000"});
+        table.delete(Arrays.asList(new Condition(n, "=", "7")));
+        assertEquals(501, table.part(2).size());
+        List<Condition> low = Arrays.asList(new Condition(n, "<", "50"));
+        assertEquals(1, table.partitioning().candidates(table, low)
+                     .cardinality());
+        assertEquals(49, table.select(Arrays.asList("N"), low).size());
+        List<Condition> some =
+            Arrays.asList(new Condition(g, "=", "g1"),
+                          new Condition(n, ">=", "100"));
+        assertEquals(2, table.partitioning().candidates(table, some)
+                     .cardinality());
+        assertEquals(129, table.select(Arrays.asList("N"), some).size());
+
+        Partitioning hash = Partitioning.hash(1, "N", ColumnType.LONG, 4);
+        table.partition(hash);
+        List<Condition> one = Arrays.asList(new Condition(n, "=", "42"));
+        assertEquals(1, hash.candidates(table, one).cardinality());
+        assertEquals(1, table.select(Arrays.asList("G"), one).size());
+        hash.writeManifest("parts");
+        int late = hash.partition("-1");
+        for (int p = 0; p < hash.count(); p += 1) {
+            Table.Snapshot snapshot = table.partitionSnapshot(p, false);
+            if (p == late) {
+                table.add(new String[] {"g0", "-1"});
+            }
+            snapshot.write("parts." + p, table);
+            assertEquals(p == late, table.partChanged(p));
+        }
+        Table copy = Table.readTable("parts");
+        for (int p = 0; p < hash.count(); p += 1) {
+            new File("parts." + p + ".db").delete();
+        }
+        new File("parts.db").delete();
+        assertEquals(table.size() - 1, copy.size());
+        assertEquals(false, copy.partChanged(0));
+        int other = (late + 1) % hash.count();
+        assertEquals(table.part(other).size(), copy.part(other).size());
+
+        Table part = new Table(new String[] {"G", "N"},
+                               new ColumnType[] {ColumnType.STRING,
+                                                 ColumnType.LONG},
+                               ColumnStorage.Kind.HEAP,
+                               RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < table.size(); i += 1) {
+            if (hash.partition(table.get(i, 1)) == other) {
+                part.add(new String[] {table.get(i, 0), table.get(i, 1)});
+            }
+        }
+        try {
+            copy.replacePartition(late, part);
+            fail("accepted rows of another partition");
+        } catch (DBException excp) {
+            assertEquals(table.size() - 1, copy.size());
+        }
+        part = new Table(new String[] {"G", "N"},
+                         new ColumnType[] {ColumnType.STRING,
+                                           ColumnType.LONG},
+                         ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        for (int i = 0; i < table.size(); i += 1) {
+            if (hash.partition(table.get(i, 1)) == late) {
+                part.add(new String[] {table.get(i, 0), table.get(i, 1)});
+            }
+        }
+        copy.replacePartition(late, part);
+        assertEquals(table.size(), copy.size());
+        for (int i = 0; i < table.size(); i += 1) {
+            assertEquals(table.get(i, 0), copy.get(i, 0));
+            assertEquals(table.get(i, 1), copy.get(i, 1));
+        }
+        assertEquals(false, copy.partChanged(late));
+    }
+
+    @Test
+    public void testShards() {
+        Table table =
+            new Table(new String[] {"K", "V"},
+                      new ColumnType[] {ColumnType.LONG, ColumnType.STRING},
+                      ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        int[] held = new int[3];
+        for (int w = 0; w < held.length; w += 1) {
+            Predicate<String[]> mine =
+                new Cluster.Shard("K", w, held.length).filter(table);
+            for (int i = 0; i < 300; i += 1) {
+                if (mine.test(new String[] {Integer.toString(i), "v"})) {
+                    held[w] += 1;
+                }
+            }
+            assertEquals(true, held[w] > 50);
+        }
+        assertEquals(300, held[0] + held[1] + held[2]);
+        Condition cond = new Condition(new Column("V", table), "<=", "x");
+        assertEquals("V <= 'x'", cond.text());
+    }
+
+    @Test
+    public void testRouter() {
+        ArrayList<String> sent = new ArrayList<String>();
+        Cluster.Router router =
+            new Cluster.Router("t", 2, (text, w) -> sent.add(w + text));
+        Partitioning by = Partitioning.hash(0, "K", ColumnType.LONG, 2);
+        int[] expected = new int[2];
+        router.hold(0);
+        for (int i = 0; i < 3000; i += 1) {
+            String[] row = {Integer.toString(i), "v"};
+            expected[by.partition(row[0])] += 1;
+            router.route(row, by);
+        }
+        assertEquals(expected[1] / Cluster.BATCH, sent.size());
+        for (String text : sent) {
+            assertTrue(text.startsWith("1insert into t values ('"));
+        }
+        int before = sent.size();
+        router.hold(1);
+        assertEquals(before + (expected[0] + Cluster.BATCH - 1)
+                     / Cluster.BATCH, sent.size());
+        for (String text : sent.subList(before, sent.size())) {
+            assertTrue(text.startsWith("0"));
+        }
+        router.flush();
+        router.route(new String[] {"-1", "all"}, null);
+        router.flush();
+        int[] rows = new int[2];
+        for (String text : sent) {
+            rows[text.charAt(0) - '0'] += text.split("\\(").length - 1;
+        }
+        assertEquals(expected[0] + 1, rows[0]);
+        assertEquals(expected[1] + 1, rows[1]);
+    }
+
+    @Test
+    public void testCombinePartialAggregates() {
+        Table partial =
+            new Table(new String[] {Aggregation.title("count", null),
+                                    Aggregation.title("max", "V"),
+                                    "_worker"},
+                      new ColumnType[] {ColumnType.LONG, ColumnType.LONG,
+                                        ColumnType.STRING},
+                      ColumnStorage.Kind.HEAP, RowOrder.LEXICOGRAPHIC);
+        assertNull(Cluster.partialRow(new String[] {"0", ""}, 0, 0));
+        partial.add(Cluster.partialRow(new String[] {"2", "9"}, 1, 0));
+        partial.add(Cluster.partialRow(new String[] {"3", "10"}, 2, 0));
+        Table result =
+            Cluster.combine(partial, Arrays.asList("N", "M"),
+                            Arrays.asList("count", "max"),
+                            Arrays.asList(null, "V"),
+                            new ArrayList<Column>(), RowOrder.LEXICOGRAPHIC,
+                            -1);
+        assertEquals(1, result.size());
+        assertEquals("5", result.get(0, 0));
+        assertEquals("10", result.get(0, 1));
+    }
 }
@@ -13,26 +13,29 @@ import static db61b.Utils.*;
 class Tokenizer {
 
     /** Text of regular expressions that represent literals (possibly
-     *  unterminated), identifiers, and comments (possibly
+     *  unterminated), identifiers, numbers, and comments (possibly
      *  unterminated). */
     private static final String
         LITERAL_TEXT = "'(?:[^,'\n\r]*)'?",
         IDENTIFIER_TEXT = "[\\p{Alpha}_]\\w*",
+        NUMBER_TEXT = "\\d+",
         COMMENT_TEXT = "(?:/\\*.*?\\*/|/\\*.*)";
     /** Matches potential tokens, including valid or unterminated
-     *  literals, valid or unterminated comments, identifiers,
+     *  literals, valid or unterminated comments, identifiers, numbers,
      *  relation symbols (=, <, <=, >=, and !=), end-of-line
      *  sequences, or other single characters.  The pattern matches a
      *  prefix of any string. */
     private static final Pattern
-        TOKEN_PATN = mkPatn("(?s)[<>!]?=|%s|%s|%s|\r?\n|\\S",
-                            LITERAL_TEXT, IDENTIFIER_TEXT, COMMENT_TEXT);
+        TOKEN_PATN = mkPatn("(?s)[<>!]?=|%s|%s|%s|%s|\r?\n|\\S",
+                            LITERAL_TEXT, IDENTIFIER_TEXT, NUMBER_TEXT,
+                            COMMENT_TEXT);
 
     /** Patterns matching specific kinds of token.  These are intended
      *  to be used with methods such as CommandInterpreter.name. */
     static final Pattern
         IDENTIFIER = mkPatn(IDENTIFIER_TEXT),
         LITERAL = mkPatn("'.*"),
+        NUMBER = mkPatn(NUMBER_TEXT),
         RELATION = mkPatn("[<>!]?=|[<>]");
 
     /** A Tokenizer that reads tokens from S, and prompts on PROMPTER,
@@ -175,6 +178,28 @@ class Tokenizer {
         return _buffer.get(_k);
     }
 
+    /** Return the text of the tokens from the current position up to and
+     *  including the next semicolon (or the end of input), separated by
+     *  single blanks, without changing the position of THIS.  This is the
+     *  normalized form of the statement starting at the current position:
+     *  comments, line breaks, and extra whitespace are gone. */
+    String statementText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = _k; true; i += 1) {
+            while (i >= _buffer.size()) {
+                readToken();
+            }
+            String token = _buffer.get(i);
+            if (i > _k) {
+                text.append(' ');
+            }
+            text.append(token);
+            if (token.equals(";") || token.equals("*EOF*")) {
+                return text.toString();
+            }
+        }
+    }
+
     /** Return THIS to its position just after the last flush or flushToSemi
      *  operation(or its initial position if there have been no flush...
      *  operations).  */
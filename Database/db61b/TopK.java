@@ -0,0 +1,71 @@
+package db61b;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Retains the first (least) LIMIT distinct rows offered to it under some
+ *  order, using a bounded heap whose root is the greatest row retained.
+ *  Each offer takes time O(log LIMIT), and only LIMIT rows are ever
+ *  held.
+ *  @author Brandon Griffin
+ */
+class TopK {
+
+    /** An empty collection keeping the first LIMIT rows under ORDER. */
+    TopK(Comparator<String[]> order, int limit) {
+        _order = order;
+        _limit = limit;
+        _heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1 << 16)),
+                                    order.reversed());
+        _members = new HashSet<>();
+    }
+
+    /** Return true iff I hold LIMIT rows, so that an offered row is kept
+     *  only if it precedes worst(). */
+    boolean full() {
+        return _heap.size() >= _limit;
+    }
+
+    /** Return the greatest row I hold, or null if I hold none. */
+    String[] worst() {
+        return _heap.peek();
+    }
+
+    /** Keep ROW if it is among the first LIMIT distinct rows offered so
+     *  far. */
+    void offer(String[] row) {
+        if (_limit == 0) {
+            return;
+        }
+        if (full() && _order.compare(row, _heap.peek()) >= 0) {
+            return;
+        }
+        if (!_members.add(Arrays.asList(row))) {
+            return;
+        }
+        _heap.add(row);
+        if (_heap.size() > _limit) {
+            _members.remove(Arrays.asList(_heap.poll()));
+        }
+    }
+
+    /** Return the rows I hold, in order. */
+    List<String[]> sorted() {
+        ArrayList<String[]> rows = new ArrayList<>(_heap);
+        rows.sort(_order);
+        return rows;
+    }
+
+    /** Order of the rows. */
+    private final Comparator<String[]> _order;
+    /** Maximum number of rows to keep. */
+    private final int _limit;
+    /** Rows kept, greatest first. */
+    private final PriorityQueue<String[]> _heap;
+    /** The rows in _heap, as lists for hashing. */
+    private final HashSet<List<String>> _members;
+}
@@ -1,5 +1,9 @@
 package db61b;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.Pattern;
 
 /** Various utilities used by other sources.
@@ -19,12 +23,83 @@ class Utils {
         return String.format(s, args);
     }
 
+    /** Return the number of bytes denoted by S, which is a non-negative
+     *  integer optionally followed by K, M, or G (for multiples of 1024,
+     *  1024**2, and 1024**3). */
+    static long parseSize(String s) {
+        long unit = 1;
+        String digits = s.trim().toUpperCase();
+        if (digits.endsWith("K")) {
+            unit = 1L << 10;
+        } else if (digits.endsWith("M")) {
+            unit = 1L << 20;
+        } else if (digits.endsWith("G")) {
+            unit = 1L << 30;
+        }
+        if (unit != 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long n = Long.parseLong(digits);
+            if (n < 0) {
+                throw error("invalid size: %s", s);
+            }
+            return n * unit;
+        } catch (NumberFormatException excp) {
+            throw error("invalid size: %s", s);
+        }
+    }
+
+    /** Return the memory budget, in bytes, for operations (such as
+     *  sorting) that can spill to disk when they would exceed it. */
+    static long memoryBudget() {
+        return _memoryBudget;
+    }
+
+    /** Set memoryBudget() to BYTES. */
+    static void setMemoryBudget(long bytes) {
+        _memoryBudget = bytes;
+    }
+
+    /** Write S to OUT as the length of its UTF-8 encoding, as a varint
+     *  (seven bits a byte, least significant first, with the high bit set
+     *  on all but the last byte), followed by the encoding.  Unlike
+     *  writeUTF, this allows strings of any length. */
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int n = bytes.length;
+        while (n >= 0x80) {
+            out.writeByte(0x80 | (n & 0x7f));
+            n >>>= 7;
+        }
+        out.writeByte(n);
+        out.write(bytes);
+    }
+
+    /** Return a string written by writeString from IN. */
+    static String readString(DataInput in) throws IOException {
+        int n = 0;
+        for (int shift = 0; true; shift += 7) {
+            int b = in.readUnsignedByte();
+            if (shift > 28 || (shift == 28 && b > 7)) {
+                throw new IOException("bad string length");
+            }
+            n |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                break;
+            }
+        }
+        byte[] bytes = new byte[n];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     /** Return a DBException whose message is formed from S and ARGS as for
      *  String.format. */
     static DBException error(String s, Object ... args) {
         return new DBException(format(s, args));
     }
 
+    /** The current memory budget. */
+    private static volatile long _memoryBudget = 64L << 20;
 }
-
-
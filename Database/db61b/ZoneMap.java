@@ -0,0 +1,68 @@
+package db61b;
+
+import java.util.Arrays;
+
+/** A summary of one column of a Table, divided into blocks of BLOCK
+ *  consecutive physical rows, giving for each block the rows holding its
+ *  least and greatest values.  A scan can skip any block whose range of
+ *  values cannot satisfy a condition comparing the column with a
+ *  literal.  Rows are recorded as they are appended, so the map is always
+ *  current.
+ *  @author Brandon Griffin
+ */
+class ZoneMap {
+
+    /** Number of rows in a block. */
+    static final int BLOCK = 1024;
+
+    /** An empty zone map for COLUMN. */
+    ZoneMap(ColumnStorage column) {
+        _column = column;
+        _min = new int[4];
+        _max = new int[4];
+        _rows = 0;
+    }
+
+    /** Record that value number ROW, which must be the next row, has been
+     *  appended to my column. */
+    void added(int row) {
+        int b = row / BLOCK;
+        if (row % BLOCK == 0) {
+            if (b == _min.length) {
+                _min = Arrays.copyOf(_min, 2 * b);
+                _max = Arrays.copyOf(_max, 2 * b);
+            }
+            _min[b] = _max[b] = row;
+        } else {
+            if (_column.compare(row, _min[b]) < 0) {
+                _min[b] = row;
+            }
+            if (_column.compare(row, _max[b]) > 0) {
+                _max[b] = row;
+            }
+        }
+        _rows = row + 1;
+    }
+
+    /** Return the number of blocks. */
+    int blocks() {
+        return (_rows + BLOCK - 1) / BLOCK;
+    }
+
+    /** Return the row holding the least value in block B. */
+    int minRow(int b) {
+        return _min[b];
+    }
+
+    /** Return the row holding the greatest value in block B. */
+    int maxRow(int b) {
+        return _max[b];
+    }
+
+    /** The column summarized. */
+    private final ColumnStorage _column;
+    /** Rows of the least and greatest values of each block. */
+    private int[] _min, _max;
+    /** Number of rows summarized. */
+    private int _rows;
+}